@@ -0,0 +1,35 @@
+package nz.ac.vuw.ecs.snails.compiler;
+
+/**
+ * A single GP tree that has been compiled to a JVM class. Every generated
+ * class also has a static eval(double) method holding the actual code, this
+ * interface is how it is called from outside.
+ *
+ */
+public interface CompiledTree {
+
+	/**
+	 * Compute the value of the tree for a given t
+	 *
+	 * @param t
+	 *            The input value
+	 * @return The result of the tree
+	 */
+	public double value(double t);
+
+	/**
+	 * Compute the value of the tree for t[from] to t[to - 1], putting each
+	 * result in the same position of out. The loop is inside the generated
+	 * class, so eval can be inlined into it.
+	 *
+	 * @param t
+	 *            The input values
+	 * @param out
+	 *            Where to put the result for each input
+	 * @param from
+	 *            The first index to compute (inclusive)
+	 * @param to
+	 *            The last index to compute (exclusive)
+	 */
+	public void fill(double[] t, double[] out, int from, int to);
+}
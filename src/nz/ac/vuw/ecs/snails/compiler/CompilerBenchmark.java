@@ -0,0 +1,148 @@
+package nz.ac.vuw.ecs.snails.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nz.ac.vuw.ecs.fgpj.core.GPConfig;
+import nz.ac.vuw.ecs.fgpj.core.GeneticProgram;
+import nz.ac.vuw.ecs.snails.functions.Add;
+import nz.ac.vuw.ecs.snails.functions.Cos;
+import nz.ac.vuw.ecs.snails.functions.Divide;
+import nz.ac.vuw.ecs.snails.functions.Exp;
+import nz.ac.vuw.ecs.snails.functions.GenExp;
+import nz.ac.vuw.ecs.snails.functions.Ln;
+import nz.ac.vuw.ecs.snails.functions.Minus;
+import nz.ac.vuw.ecs.snails.functions.RandomDouble;
+import nz.ac.vuw.ecs.snails.functions.Sin;
+import nz.ac.vuw.ecs.snails.functions.T;
+import nz.ac.vuw.ecs.snails.functions.Times;
+import nz.ac.vuw.ecs.snails.main.SnailFitness;
+
+/**
+ * Compares interpreting programs against compiling them, for random programs
+ * of increasing depth. For each depth it reports the time to score a program
+ * with each interpreter, the time to score it once compiled (both straight
+ * after compiling, and once the JIT has had a chance to optimise the generated
+ * class), the time it took to compile it, and how many evaluations of the same
+ * program are needed before compiling it pays for itself.
+ *
+ * A freshly generated class runs in the JVM's bytecode interpreter until it
+ * has been called enough to be JIT compiled, so compiling only wins for
+ * programs that are evaluated many times, such as elites in a long run.
+ *
+ */
+public class CompilerBenchmark {
+
+	private static final String[] UNARY = { "Sin", "Cos", "e", "ln" };
+	private static final String[] BINARY = { "+", "-", "*", "/", "^" };
+
+	public static void main(String[] args) {
+		if (args.length > 3) {
+			System.err.println("Usage:");
+			System.err.println(
+					"java -cp snails.jar nz.ac.vuw.ecs.snails.compiler.CompilerBenchmark [<targetFilename>] [programs] [rounds]");
+			System.exit(-1);
+		}
+
+		String filename = args.length > 0 ? args[0] : null;
+		int numPrograms = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		// How many times each compiled program is scored before it is
+		// considered warm
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		GPConfig conf = new GPConfig(2, 1, 6, 0.70, 0.28, 0.02);
+		conf.addTerminal(new T());
+		conf.addTerminal(new RandomDouble(1, 5, conf));
+		conf.addFunction(new Add());
+		conf.addFunction(new Times());
+		conf.addFunction(new Minus());
+		conf.addFunction(new Divide());
+		conf.addFunction(new Exp());
+		conf.addFunction(new Sin());
+		conf.addFunction(new Cos());
+		conf.addFunction(new Ln());
+		conf.addFunction(new GenExp());
+
+		SnailFitness sfit = new SnailFitness(filename);
+		sfit.initFitness();
+
+		Random r = new Random(1);
+
+		System.out.println("depth,column_us,scalar_us,compiled_cold_us,compiled_warm_us,compile_us,break_even_evaluations");
+		for (int depth = 2; depth <= 10; depth += 2) {
+			List<GeneticProgram> programs = new ArrayList<>();
+			for (int i = 0; i < numPrograms; i++) {
+				GeneticProgram p = new GeneticProgram(2);
+				p.parseProgram("2 Program0 " + randomTree(r, depth) + " | Program1 " + randomTree(r, depth) + " |",
+						conf);
+				programs.add(p);
+			}
+
+			// Warm everything up first so the JIT has done its work
+			for (int i = 0; i < 3; i++) {
+				time(sfit, programs, null, true);
+				time(sfit, programs, null, false);
+				time(sfit, programs, new ProgramCompiler(programs.size() * 2), true);
+			}
+
+			double column = time(sfit, programs, null, true);
+			double scalar = time(sfit, programs, null, false);
+
+			// Compiling happens on the first evaluation of each program
+			ProgramCompiler compiler = new ProgramCompiler(programs.size() * 2);
+			double firstRun = time(sfit, programs, compiler, true);
+			double cold = time(sfit, programs, compiler, true);
+			double compile = firstRun - cold;
+			for (int i = 0; i < rounds; i++) {
+				time(sfit, programs, compiler, true);
+			}
+			double warm = time(sfit, programs, compiler, true);
+
+			double interpreted = Math.min(column, scalar);
+			String breakEven = warm < interpreted ? String.format("%.1f", compile / (interpreted - warm)) : "never";
+			System.out.printf("%d,%.2f,%.2f,%.2f,%.2f,%.2f,%s\n", depth, column, scalar, cold, warm, compile,
+					breakEven);
+		}
+	}
+
+	/**
+	 * Score every program once and return the mean time per program in
+	 * microseconds
+	 */
+	private static double time(SnailFitness sfit, List<GeneticProgram> programs, ProgramCompiler compiler,
+			boolean batch) {
+		sfit.setCompiler(compiler);
+		sfit.setBatchEvaluation(batch);
+		double sink = 0;
+		long start = System.nanoTime();
+		for (GeneticProgram p : programs) {
+			sink += sfit.score(p);
+		}
+		long end = System.nanoTime();
+		if (sink == 42) {
+			// Stops the JIT throwing the work away
+			System.out.print("");
+		}
+		sfit.setCompiler(null);
+		return (end - start) / 1000.0 / programs.size();
+	}
+
+	/**
+	 * Build a random full tree of the given depth in the same text format the
+	 * GP system reads programs in.
+	 */
+	private static String randomTree(Random r, int depth) {
+		if (depth <= 1) {
+			if (r.nextBoolean()) {
+				return "t";
+			}
+			return "RandomDoublex" + (1 + r.nextDouble() * 5);
+		}
+		if (r.nextInt(3) == 0) {
+			return "( " + UNARY[r.nextInt(UNARY.length)] + " " + randomTree(r, depth - 1) + " )";
+		}
+		return "( " + BINARY[r.nextInt(BINARY.length)] + " " + randomTree(r, depth - 1) + " "
+				+ randomTree(r, depth - 1) + " )";
+	}
+}
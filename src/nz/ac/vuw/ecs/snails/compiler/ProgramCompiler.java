@@ -0,0 +1,183 @@
+package nz.ac.vuw.ecs.snails.compiler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nz.ac.vuw.ecs.fgpj.core.GeneticProgram;
+import nz.ac.vuw.ecs.fgpj.core.Node;
+import nz.ac.vuw.ecs.snails.functions.TreeSignature;
+import nz.ac.vuw.ecs.snails.functions.TreeVisitor;
+
+/**
+ * Compiles GP programs built from the snail function set into JVM classes, so
+ * that fitness evaluation runs JIT compiled code rather than walking the node
+ * graph for every sample. Each tree becomes its own class with a static
+ * eval(double t) method.
+ *
+ * Every generated class is defined in its own class loader, so that once a
+ * tree is dropped from the cache (and nothing else refers to it) the class
+ * can be unloaded. The cache is keyed on the exact structure of each tree
+ * (including the exact values of constants), so elites and any other trees
+ * that survive between generations are only ever compiled once. A tree is
+ * looked up by its TreeSignature before any code is emitted, so a tree that
+ * is already in the cache costs one cheap walk.
+ *
+ * This class is thread safe.
+ *
+ */
+public class ProgramCompiler {
+
+	// Walks the trees that are already compiled
+	private static final TreeVisitor SKIP = new TreeVisitor() {
+		@Override
+		public void visit(Node n) {
+		}
+	};
+
+	// Used to give every generated class a unique name
+	private long classCount = 0;
+
+	private final Map<String, CompiledTree> cache;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Create a new compiler that will remember up to cacheSize compiled trees
+	 *
+	 * @param cacheSize
+	 *            The maximum number of compiled trees to keep
+	 */
+	public ProgramCompiler(final int cacheSize) {
+		// Access ordered, so the eldest entry is the least recently used
+		cache = new LinkedHashMap<String, CompiledTree>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CompiledTree> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Compile every tree of a program.
+	 *
+	 * @param p
+	 *            The program to compile
+	 * @param numTrees
+	 *            The number of trees in the program
+	 * @return The compiled trees in order, or null if the program cannot be
+	 *         compiled (in which case it should just be interpreted)
+	 */
+	public CompiledTree[] compile(GeneticProgram p, int numTrees) {
+		// Looking a tree up only needs its signature, which is far cheaper
+		// to build than its code
+		TreeSignature[] signatures = new TreeSignature[numTrees];
+		for (int i = 0; i < numTrees; i++) {
+			signatures[i] = new TreeSignature();
+		}
+		p.evaluate(signatures);
+
+		CompiledTree[] trees = new CompiledTree[numTrees];
+		boolean missed = false;
+		synchronized (this) {
+			for (int i = 0; i < numTrees; i++) {
+				trees[i] = cache.get(signatures[i].signature());
+				if (trees[i] != null) {
+					hits++;
+				} else {
+					misses++;
+					missed = true;
+				}
+			}
+		}
+		if (!missed) {
+			return trees;
+		}
+
+		// Only the trees that weren't in the cache are emitted. The others
+		// are still walked (there is no way to walk just one tree), but
+		// nothing is done with them.
+		TreeVisitor[] emitters = new TreeVisitor[numTrees];
+		synchronized (this) {
+			for (int i = 0; i < numTrees; i++) {
+				emitters[i] = trees[i] == null ? new TreeEmitter("GeneratedTree" + (classCount++)) : SKIP;
+			}
+		}
+		try {
+			p.evaluate(emitters);
+		} catch (UnsupportedOperationException e) {
+			// Something in the tree we don't know about
+			return null;
+		}
+
+		for (int i = 0; i < numTrees; i++) {
+			if (trees[i] != null) {
+				continue;
+			}
+			TreeEmitter emitter = (TreeEmitter) emitters[i];
+			if (!emitter.fits()) {
+				return null;
+			}
+			// Compile outside the lock. Two threads might compile the same
+			// tree at once, but they get the same code so either is fine.
+			trees[i] = define(emitter);
+			synchronized (this) {
+				cache.put(signatures[i].signature(), trees[i]);
+			}
+		}
+		return trees;
+	}
+
+	private CompiledTree define(TreeEmitter e) {
+		byte[] bytes = e.toClassFile();
+		TreeLoader loader = new TreeLoader(ProgramCompiler.class.getClassLoader());
+		try {
+			Class<?> c = loader.define(bytes);
+			return (CompiledTree) c.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError ex) {
+			// This means the emitter has a bug
+			throw new IllegalStateException("Generated class could not be loaded", ex);
+		}
+	}
+
+	/**
+	 * The number of trees that were already in the cache
+	 *
+	 * @return the number of cache hits
+	 */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/**
+	 * The number of trees that had to be compiled
+	 *
+	 * @return the number of cache misses
+	 */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/**
+	 * Forget every compiled tree
+	 */
+	public synchronized void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * A class loader that holds a single generated class
+	 */
+	private static final class TreeLoader extends ClassLoader {
+
+		TreeLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(byte[] bytes) {
+			return defineClass(null, bytes, 0, bytes.length);
+		}
+	}
+}
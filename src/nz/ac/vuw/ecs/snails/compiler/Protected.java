@@ -0,0 +1,44 @@
+package nz.ac.vuw.ecs.snails.compiler;
+
+/**
+ * The protected operators of the function set, as static methods that
+ * generated code can call. These must match Divide and Ln exactly. Keeping the
+ * branches out here means the generated methods are straight line code.
+ *
+ */
+public final class Protected {
+
+	private Protected() {
+	}
+
+	/**
+	 * Division where dividing by zero gives zero, as in Divide
+	 *
+	 * @param top
+	 *            The numerator
+	 * @param bottom
+	 *            The denominator
+	 * @return top / bottom, or zero if bottom is zero
+	 */
+	public static double divide(double top, double bottom) {
+		if (bottom == 0) {
+			return 0;
+		}
+		return top / bottom;
+	}
+
+	/**
+	 * Natural log where anything too small to take a log of gives zero, as in
+	 * Ln
+	 *
+	 * @param v
+	 *            The value to take the log of
+	 * @return ln(v), or zero if v is too small
+	 */
+	public static double ln(double v) {
+		if (v < 0.00005) {
+			return 0;
+		}
+		return Math.log(v);
+	}
+}
@@ -0,0 +1,375 @@
+package nz.ac.vuw.ecs.snails.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import nz.ac.vuw.ecs.fgpj.core.Node;
+import nz.ac.vuw.ecs.snails.functions.Add;
+import nz.ac.vuw.ecs.snails.functions.Cos;
+import nz.ac.vuw.ecs.snails.functions.Divide;
+import nz.ac.vuw.ecs.snails.functions.Exp;
+import nz.ac.vuw.ecs.snails.functions.GenExp;
+import nz.ac.vuw.ecs.snails.functions.Ln;
+import nz.ac.vuw.ecs.snails.functions.Minus;
+import nz.ac.vuw.ecs.snails.functions.RandomDouble;
+import nz.ac.vuw.ecs.snails.functions.Sin;
+import nz.ac.vuw.ecs.snails.functions.T;
+import nz.ac.vuw.ecs.snails.functions.Tan;
+import nz.ac.vuw.ecs.snails.functions.Times;
+import nz.ac.vuw.ecs.snails.functions.TreeVisitor;
+
+/**
+ * Walks a single tree and writes it out as JVM bytecode. The tree arrives in
+ * post order, which is exactly the order a stack machine needs, so each node
+ * just becomes one or two instructions. The generated class looks like:
+ *
+ * <pre>
+ * public final class GeneratedTreeN implements CompiledTree {
+ * 	public static double eval(double t) { ... }
+ * 	public double value(double t) { return eval(t); }
+ * 	public void fill(double[] t, double[] out, int from, int to) {
+ * 		for (; from < to; from++) out[from] = eval(t[from]);
+ * 	}
+ * }
+ * </pre>
+ *
+ * The classes are written in the Java 5 class file format, which the JVM
+ * verifies without needing stack map frames for the loop in fill.
+ *
+ */
+class TreeEmitter extends TreeVisitor {
+
+	// Opcodes used
+	private static final int ILOAD = 0x15;
+	private static final int ILOAD_3 = 0x1d;
+	private static final int IINC = 0x84;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int ALOAD_2 = 0x2c;
+	private static final int DALOAD = 0x31;
+	private static final int DASTORE = 0x52;
+	private static final int IF_ICMPGE = 0xa2;
+	private static final int GOTO = 0xa7;
+	private static final int DLOAD_0 = 0x26;
+	private static final int DLOAD_1 = 0x27;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int LDC2_W = 0x14;
+	private static final int DADD = 0x63;
+	private static final int DSUB = 0x67;
+	private static final int DMUL = 0x6b;
+	private static final int POP2 = 0x58;
+	private static final int DUP2_X2 = 0x5e;
+	private static final int DRETURN = 0xaf;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKESTATIC = 0xb8;
+
+	// Constant pool tags
+	private static final int UTF8 = 1;
+	private static final int DOUBLE = 6;
+	private static final int CLASS = 7;
+	private static final int METHODREF = 10;
+	private static final int NAME_AND_TYPE = 12;
+
+	// The largest method body the JVM allows
+	private static final int MAX_CODE = 65535;
+
+	private final String className;
+
+	// The constant pool, and a lookup so entries are shared
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final Map<String, Integer> poolIndex = new HashMap<>();
+	private int poolSize = 1;
+
+	// The body of eval
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+	// Stack depth (in slots, doubles take two) so max_stack can be set
+	private int depth = 0;
+	private int maxDepth = 0;
+
+	/**
+	 * Create an emitter for a class with the given (binary) name
+	 *
+	 * @param className
+	 *            Internal name of the class to generate
+	 */
+	TreeEmitter(String className) {
+		this.className = className;
+	}
+
+	@Override
+	public void visit(Node n) {
+		if (n instanceof T) {
+			code.write(DLOAD_0);
+			push();
+		} else if (n instanceof RandomDouble) {
+			double v = ((RandomDouble) n).getValue();
+			int index = doubleConstant(v);
+			code.write(LDC2_W);
+			writeShort(code, index);
+			push();
+		} else if (n instanceof Add) {
+			binary(DADD);
+		} else if (n instanceof Minus) {
+			binary(DSUB);
+		} else if (n instanceof Times) {
+			binary(DMUL);
+		} else if (n instanceof Divide) {
+			callStatic("nz/ac/vuw/ecs/snails/compiler/Protected", "divide", "(DD)D", 2);
+		} else if (n instanceof GenExp) {
+			// GenExp raises the second child to the power of the first, so
+			// swap the two doubles on the stack first. The swap briefly needs
+			// room for a third double.
+			maxDepth = Math.max(maxDepth, depth + 2);
+			code.write(DUP2_X2);
+			code.write(POP2);
+			callStatic("java/lang/Math", "pow", "(DD)D", 2);
+		} else if (n instanceof Sin) {
+			callStatic("java/lang/Math", "sin", "(D)D", 1);
+		} else if (n instanceof Cos) {
+			callStatic("java/lang/Math", "cos", "(D)D", 1);
+		} else if (n instanceof Tan) {
+			callStatic("java/lang/Math", "tan", "(D)D", 1);
+		} else if (n instanceof Exp) {
+			callStatic("java/lang/Math", "exp", "(D)D", 1);
+		} else if (n instanceof Ln) {
+			callStatic("nz/ac/vuw/ecs/snails/compiler/Protected", "ln", "(D)D", 1);
+		} else {
+			throw new UnsupportedOperationException("Cannot compile node: " + n.getName());
+		}
+	}
+
+	/**
+	 * Whether the visited tree fits into a single JVM method
+	 *
+	 * @return true if the tree can be turned into a class
+	 */
+	boolean fits() {
+		return code.size() + 1 <= MAX_CODE && poolSize < 65000;
+	}
+
+	/**
+	 * Write out the whole class file for the tree that was visited
+	 *
+	 * @return The bytes of the class file
+	 */
+	byte[] toClassFile() {
+		try {
+			int thisClass = classConstant(className);
+			int superClass = classConstant("java/lang/Object");
+			int iface = classConstant("nz/ac/vuw/ecs/snails/compiler/CompiledTree");
+			int objectInit = methodConstant("java/lang/Object", "<init>", "()V");
+			int evalRef = methodConstant(className, "eval", "(D)D");
+			int codeName = utf8Constant("Code");
+			int initName = utf8Constant("<init>");
+			int initDesc = utf8Constant("()V");
+			int evalName = utf8Constant("eval");
+			int evalDesc = utf8Constant("(D)D");
+			int valueName = utf8Constant("value");
+			int fillName = utf8Constant("fill");
+			int fillDesc = utf8Constant("([D[DII)V");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			// Java 5 class files
+			out.writeShort(49);
+			out.writeShort(poolSize);
+			poolOut.flush();
+			pool.writeTo(out);
+
+			// public final super
+			out.writeShort(0x0031);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(iface);
+			// no fields
+			out.writeShort(0);
+			out.writeShort(4);
+
+			// public <init>() { super(); }
+			ByteArrayOutputStream init = new ByteArrayOutputStream();
+			init.write(ALOAD_0);
+			init.write(INVOKESPECIAL);
+			writeShort(init, objectInit);
+			init.write(RETURN);
+			writeMethod(out, 0x0001, initName, initDesc, codeName, 1, 1, init);
+
+			// public static double eval(double t) { ... }
+			code.write(DRETURN);
+			writeMethod(out, 0x0009, evalName, evalDesc, codeName, maxDepth, 2, code);
+
+			// public double value(double t) { return eval(t); }
+			ByteArrayOutputStream value = new ByteArrayOutputStream();
+			value.write(DLOAD_1);
+			value.write(INVOKESTATIC);
+			writeShort(value, evalRef);
+			value.write(DRETURN);
+			writeMethod(out, 0x0001, valueName, evalDesc, codeName, 2, 3, value);
+
+			// public void fill(double[] t, double[] out, int from, int to)
+			// locals are this, t, out, from, to. from is used as the counter.
+			ByteArrayOutputStream fill = new ByteArrayOutputStream();
+			// 0: if (from >= to) goto 21
+			fill.write(ILOAD_3);
+			fill.write(ILOAD);
+			fill.write(4);
+			fill.write(IF_ICMPGE);
+			writeShort(fill, 18);
+			// 6: out[from] = eval(t[from])
+			fill.write(ALOAD_2);
+			fill.write(ILOAD_3);
+			fill.write(ALOAD_1);
+			fill.write(ILOAD_3);
+			fill.write(DALOAD);
+			fill.write(INVOKESTATIC);
+			writeShort(fill, evalRef);
+			fill.write(DASTORE);
+			// 15: from++, goto 0
+			fill.write(IINC);
+			fill.write(3);
+			fill.write(1);
+			fill.write(GOTO);
+			writeShort(fill, -18);
+			// 21:
+			fill.write(RETURN);
+			writeMethod(out, 0x0001, fillName, fillDesc, codeName, 4, 5, fill);
+
+			// no class attributes
+			out.writeShort(0);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// Can't happen when writing to memory
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writeMethod(DataOutputStream out, int access, int name, int desc, int codeName, int maxStack,
+			int maxLocals, ByteArrayOutputStream body) throws IOException {
+		out.writeShort(access);
+		out.writeShort(name);
+		out.writeShort(desc);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		// max_stack, max_locals, code_length, code, no exceptions, no
+		// attributes
+		out.writeInt(2 + 2 + 4 + body.size() + 2 + 2);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(body.size());
+		body.writeTo(out);
+		out.writeShort(0);
+		out.writeShort(0);
+	}
+
+	private void binary(int opcode) {
+		code.write(opcode);
+		pop();
+	}
+
+	private void callStatic(String owner, String method, String desc, int args) {
+		int index = methodConstant(owner, method, desc);
+		code.write(INVOKESTATIC);
+		writeShort(code, index);
+		// Takes args doubles and leaves one
+		for (int i = 1; i < args; i++) {
+			pop();
+		}
+	}
+
+	private void push() {
+		depth += 2;
+		maxDepth = Math.max(maxDepth, depth);
+	}
+
+	private void pop() {
+		depth -= 2;
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int v) {
+		out.write((v >>> 8) & 0xff);
+		out.write(v & 0xff);
+	}
+
+	private int utf8Constant(String s) {
+		Integer index = poolIndex.get("U" + s);
+		if (index != null) {
+			return index;
+		}
+		try {
+			poolOut.writeByte(UTF8);
+			poolOut.writeUTF(s);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		poolIndex.put("U" + s, poolSize);
+		return poolSize++;
+	}
+
+	private int classConstant(String name) {
+		Integer index = poolIndex.get("C" + name);
+		if (index != null) {
+			return index;
+		}
+		int nameIndex = utf8Constant(name);
+		try {
+			poolOut.writeByte(CLASS);
+			poolOut.writeShort(nameIndex);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		poolIndex.put("C" + name, poolSize);
+		return poolSize++;
+	}
+
+	private int methodConstant(String owner, String name, String desc) {
+		String key = "M" + owner + "." + name + desc;
+		Integer index = poolIndex.get(key);
+		if (index != null) {
+			return index;
+		}
+		int ownerIndex = classConstant(owner);
+		int nameIndex = utf8Constant(name);
+		int descIndex = utf8Constant(desc);
+		try {
+			poolOut.writeByte(NAME_AND_TYPE);
+			poolOut.writeShort(nameIndex);
+			poolOut.writeShort(descIndex);
+			int nameAndType = poolSize++;
+			poolOut.writeByte(METHODREF);
+			poolOut.writeShort(ownerIndex);
+			poolOut.writeShort(nameAndType);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		poolIndex.put(key, poolSize);
+		return poolSize++;
+	}
+
+	private int doubleConstant(double v) {
+		long bits = Double.doubleToRawLongBits(v);
+		String key = "D" + bits;
+		Integer index = poolIndex.get(key);
+		if (index != null) {
+			return index;
+		}
+		try {
+			poolOut.writeByte(DOUBLE);
+			poolOut.writeLong(bits);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		poolIndex.put(key, poolSize);
+		int result = poolSize;
+		// Doubles take up two constant pool entries
+		poolSize += 2;
+		return result;
+	}
+}
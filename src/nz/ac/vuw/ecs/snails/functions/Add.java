@@ -19,9 +19,7 @@ package nz.ac.vuw.ecs.snails.functions;
  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
  */
 
-import nz.ac.vuw.ecs.fgpj.core.Function;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
-import nz.ac.vuw.ecs.fgpj.core.ReturnData;
 
 /**
  * This class represents the addition operator. It takes the results of its two
@@ -30,7 +28,7 @@ import nz.ac.vuw.ecs.fgpj.core.ReturnData;
  * @author Roman Klapaukh
  *
  */
-public class Add extends Function {
+public class Add extends DoubleFunction {
 
 	public Add() {
 		// The add Function returns a ReturnDouble, has 2 children and is
@@ -49,9 +47,7 @@ public class Add extends Function {
 	}
 
 	@Override
-	public void evaluate(ReturnData out) {
-		// Cast is safe as we specified what the expected type is
-		ReturnDouble d = (ReturnDouble) out;
+	protected void evaluate(ReturnDouble d) {
 		// Evaluate the first subtree
 		getArgN(0).evaluate(d);
 		// save the value
@@ -62,4 +58,20 @@ public class Add extends Function {
 		d.setValue(d.value() + d1);
 	}
 
+	@Override
+	protected void evaluate(ReturnColumn c) {
+		// Evaluate the first subtree
+		getArgN(0).evaluate(c);
+		// keep hold of its values
+		double[] d1 = c.hold();
+		// evaluate the second subtree
+		getArgN(1).evaluate(c);
+		// Set the result to be the sum
+		double[] v = c.values();
+		for (int i = 0; i < c.length(); i++) {
+			v[i] = v[i] + d1[i];
+		}
+		c.release(d1);
+	}
+
 }
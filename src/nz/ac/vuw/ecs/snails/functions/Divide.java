@@ -19,9 +19,7 @@ package nz.ac.vuw.ecs.snails.functions;
  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
  */
 
-import nz.ac.vuw.ecs.fgpj.core.Function;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
-import nz.ac.vuw.ecs.fgpj.core.ReturnData;
 
 /**
  * The division operator. In the case of division by zero, it has the result
@@ -30,7 +28,7 @@ import nz.ac.vuw.ecs.fgpj.core.ReturnData;
  * @author Roman Klapaukh
  *
  */
-public class Divide extends Function {
+public class Divide extends DoubleFunction {
 
 	public Divide() {
 		// Divide returns a ReturnDouble, has to children and is represented by
@@ -49,10 +47,7 @@ public class Divide extends Function {
 	}
 
 	@Override
-	public void evaluate(ReturnData out) {
-		// cast is safe as we specified the type we expect
-		ReturnDouble d = (ReturnDouble) out;
-
+	protected void evaluate(ReturnDouble d) {
 		// Evaluate the first subtree
 		getArgN(0).evaluate(d);
 		// save the value
@@ -70,4 +65,20 @@ public class Divide extends Function {
 		}
 	}
 
+	@Override
+	protected void evaluate(ReturnColumn c) {
+		// Evaluate the first subtree
+		getArgN(0).evaluate(c);
+		// keep hold of its values
+		double[] d1 = c.hold();
+		// evaluate the second subtree
+		getArgN(1).evaluate(c);
+		// Divide, giving zero wherever the bottom part is zero
+		double[] v = c.values();
+		for (int i = 0; i < c.length(); i++) {
+			v[i] = v[i] == 0 ? 0 : d1[i] / v[i];
+		}
+		c.release(d1);
+	}
+
 }
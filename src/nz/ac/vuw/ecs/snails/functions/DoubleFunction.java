@@ -0,0 +1,81 @@
+package nz.ac.vuw.ecs.snails.functions;
+
+/*
+ SnailFitter snail fitting library
+ Copyright (C) 2015  Roman Klapaukh
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License along
+ with this program; if not, write to the Free Software Foundation, Inc.,
+ 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import nz.ac.vuw.ecs.fgpj.core.Function;
+import nz.ac.vuw.ecs.fgpj.core.ReturnData;
+
+/**
+ * Base class for all the functions that work on doubles. It decides whether
+ * the tree is being evaluated a single value at a time (with a ReturnDouble)
+ * or a whole column at a time (with a ReturnColumn) and calls the matching
+ * evaluate method. Both versions must compute exactly the same thing. A
+ * TreeVisitor is just walked through the children.
+ *
+ */
+public abstract class DoubleFunction extends Function {
+
+	public DoubleFunction(int returnType, int numArgs, String name) {
+		super(returnType, numArgs, name);
+	}
+
+	@Override
+	public void evaluate(ReturnData out) {
+		if (out instanceof ReturnDouble) {
+			evaluate((ReturnDouble) out);
+		} else if (out instanceof ReturnColumn) {
+			evaluate((ReturnColumn) out);
+		} else {
+			// Only thing left is a visitor, which sees the children first
+			TreeVisitor v = (TreeVisitor) out;
+			for (int i = 0; i < numArgs; i++) {
+				getArgN(i).evaluate(v);
+			}
+			v.visit(this);
+		}
+	}
+
+	/**
+	 * The number of children this function takes
+	 *
+	 * @return The number of children
+	 */
+	int arity() {
+		return numArgs;
+	}
+
+	/**
+	 * Evaluate this function for a single t value
+	 *
+	 * @param d
+	 *            Carries the t value in and the result out
+	 */
+	protected abstract void evaluate(ReturnDouble d);
+
+	/**
+	 * Evaluate this function for a whole column of t values at once
+	 *
+	 * @param c
+	 *            Carries the t values in and the results out
+	 */
+	protected abstract void evaluate(ReturnColumn c);
+
+}
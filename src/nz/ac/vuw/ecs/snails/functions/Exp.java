@@ -19,9 +19,7 @@ package nz.ac.vuw.ecs.snails.functions;
  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
  */
 
-import nz.ac.vuw.ecs.fgpj.core.Function;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
-import nz.ac.vuw.ecs.fgpj.core.ReturnData;
 
 /**
  * Function representing raising e to the power of another value.
@@ -29,7 +27,7 @@ import nz.ac.vuw.ecs.fgpj.core.ReturnData;
  * @author Roman Klapaukh
  *
  */
-public class Exp extends Function {
+public class Exp extends DoubleFunction {
 
 	public Exp() {
 		// This returns a ReturnDouble, has one child and is written "e"
@@ -47,13 +45,22 @@ public class Exp extends Function {
 	}
 
 	@Override
-	public void evaluate(ReturnData out) {
-		// The cast is safe as we specified what we expect in the constructor
-		ReturnDouble d = (ReturnDouble) out;
+	protected void evaluate(ReturnDouble d) {
 		// evaluate the subtree
 		getArgN(0).evaluate(d);
 		// The result is e^(subtree)
 		d.setValue(Math.exp(d.value()));
 	}
 
+	@Override
+	protected void evaluate(ReturnColumn c) {
+		// Evaluate the subtree
+		getArgN(0).evaluate(c);
+		// Each result is e^(subtree)
+		double[] v = c.values();
+		for (int i = 0; i < c.length(); i++) {
+			v[i] = Math.exp(v[i]);
+		}
+	}
+
 }
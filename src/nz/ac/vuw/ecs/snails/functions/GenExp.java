@@ -19,9 +19,7 @@ package nz.ac.vuw.ecs.snails.functions;
  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
  */
 
-import nz.ac.vuw.ecs.fgpj.core.Function;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
-import nz.ac.vuw.ecs.fgpj.core.ReturnData;
 
 /**
  * This class represents the exponentiation operator. It takes the results of its two
@@ -30,7 +28,7 @@ import nz.ac.vuw.ecs.fgpj.core.ReturnData;
  * @author Roman Klapaukh
  *
  */
-public class GenExp extends Function {
+public class GenExp extends DoubleFunction {
 
 	public GenExp() {
 		super(ReturnDouble.TYPENUM, 2, "^");
@@ -46,8 +44,7 @@ public class GenExp extends Function {
 	}
 
 	@Override
-	public void evaluate(ReturnData out) {
-		ReturnDouble d = (ReturnDouble) out;
+	protected void evaluate(ReturnDouble d) {
 		getArgN(0).evaluate(d);
 		
 		double d1 = d.value();
@@ -56,4 +53,20 @@ public class GenExp extends Function {
 		d.setValue(Math.pow(d.value(), d1));
 	}
 
+	@Override
+	protected void evaluate(ReturnColumn c) {
+		// Evaluate the first subtree
+		getArgN(0).evaluate(c);
+		// keep hold of its values
+		double[] d1 = c.hold();
+		// evaluate the second subtree
+		getArgN(1).evaluate(c);
+		// The second subtree raised to the power of the first
+		double[] v = c.values();
+		for (int i = 0; i < c.length(); i++) {
+			v[i] = Math.pow(v[i], d1[i]);
+		}
+		c.release(d1);
+	}
+
 }
@@ -19,9 +19,7 @@ package nz.ac.vuw.ecs.snails.functions;
  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
  */
 
-import nz.ac.vuw.ecs.fgpj.core.Function;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
-import nz.ac.vuw.ecs.fgpj.core.ReturnData;
 
 /**
  * Function representing taking the natural logarithm of a number
@@ -29,7 +27,7 @@ import nz.ac.vuw.ecs.fgpj.core.ReturnData;
  * @author Roman Klapaukh
  *
  */
-public class Ln extends Function {
+public class Ln extends DoubleFunction {
 
 	public Ln() {
 		// This returns a ReturnDouble, has one child and is written "ln"
@@ -47,9 +45,7 @@ public class Ln extends Function {
 	}
 
 	@Override
-	public void evaluate(ReturnData out) {
-		// The cast is safe as we specified what we expect in the constructor
-		ReturnDouble d = (ReturnDouble) out;
+	protected void evaluate(ReturnDouble d) {
 		// evaluate the subtree
 		getArgN(0).evaluate(d);
 		// The result is ln(subtree)
@@ -61,4 +57,15 @@ public class Ln extends Function {
 		}
 	}
 
+	@Override
+	protected void evaluate(ReturnColumn c) {
+		// Evaluate the subtree
+		getArgN(0).evaluate(c);
+		// Each result is ln(subtree), or zero where you can't take a log
+		double[] v = c.values();
+		for (int i = 0; i < c.length(); i++) {
+			v[i] = v[i] < 0.00005 ? 0 : Math.log(v[i]);
+		}
+	}
+
 }
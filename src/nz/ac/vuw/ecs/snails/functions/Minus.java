@@ -19,9 +19,7 @@ with this program; if not, write to the Free Software Foundation, Inc.,
 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
 */
 
-import nz.ac.vuw.ecs.fgpj.core.Function;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
-import nz.ac.vuw.ecs.fgpj.core.ReturnData;
 
 /**
  * Represents subtraction. Returns the difference between two subtrees
@@ -29,7 +27,7 @@ import nz.ac.vuw.ecs.fgpj.core.ReturnData;
  * @author Roman Klapaukh
  *
  */
-public class Minus extends Function {
+public class Minus extends DoubleFunction {
 
 	public Minus() {
 		// Minus returns a return double, has two children and is represented by
@@ -48,10 +46,7 @@ public class Minus extends Function {
 	}
 
 	@Override
-	public void evaluate(ReturnData out) {
-		// cast is safe as we specified what type we expected
-		ReturnDouble d = (ReturnDouble) out;
-
+	protected void evaluate(ReturnDouble d) {
 		// evaluate the first subtree
 		getArgN(0).evaluate(d);
 		// save the result
@@ -62,4 +57,20 @@ public class Minus extends Function {
 		d.setValue(d1 - d.value());
 	}
 
+	@Override
+	protected void evaluate(ReturnColumn c) {
+		// Evaluate the first subtree
+		getArgN(0).evaluate(c);
+		// keep hold of its values
+		double[] d1 = c.hold();
+		// evaluate the second subtree
+		getArgN(1).evaluate(c);
+		// Set the result to being the difference
+		double[] v = c.values();
+		for (int i = 0; i < c.length(); i++) {
+			v[i] = d1[i] - v[i];
+		}
+		c.release(d1);
+	}
+
 }
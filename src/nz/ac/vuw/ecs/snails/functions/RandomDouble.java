@@ -19,6 +19,8 @@ package nz.ac.vuw.ecs.snails.functions;
  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
  */
 
+import java.util.Arrays;
+
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
 import nz.ac.vuw.ecs.fgpj.core.Node;
 import nz.ac.vuw.ecs.fgpj.core.ReturnData;
@@ -78,6 +80,15 @@ public class RandomDouble extends Terminal {
 		this.value = value;
 	}
 
+	/**
+	 * Get the constant this instance represents
+	 *
+	 * @return the value of the constant
+	 */
+	public double getValue() {
+		return value;
+	}
+
 	public void print(StringBuilder s) {
 		// Need to override the default print implementation to include the
 		// value that this instance represents. It is important that there is no
@@ -95,6 +106,16 @@ public class RandomDouble extends Terminal {
 
 	@Override
 	public void evaluate(ReturnData out) {
+		if (out instanceof ReturnColumn) {
+			// A whole column at once, so every result is the value we store
+			ReturnColumn c = (ReturnColumn) out;
+			Arrays.fill(c.values(), 0, c.length(), value);
+			return;
+		}
+		if (out instanceof TreeVisitor) {
+			((TreeVisitor) out).visit(this);
+			return;
+		}
 		// Cast is safe as we specified what type we expect.
 		// The result is simply the value we store
 		((ReturnDouble) out).setValue(value);
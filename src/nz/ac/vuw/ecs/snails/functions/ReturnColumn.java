@@ -0,0 +1,170 @@
+package nz.ac.vuw.ecs.snails.functions;
+
+/*
+ SnailFitter snail fitting library
+ Copyright (C) 2015  Roman Klapaukh
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License along
+ with this program; if not, write to the Free Software Foundation, Inc.,
+ 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import java.util.ArrayDeque;
+
+import nz.ac.vuw.ecs.fgpj.core.ReturnData;
+
+/**
+ * The column equivalent of ReturnDouble. Rather than carrying a single t value
+ * and a single result through the tree, it carries a whole column of t values
+ * and a buffer of results, one per t. Each node computes its output for every
+ * t in one tight loop, so a program is walked once per column instead of once
+ * per sample.
+ *
+ * Functions with more than one child need somewhere to keep the result of the
+ * first child while evaluating the second. Rather than allocating, they call
+ * hold() to take the current buffer and give it back with release() when they
+ * are done. Buffers are recycled, so after the first evaluation of a tree of a
+ * given depth no further allocation happens.
+ *
+ * Like ReturnDouble, an instance must only be used by one thread at a time.
+ *
+ */
+public class ReturnColumn extends ReturnData {
+
+	// The column of input values and the window of it being evaluated
+	private double[] t;
+	private int offset;
+	private int length;
+
+	// The size of every buffer handed out
+	private int capacity;
+
+	// The current result buffer
+	private double[] values;
+
+	// Buffers waiting to be reused
+	private final ArrayDeque<double[]> spare = new ArrayDeque<>();
+
+	/**
+	 * Create a new ReturnColumn that can evaluate up to capacity values at
+	 * once
+	 *
+	 * @param capacity
+	 *            The initial number of values that can be evaluated at once
+	 */
+	public ReturnColumn(int capacity) {
+		// Has the same type as a ReturnDouble, as it is just many of them
+		super(ReturnDouble.TYPENUM);
+		this.capacity = capacity;
+		this.values = new double[capacity];
+	}
+
+	/**
+	 * Set the t values that should be evaluated. The values used are
+	 * t[offset] to t[offset + length - 1]. The array is not copied.
+	 *
+	 * @param t
+	 *            The column of t values
+	 * @param offset
+	 *            The first index to evaluate
+	 * @param length
+	 *            The number of values to evaluate
+	 */
+	public void setT(double[] t, int offset, int length) {
+		if (length > capacity) {
+			// Too big for the existing buffers, so throw them all away
+			capacity = length;
+			values = new double[capacity];
+			spare.clear();
+		}
+		this.t = t;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Set the t values that should be evaluated to the whole of a column
+	 *
+	 * @param t
+	 *            The column of t values
+	 */
+	public void setT(double[] t) {
+		setT(t, 0, t.length);
+	}
+
+	/**
+	 * Get the column of t values. Only indices from getOffset() for length()
+	 * values are being evaluated.
+	 *
+	 * @return The column of t values
+	 */
+	public double[] getT() {
+		return t;
+	}
+
+	/**
+	 * The index of the first t value being evaluated
+	 *
+	 * @return the offset into the t column
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * The number of values being evaluated
+	 *
+	 * @return the number of values
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * The current result buffer. Element i is the result for t[getOffset() +
+	 * i]. Only the first length() values are meaningful.
+	 *
+	 * @return The current results
+	 */
+	public double[] values() {
+		return values;
+	}
+
+	/**
+	 * Take the current result buffer so that it will not be overwritten, and
+	 * replace it with a fresh buffer. The held buffer must be given back with
+	 * release once it is no longer needed.
+	 *
+	 * @return The buffer that was holding the current results
+	 */
+	public double[] hold() {
+		double[] held = values;
+		double[] next = spare.poll();
+		values = next == null ? new double[capacity] : next;
+		return held;
+	}
+
+	/**
+	 * Return a buffer taken with hold so that it can be reused
+	 *
+	 * @param buffer
+	 *            The buffer to give back
+	 */
+	public void release(double[] buffer) {
+		if (buffer.length == capacity) {
+			spare.push(buffer);
+		}
+	}
+
+}
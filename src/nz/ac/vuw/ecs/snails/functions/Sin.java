@@ -19,9 +19,7 @@ package nz.ac.vuw.ecs.snails.functions;
  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
  */
 
-import nz.ac.vuw.ecs.fgpj.core.Function;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
-import nz.ac.vuw.ecs.fgpj.core.ReturnData;
 
 /**
  * Implements a Sin function node for GP with ReturnDoubles. It has one subtree
@@ -30,7 +28,7 @@ import nz.ac.vuw.ecs.fgpj.core.ReturnData;
  * @author Roman Klapaukh
  *
  */
-public class Sin extends Function {
+public class Sin extends DoubleFunction {
 
 	public Sin() {
 		// This node returns a ReturnDouble, has one subtree and is called "Sin"
@@ -48,13 +46,22 @@ public class Sin extends Function {
 	}
 
 	@Override
-	public void evaluate(ReturnData out) {
-		// Cast is safe as we specified our return type
-		ReturnDouble d = (ReturnDouble) out;
+	protected void evaluate(ReturnDouble d) {
 		// Evaluate the subtree
 		getArgN(0).evaluate(d);
 		// Set the result to be sin(subtreeResult)
 		d.setValue(Math.sin(d.value()));
 	}
 
+	@Override
+	protected void evaluate(ReturnColumn c) {
+		// Evaluate the subtree
+		getArgN(0).evaluate(c);
+		// Set each result to be sin(subtreeResult)
+		double[] v = c.values();
+		for (int i = 0; i < c.length(); i++) {
+			v[i] = Math.sin(v[i]);
+		}
+	}
+
 }
@@ -48,6 +48,16 @@ public class T extends Terminal {
 
 	@Override
 	public void evaluate(ReturnData out) {
+		if (out instanceof ReturnColumn) {
+			// A whole column at once, so the result is just the t values
+			ReturnColumn c = (ReturnColumn) out;
+			System.arraycopy(c.getT(), c.getOffset(), c.values(), 0, c.length());
+			return;
+		}
+		if (out instanceof TreeVisitor) {
+			((TreeVisitor) out).visit(this);
+			return;
+		}
 		// Safely can case to ReturnDouble as we specified that is what we
 		// expect
 		ReturnDouble d = (ReturnDouble) out;
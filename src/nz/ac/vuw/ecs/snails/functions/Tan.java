@@ -19,9 +19,7 @@ with this program; if not, write to the Free Software Foundation, Inc.,
 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
 */
 
-import nz.ac.vuw.ecs.fgpj.core.Function;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
-import nz.ac.vuw.ecs.fgpj.core.ReturnData;
 
 /**
  * Implements the Tan function for ReturnDoubles. It computes the tangent of the
@@ -31,7 +29,7 @@ import nz.ac.vuw.ecs.fgpj.core.ReturnData;
  * @author roma
  *
  */
-public class Tan extends Function {
+public class Tan extends DoubleFunction {
 
 	public Tan() {
 		// This Function returns a Return double, has one child and is written
@@ -51,13 +49,22 @@ public class Tan extends Function {
 	}
 
 	@Override
-	public void evaluate(ReturnData out) {
-		// Cast is safe as we specified we are expecting this
-		ReturnDouble d = (ReturnDouble) out;
+	protected void evaluate(ReturnDouble d) {
 		// Evaluate the subtree
 		getArgN(0).evaluate(d);
 		// Set the result to being tan(subtree)
 		d.setValue(Math.tan(d.value()));
 	}
 
+	@Override
+	protected void evaluate(ReturnColumn c) {
+		// Evaluate the subtree
+		getArgN(0).evaluate(c);
+		// Set each result to being tan(subtree)
+		double[] v = c.values();
+		for (int i = 0; i < c.length(); i++) {
+			v[i] = Math.tan(v[i]);
+		}
+	}
+
 }
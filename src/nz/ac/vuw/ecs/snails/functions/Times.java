@@ -19,9 +19,7 @@ with this program; if not, write to the Free Software Foundation, Inc.,
 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
 */
 
-import nz.ac.vuw.ecs.fgpj.core.Function;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
-import nz.ac.vuw.ecs.fgpj.core.ReturnData;
 
 /**
  * This class implements a multiplication function node. It has no state, and
@@ -30,7 +28,7 @@ import nz.ac.vuw.ecs.fgpj.core.ReturnData;
  * @author roma
  *
  */
-public class Times extends Function {
+public class Times extends DoubleFunction {
 
 	public Times() {
 		// This class return a ReturnDouble, it has two children, and it prints
@@ -49,10 +47,7 @@ public class Times extends Function {
 	}
 
 	@Override
-	public void evaluate(ReturnData out) {
-		// Safe as we specified that is the type we expect
-		ReturnDouble d = (ReturnDouble) out;
-
+	protected void evaluate(ReturnDouble d) {
 		// Evaluate the first subtree
 		getArgN(0).evaluate(d);
 		// Save the value of the first tree
@@ -63,4 +58,20 @@ public class Times extends Function {
 		d.setValue(d.value() * d1);
 	}
 
+	@Override
+	protected void evaluate(ReturnColumn c) {
+		// Evaluate the first subtree
+		getArgN(0).evaluate(c);
+		// keep hold of its values
+		double[] d1 = c.hold();
+		// evaluate the second subtree
+		getArgN(1).evaluate(c);
+		// Return the product of the two subtrees
+		double[] v = c.values();
+		for (int i = 0; i < c.length(); i++) {
+			v[i] = v[i] * d1[i];
+		}
+		c.release(d1);
+	}
+
 }
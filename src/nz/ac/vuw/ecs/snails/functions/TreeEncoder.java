@@ -0,0 +1,237 @@
+package nz.ac.vuw.ecs.snails.functions;
+
+/*
+ SnailFitter snail fitting library
+ Copyright (C) 2015  Roman Klapaukh
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License along
+ with this program; if not, write to the Free Software Foundation, Inc.,
+ 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nz.ac.vuw.ecs.fgpj.core.GeneticProgram;
+import nz.ac.vuw.ecs.fgpj.core.Node;
+import nz.ac.vuw.ecs.fgpj.core.Terminal;
+
+/**
+ * Writes programs in a compact binary form. Each node is written as a short
+ * id in post order (the order the visitor sees them), with the raw bits of
+ * every constant straight after its id, and each program ends with END. The
+ * ids index a table of the kinds of node seen (their names, how many
+ * children they have and whether they hold a constant), which has to be
+ * saved along with the programs.
+ *
+ * Nothing is printed, so encoding a program is just one walk of its trees.
+ * Going back the other way, fgpj can only build a program with given trees
+ * by parsing it, so decode turns the ids back into the text parseProgram
+ * reads. Constants are written in full there (rather than to six places as
+ * RandomDouble prints them), so the parsed program is exactly the one that
+ * was encoded.
+ *
+ */
+public class TreeEncoder extends TreeVisitor {
+
+	/**
+	 * Marks the end of a program
+	 */
+	public static final int END = 0xffff;
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final DataOutputStream out = new DataOutputStream(bytes);
+
+	// Every kind of node seen so far, in the order they were first seen
+	private final Map<String, Integer> ids = new HashMap<>();
+	private final List<String> names = new ArrayList<>();
+	private final List<Integer> arities = new ArrayList<>();
+	private final List<Boolean> constants = new ArrayList<>();
+
+	@Override
+	public void visit(Node n) {
+		Integer id = ids.get(n.getName());
+		if (id == null) {
+			id = names.size();
+			ids.put(n.getName(), id);
+			names.add(n.getName());
+			arities.add(arity(n));
+			constants.add(n instanceof RandomDouble);
+		}
+		try {
+			out.writeShort(id);
+			if (n instanceof RandomDouble) {
+				out.writeDouble(((RandomDouble) n).getValue());
+			}
+		} catch (IOException e) {
+			// Can't happen when writing to memory
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static int arity(Node n) {
+		if (n instanceof DoubleFunction) {
+			return ((DoubleFunction) n).arity();
+		}
+		if (n instanceof Terminal) {
+			return 0;
+		}
+		throw new UnsupportedOperationException("Cannot encode node: " + n.getName());
+	}
+
+	/**
+	 * Encode a program
+	 *
+	 * @param p
+	 *            The program
+	 * @param numTrees
+	 *            The number of trees in the program
+	 * @return The encoded program, ids only meaning anything with the table
+	 *         of this encoder
+	 */
+	public byte[] encode(GeneticProgram p, int numTrees) {
+		bytes.reset();
+		// The same visitor walks every tree. Each tree is a whole
+		// expression, so decoding can tell where one ends and the next starts
+		TreeVisitor[] trees = new TreeVisitor[numTrees];
+		for (int i = 0; i < numTrees; i++) {
+			trees[i] = this;
+		}
+		p.evaluate(trees);
+		try {
+			out.writeShort(END);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Write the table of the kinds of node this encoder has seen
+	 *
+	 * @param out
+	 *            Where to write it
+	 * @throws IOException
+	 *             If it can't be written
+	 */
+	public void writeTable(DataOutputStream out) throws IOException {
+		out.writeShort(names.size());
+		for (int i = 0; i < names.size(); i++) {
+			out.writeUTF(names.get(i));
+			out.writeByte(arities.get(i));
+			out.writeBoolean(constants.get(i));
+		}
+	}
+
+	/**
+	 * Read a table written by writeTable
+	 *
+	 * @param in
+	 *            Where to read it from
+	 * @return The table
+	 * @throws IOException
+	 *             If it can't be read
+	 */
+	public static Table readTable(DataInputStream in) throws IOException {
+		int size = in.readUnsignedShort();
+		String[] names = new String[size];
+		int[] arities = new int[size];
+		boolean[] constants = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			names[i] = in.readUTF();
+			arities[i] = in.readUnsignedByte();
+			constants[i] = in.readBoolean();
+		}
+		return new Table(names, arities, constants);
+	}
+
+	/**
+	 * Read one encoded program and turn it into the text
+	 * GeneticProgram.parseProgram reads
+	 *
+	 * @param in
+	 *            Where to read the program from
+	 * @param table
+	 *            The table of the encoder that wrote it
+	 * @param numTrees
+	 *            The number of trees in the program
+	 * @return The text of the program
+	 * @throws IOException
+	 *             If it can't be read or isn't a program of numTrees trees
+	 */
+	public static String decode(DataInputStream in, Table table, int numTrees) throws IOException {
+		// Each finished subtree, as text
+		Deque<String> stack = new ArrayDeque<>();
+		int id;
+		while ((id = in.readUnsignedShort()) != END) {
+			if (id >= table.names.length) {
+				throw new IOException("Unknown node " + id);
+			}
+			String name = table.names[id];
+			int arity = table.arities[id];
+			if (table.constants[id]) {
+				// As RandomDouble.generate reads it, but without rounding
+				stack.push(name + "x" + Double.toString(in.readDouble()));
+			} else if (arity == 0) {
+				stack.push(name);
+			} else {
+				if (stack.size() < arity) {
+					throw new IOException("Too few children for " + name);
+				}
+				String[] children = new String[arity];
+				for (int i = arity - 1; i >= 0; i--) {
+					children[i] = stack.pop();
+				}
+				StringBuilder s = new StringBuilder("( ").append(name);
+				for (String c : children) {
+					s.append(' ').append(c);
+				}
+				stack.push(s.append(" )").toString());
+			}
+		}
+		if (stack.size() != numTrees) {
+			throw new IOException("Expected " + numTrees + " trees but found " + stack.size());
+		}
+
+		// The same layout GeneticProgram prints
+		StringBuilder s = new StringBuilder().append(numTrees);
+		for (int i = 0; i < numTrees; i++) {
+			s.append(" Program").append(i).append(' ').append(stack.removeLast()).append(" |");
+		}
+		return s.toString();
+	}
+
+	/**
+	 * The kinds of node a program was encoded with
+	 */
+	public static class Table {
+		private final String[] names;
+		private final int[] arities;
+		private final boolean[] constants;
+
+		Table(String[] names, int[] arities, boolean[] constants) {
+			this.names = names;
+			this.arities = arities;
+			this.constants = constants;
+		}
+	}
+}
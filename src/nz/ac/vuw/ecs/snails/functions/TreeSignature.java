@@ -0,0 +1,58 @@
+package nz.ac.vuw.ecs.snails.functions;
+
+/*
+ SnailFitter snail fitting library
+ Copyright (C) 2015  Roman Klapaukh
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License along
+ with this program; if not, write to the Free Software Foundation, Inc.,
+ 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import nz.ac.vuw.ecs.fgpj.core.Node;
+
+/**
+ * Builds a string that exactly describes a tree. Two trees have the same
+ * signature if and only if they have the same shape, the same functions at
+ * every node and the same constants, compared bit for bit. It is the tree in
+ * reverse Polish notation, so it can be used as a canonical key for anything
+ * that depends only on what a tree computes.
+ *
+ */
+public class TreeSignature extends TreeVisitor {
+
+	private final StringBuilder signature = new StringBuilder();
+
+	@Override
+	public void visit(Node n) {
+		if (n instanceof RandomDouble) {
+			// The printed form of a constant is rounded, so use the raw bits
+			signature.append('#');
+			signature.append(Long.toHexString(Double.doubleToRawLongBits(((RandomDouble) n).getValue())));
+		} else {
+			signature.append(n.getName());
+		}
+		signature.append(' ');
+	}
+
+	/**
+	 * Get the signature of the tree that was visited
+	 *
+	 * @return The signature of the tree
+	 */
+	public String signature() {
+		return signature.toString();
+	}
+
+}
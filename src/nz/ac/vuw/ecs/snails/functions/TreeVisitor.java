@@ -0,0 +1,54 @@
+package nz.ac.vuw.ecs.snails.functions;
+
+/*
+ SnailFitter snail fitting library
+ Copyright (C) 2015  Roman Klapaukh
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License along
+ with this program; if not, write to the Free Software Foundation, Inc.,
+ 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import nz.ac.vuw.ecs.fgpj.core.Node;
+import nz.ac.vuw.ecs.fgpj.core.ReturnData;
+
+/**
+ * A TreeVisitor can be passed through a program instead of a ReturnDouble to
+ * find out what the program looks like rather than what it computes. Every
+ * node calls visit on the visitor after all of its children have been visited
+ * (a post order walk), so the nodes arrive in the order a stack machine would
+ * need them.
+ *
+ * Going through evaluate means that the visitor sees the tree exactly as the
+ * GP system would run it, and no knowledge of how the trees are stored is
+ * needed.
+ *
+ */
+public abstract class TreeVisitor extends ReturnData {
+
+	public TreeVisitor() {
+		// Stands in for a ReturnDouble so has the same type
+		super(ReturnDouble.TYPENUM);
+	}
+
+	/**
+	 * Called once per node, after all of the node's children have been
+	 * visited
+	 *
+	 * @param n
+	 *            The node being visited
+	 */
+	public abstract void visit(Node n);
+
+}
@@ -0,0 +1,267 @@
+package nz.ac.vuw.ecs.snails.landscape;
+
+import nz.ac.vuw.ecs.snails.reference.ReferenceCurve;
+
+/**
+ * The distance to a reference over the (w, t) plane, with r0, y0 and rc held
+ * fixed. This is the surface DrawSpace draws.
+ *
+ * For a fixed w, with g = w^(theta/2pi), the model is
+ *
+ * <pre>
+ * r = r0 g
+ * y = y0 g + rc t (g - 1)
+ * </pre>
+ *
+ * so r doesn't depend on t and y is affine in it. The squared error is then a
+ * quadratic in t:
+ *
+ * <pre>
+ * E(t) = E* + Q (t - t*)^2
+ * </pre>
+ *
+ * where Q = rc^2 sum (g - 1)^2, t* is the best t for that w, and E* is the
+ * error there. These three numbers (a Column) are worked out in two passes
+ * over the reference, one for t* and one for E*. After that the distance at
+ * any t in the column takes a handful of flops, and the best t needs none.
+ * E* is measured directly rather than found by subtracting large sums, so it
+ * doesn't lose precision near a good fit.
+ *
+ * A W by T grid costs O(W n + W T) rather than O(W T n).
+ *
+ * This class is immutable and thread safe.
+ *
+ */
+public class Landscape {
+
+	private final ReferenceCurve reference;
+	private final double r0;
+	private final double y0;
+	private final double rc;
+
+	// theta / 2pi for every sample
+	private final double[] k;
+
+	/**
+	 * Create a landscape over a reference with the same fixed parameters as
+	 * DrawSpace (r0 = 1, y0 = 0, rc = 1)
+	 *
+	 * @param reference
+	 *            The curve to measure distances to
+	 */
+	public Landscape(ReferenceCurve reference) {
+		this(reference, 1, 0, 1);
+	}
+
+	/**
+	 * Create a landscape over a reference
+	 *
+	 * @param reference
+	 *            The curve to measure distances to
+	 * @param r0
+	 *            The fixed r0
+	 * @param y0
+	 *            The fixed y0
+	 * @param rc
+	 *            The fixed rc
+	 */
+	public Landscape(ReferenceCurve reference, double r0, double y0, double rc) {
+		this.reference = reference;
+		this.r0 = r0;
+		this.y0 = y0;
+		this.rc = rc;
+		k = new double[reference.length];
+		for (int i = 0; i < reference.length; i++) {
+			k[i] = reference.theta[i] / (2.0 * Math.PI);
+		}
+	}
+
+	/**
+	 * @return The curve distances are measured to
+	 */
+	public ReferenceCurve getReference() {
+		return reference;
+	}
+
+	/**
+	 * @return The fixed r0, y0 and rc
+	 */
+	public double[] getFixed() {
+		return new double[] { r0, y0, rc };
+	}
+
+	/**
+	 * Work out everything needed for the distances at one w. This takes two
+	 * passes over the reference.
+	 *
+	 * @param w
+	 *            The w of the column
+	 * @return The column
+	 */
+	public Column column(double w) {
+		int n = reference.length;
+		double[] r = reference.r;
+		double[] y = reference.y;
+
+		// First pass: the least squares fit of the y residual (with t = 0)
+		// against rc (g - 1)
+		double[] g = new double[n];
+		double lnw = Math.log(w);
+		double ah = 0, hh = 0;
+		for (int i = 0; i < n; i++) {
+			// Let pow deal with the special cases, so the answer is the same
+			// as the model
+			g[i] = w > 0 ? Math.exp(lnw * k[i]) : Math.pow(w, k[i]);
+			double h = rc * (g[i] - 1);
+			ah += (y[i] - y0 * g[i]) * h;
+			hh += h * h;
+		}
+
+		// If t makes no difference every t is as good, so pick 0
+		double best = hh > 0 ? ah / hh : 0;
+
+		// Second pass: the error at the best t
+		double rct = rc * best;
+		double error = 0;
+		for (int i = 0; i < n; i++) {
+			double dr = r[i] - r0 * g[i];
+			double dy = y[i] - (y0 * g[i] + rct * (g[i] - 1));
+			error += dr * dr + dy * dy;
+		}
+
+		return new Column(w, best, error, hh);
+	}
+
+	/**
+	 * Work out the distance at every point of a grid. Grid points are
+	 * min + i (max - min) / (steps - 1), so both ends are included.
+	 *
+	 * @param w
+	 *            The w of each column
+	 * @param tMin
+	 *            The smallest t
+	 * @param tMax
+	 *            The largest t
+	 * @param tSteps
+	 *            The number of t values
+	 * @return The distances, indexed by [w index][t index]
+	 */
+	public double[][] grid(double[] w, double tMin, double tMax, int tSteps) {
+		double[][] distances = new double[w.length][];
+		for (int i = 0; i < w.length; i++) {
+			distances[i] = column(w[i]).distances(tMin, tMax, tSteps);
+		}
+		return distances;
+	}
+
+	/**
+	 * The steps of a grid axis, min + i (max - min) / (steps - 1). Working
+	 * these out from the index, rather than adding up a step, means rounding
+	 * never adds or loses a grid line.
+	 *
+	 * @param min
+	 *            The first value
+	 * @param max
+	 *            The last value
+	 * @param steps
+	 *            The number of values
+	 * @return The values
+	 */
+	public static double[] axis(double min, double max, int steps) {
+		double[] values = new double[steps];
+		for (int i = 0; i < steps; i++) {
+			values[i] = at(min, max, steps, i);
+		}
+		return values;
+	}
+
+	/**
+	 * One step of a grid axis, the same as axis(min, max, steps)[i]
+	 */
+	static double at(double min, double max, int steps, int i) {
+		return steps == 1 ? min : min + i * (max - min) / (steps - 1);
+	}
+
+	/**
+	 * The distance to the reference along one line of constant w
+	 */
+	public static class Column {
+		/**
+		 * The w of this column
+		 */
+		public final double w;
+
+		// The best t, the squared error there and the curvature in t
+		private final double bestT;
+		private final double minError;
+		private final double curvature;
+
+		Column(double w, double bestT, double minError, double curvature) {
+			this.w = w;
+			this.bestT = bestT;
+			this.minError = minError;
+			this.curvature = curvature;
+		}
+
+		/**
+		 * The distance at a t. This is the same as RaupState.distanceTo, up
+		 * to rounding.
+		 *
+		 * @param t
+		 *            The t
+		 * @return The distance to the reference
+		 */
+		public double distance(double t) {
+			double d = t - bestT;
+			return Math.sqrt(minError + curvature * d * d);
+		}
+
+		/**
+		 * The distances at evenly spaced values of t, including both ends
+		 *
+		 * @param tMin
+		 *            The smallest t
+		 * @param tMax
+		 *            The largest t
+		 * @param steps
+		 *            The number of t values
+		 * @return The distance at each t
+		 */
+		public double[] distances(double tMin, double tMax, int steps) {
+			double[] t = axis(tMin, tMax, steps);
+			double[] distances = new double[steps];
+			for (int i = 0; i < steps; i++) {
+				distances[i] = distance(t[i]);
+			}
+			return distances;
+		}
+
+		/**
+		 * @return The t with the smallest distance in this column
+		 */
+		public double bestT() {
+			return bestT;
+		}
+
+		/**
+		 * The t with the smallest distance between two limits. As the error
+		 * is a quadratic in t, this is just the best t moved inside them.
+		 *
+		 * @param tMin
+		 *            The smallest t allowed
+		 * @param tMax
+		 *            The largest t allowed
+		 * @return The best t allowed
+		 */
+		public double bestT(double tMin, double tMax) {
+			return Math.max(tMin, Math.min(tMax, bestT));
+		}
+
+		/**
+		 * @return The smallest distance in this column
+		 */
+		public double bestDistance() {
+			return Math.sqrt(minError);
+		}
+	}
+}
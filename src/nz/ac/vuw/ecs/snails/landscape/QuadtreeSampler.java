@@ -0,0 +1,323 @@
+package nz.ac.vuw.ecs.snails.landscape;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Samples a Landscape over a rectangle of (w, t), spending more points where
+ * it is interesting and fewer where it is flat.
+ *
+ * Sampling starts from a coarse grid of cells. The cell that most needs it is
+ * then split into four, over and over, until the point budget runs out. A
+ * cell whose split would need more new points than are left is skipped and
+ * the next one tried, so cells that would add fewer still get split. How
+ * much a cell needs splitting is how much log(1 + distance) changes across
+ * its corners, plus a bonus if the valley floor (the best t for each w, which
+ * Landscape works out exactly) runs through it, as that is where the minima
+ * are.
+ *
+ * All points lie on an integer lattice, maxDepth halvings finer than the
+ * starting grid, so neighbouring cells share their corner points and no
+ * point is worked out twice. The lattice also keeps rounding from ever
+ * moving a point. Only distinct points count toward the budget.
+ *
+ * An instance can only be used by one thread at a time.
+ *
+ */
+public class QuadtreeSampler {
+
+	// How much a cell with the valley running through it is favoured, in
+	// the same units as the change in log(1 + distance)
+	private static final double VALLEY_BONUS = 1;
+
+	// The lattice has to fit in an int
+	private static final int LATTICE_BITS = 30;
+
+	private final Landscape landscape;
+	private final double wMin;
+	private final double wMax;
+	private final double tMin;
+	private final double tMax;
+	private final int rootCells;
+	private final int maxDepth;
+	private final boolean logW;
+
+	// The size of a lattice step (in log w if logW)
+	private final double dw;
+	private final double dt;
+
+	// Everything worked out so far, by lattice position
+	private final Map<Integer, Landscape.Column> columns = new HashMap<>();
+	private final Map<Long, Double> points = new LinkedHashMap<>();
+
+	/**
+	 * Create a new sampler
+	 *
+	 * @param landscape
+	 *            The landscape to sample
+	 * @param wMin
+	 *            The smallest w
+	 * @param wMax
+	 *            The largest w
+	 * @param tMin
+	 *            The smallest t
+	 * @param tMax
+	 *            The largest t
+	 * @param rootCells
+	 *            The number of cells along each side of the starting grid
+	 * @param logW
+	 *            Whether to space the cells evenly in log w rather than w.
+	 *            As w is a rate of growth, the landscape changes about as
+	 *            much from 1 to 10 as from 1000 to 10000, and a basin only a
+	 *            few units wide can be found in a range thousands wide.
+	 */
+	public QuadtreeSampler(Landscape landscape, double wMin, double wMax, double tMin, double tMax, int rootCells,
+			boolean logW) {
+		if (rootCells < 1) {
+			throw new IllegalArgumentException("There must be at least one starting cell");
+		}
+		if (logW && !(wMin > 0)) {
+			throw new IllegalArgumentException("w must be positive to be spaced in log w");
+		}
+		this.landscape = landscape;
+		this.wMin = wMin;
+		this.wMax = wMax;
+		this.tMin = tMin;
+		this.tMax = tMax;
+		this.rootCells = rootCells;
+		int rootBits = 32 - Integer.numberOfLeadingZeros(rootCells);
+		this.maxDepth = Math.max(0, Math.min(20, LATTICE_BITS - rootBits));
+		this.logW = logW;
+		this.dw = (logW ? Math.log(wMax / wMin) : wMax - wMin) / ((long) rootCells << maxDepth);
+		this.dt = (tMax - tMin) / ((long) rootCells << maxDepth);
+	}
+
+	/**
+	 * Sample the landscape
+	 *
+	 * @param budget
+	 *            The most distinct points to work out. This must be at least
+	 *            enough for the starting grid.
+	 * @return The cells (which cover the whole rectangle without overlapping)
+	 *         and every point worked out
+	 */
+	public Result sample(int budget) {
+		int rootPoints = (rootCells + 1) * (rootCells + 1);
+		if (budget < rootPoints) {
+			throw new IllegalArgumentException("A budget of " + budget + " can't cover the " + rootPoints
+					+ " points of the starting grid");
+		}
+		columns.clear();
+		points.clear();
+
+		PriorityQueue<Cell> queue = new PriorityQueue<>((a, b) -> Double.compare(b.priority, a.priority));
+		List<Cell> finished = new ArrayList<>();
+		int size = 1 << maxDepth;
+		for (int i = 0; i < rootCells; i++) {
+			for (int j = 0; j < rootCells; j++) {
+				Cell root = cell(i * size, j * size, size, 0);
+				if (maxDepth == 0) {
+					finished.add(root);
+				} else {
+					queue.add(root);
+				}
+			}
+		}
+
+		while (!queue.isEmpty()) {
+			Cell c = queue.poll();
+			if (points.size() + missing(c) > budget) {
+				// Too dear, but a cell that shares more of its points with
+				// cells already split may still fit
+				finished.add(c);
+				continue;
+			}
+			int half = c.size / 2;
+			for (int di = 0; di < 2; di++) {
+				for (int dj = 0; dj < 2; dj++) {
+					Cell child = cell(c.i + di * half, c.j + dj * half, half, c.depth + 1);
+					if (child.depth == maxDepth) {
+						finished.add(child);
+					} else {
+						queue.add(child);
+					}
+				}
+			}
+		}
+
+		int n = points.size();
+		double[] w = new double[n];
+		double[] t = new double[n];
+		double[] distance = new double[n];
+		int k = 0;
+		for (Map.Entry<Long, Double> e : points.entrySet()) {
+			w[k] = w((int) (e.getKey() >>> 32));
+			t[k] = t((int) (long) e.getKey());
+			distance[k] = e.getValue();
+			k++;
+		}
+		return new Result(finished, w, t, distance);
+	}
+
+	/**
+	 * Make a cell, working out any of its corners not already known
+	 */
+	private Cell cell(int i, int j, int size, int depth) {
+		double[] d = { point(i, j), point(i, j + size), point(i + size, j), point(i + size, j + size) };
+
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for (double v : d) {
+			double l = Math.log1p(v);
+			min = Math.min(min, l);
+			max = Math.max(max, l);
+		}
+		// A corner that isn't a number is as interesting as it gets
+		double priority = max - min;
+		if (Double.isNaN(priority)) {
+			priority = Double.POSITIVE_INFINITY;
+		}
+
+		// Does the valley floor cross the cell?
+		double left = column(i).bestT();
+		double right = column(i + size).bestT();
+		if (Math.max(left, right) >= t(j) && Math.min(left, right) <= t(j + size)) {
+			priority += VALLEY_BONUS;
+		}
+
+		return new Cell(i, j, size, depth, d, priority);
+	}
+
+	/**
+	 * The number of points splitting a cell would need that aren't known yet
+	 */
+	private int missing(Cell c) {
+		int half = c.size / 2;
+		int count = 0;
+		int[][] needed = { { 1, 1 }, { 0, 1 }, { 1, 0 }, { 2, 1 }, { 1, 2 } };
+		for (int[] p : needed) {
+			if (!points.containsKey(key(c.i + p[0] * half, c.j + p[1] * half))) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private double point(int i, int j) {
+		return points.computeIfAbsent(key(i, j), k -> column(i).distance(t(j)));
+	}
+
+	private Landscape.Column column(int i) {
+		return columns.computeIfAbsent(i, k -> landscape.column(w(i)));
+	}
+
+	private static long key(int i, int j) {
+		return ((long) i << 32) | (j & 0xffffffffL);
+	}
+
+	private double w(int i) {
+		// The far edge is exactly wMax, not something rounded near it
+		if (i == (rootCells << maxDepth)) {
+			return wMax;
+		}
+		return logW ? wMin * Math.exp(i * dw) : wMin + i * dw;
+	}
+
+	private double t(int j) {
+		return j == (rootCells << maxDepth) ? tMax : tMin + j * dt;
+	}
+
+	/**
+	 * Write cells as CSV, one row per cell with its bounds, depth and the
+	 * distance at each corner
+	 *
+	 * @param cells
+	 *            The cells to write
+	 * @param out
+	 *            Where to write them
+	 */
+	public static void writeCsv(List<Cell> cells, PrintStream out) {
+		out.println("wMin,wMax,tMin,tMax,depth,d00,d01,d10,d11");
+		for (Cell c : cells) {
+			out.println(c.wMin() + "," + c.wMax() + "," + c.tMin() + "," + c.tMax() + "," + c.depth + ","
+					+ c.distance[0] + "," + c.distance[1] + "," + c.distance[2] + "," + c.distance[3]);
+		}
+	}
+
+	/**
+	 * A rectangle of the landscape that wasn't split any further
+	 */
+	public class Cell {
+		// Lattice position and size
+		private final int i;
+		private final int j;
+		private final int size;
+
+		/**
+		 * How many times the starting cell was split to make this one
+		 */
+		public final int depth;
+
+		/**
+		 * The distance at each corner: (wMin, tMin), (wMin, tMax), (wMax,
+		 * tMin), (wMax, tMax)
+		 */
+		public final double[] distance;
+
+		// How much the cell needs splitting
+		private final double priority;
+
+		Cell(int i, int j, int size, int depth, double[] distance, double priority) {
+			this.i = i;
+			this.j = j;
+			this.size = size;
+			this.depth = depth;
+			this.distance = distance;
+			this.priority = priority;
+		}
+
+		public double wMin() {
+			return w(i);
+		}
+
+		public double wMax() {
+			return w(i + size);
+		}
+
+		public double tMin() {
+			return t(j);
+		}
+
+		public double tMax() {
+			return t(j + size);
+		}
+	}
+
+	/**
+	 * The result of sampling a landscape
+	 */
+	public static class Result {
+		/**
+		 * The cells, which between them cover the rectangle sampled
+		 */
+		public final List<Cell> cells;
+
+		/**
+		 * Every point worked out: its w, t and distance
+		 */
+		public final double[] w;
+		public final double[] t;
+		public final double[] distance;
+
+		public Result(List<Cell> cells, double[] w, double[] t, double[] distance) {
+			this.cells = cells;
+			this.w = w;
+			this.t = t;
+			this.distance = distance;
+		}
+	}
+}
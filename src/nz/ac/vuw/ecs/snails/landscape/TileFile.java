@@ -0,0 +1,491 @@
+package nz.ac.vuw.ecs.snails.landscape;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Landscape worked out on an even grid and kept in a memory mapped file, so
+ * a sweep can be far larger than the heap and never has to be worked out
+ * twice.
+ *
+ * The grid is resolution by resolution points over a rectangle of (w, t),
+ * the same points as Landscape.axis. It is stored as square tiles of
+ * distances (as floats), tileSize points on a side. On top of that is a
+ * pyramid of coarser levels: level l holds every 2^l-th point of the full
+ * grid, up to the first level that fits in a single tile. The coarse levels
+ * are cheap, so they can be drawn first while the finer ones are still being
+ * worked out, and a zoomed out view never needs to read the full grid.
+ *
+ * The file starts with a header holding the rectangle, the resolution, the
+ * tile size, the fixed parameters of the landscape and the content hash of
+ * the reference, followed by a flag for each tile saying whether it has been
+ * worked out. Opening a file whose header matches carries on with the tiles
+ * already in it; any other file is started again from scratch.
+ *
+ * Tiles are worked out a strip (a column of tiles of the same w) at a time,
+ * so each Landscape column is only worked out once per strip. Strips are
+ * written straight into the file as they finish. Each tile is forced to disk
+ * before its flag is set, so even a power cut can lose tiles but never leave
+ * one flagged as done without its distances. Different tiles can be worked
+ * out and read by different threads at the same time.
+ *
+ */
+public class TileFile implements Closeable {
+
+	/**
+	 * The default number of points along each side of a tile
+	 */
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	// Identifies a tile file, and its layout
+	private static final int MAGIC = 0x534e4c54;
+	private static final int VERSION = 1;
+
+	// magic, version, hash, 7 doubles and 3 ints
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 7 * 8 + 3 * 4;
+
+	// Tiles start on a page boundary
+	private static final int PAGE = 4096;
+
+	private final Landscape landscape;
+	private final double wMin;
+	private final double wMax;
+	private final double tMin;
+	private final double tMax;
+	private final int resolution;
+	private final int tileSize;
+	private final int levels;
+
+	// Where each level's flags (in flags) and tiles (in the file) start
+	private final int[] flagStart;
+	private final long[] levelStart;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final MappedByteBuffer flags;
+
+	private final AtomicInteger computed = new AtomicInteger();
+
+	/**
+	 * Open a tile file, or make a new one if it doesn't exist or was made for
+	 * something else
+	 *
+	 * @param file
+	 *            The file
+	 * @param landscape
+	 *            The landscape the tiles hold
+	 * @param wMin
+	 *            The smallest w
+	 * @param wMax
+	 *            The largest w
+	 * @param tMin
+	 *            The smallest t
+	 * @param tMax
+	 *            The largest t
+	 * @param resolution
+	 *            The number of grid points along each side of the full grid
+	 * @param tileSize
+	 *            The number of grid points along each side of a tile
+	 * @throws IOException
+	 *             If the file can't be opened or made
+	 */
+	public TileFile(File file, Landscape landscape, double wMin, double wMax, double tMin, double tMax,
+			int resolution, int tileSize) throws IOException {
+		if (resolution < 2 || tileSize < 1) {
+			throw new IllegalArgumentException("A grid needs at least two points a side, and a tile one");
+		}
+		this.landscape = landscape;
+		this.wMin = wMin;
+		this.wMax = wMax;
+		this.tMin = tMin;
+		this.tMax = tMax;
+		this.resolution = resolution;
+		this.tileSize = tileSize;
+
+		int l = 1;
+		while (resolution(l - 1) > tileSize) {
+			l++;
+		}
+		this.levels = l;
+
+		flagStart = new int[levels];
+		int flagCount = 0;
+		for (int i = 0; i < levels; i++) {
+			flagStart[i] = flagCount;
+			flagCount += tiles(i) * tiles(i);
+		}
+		levelStart = new long[levels];
+		long offset = (HEADER_SIZE + flagCount + PAGE - 1) / PAGE * PAGE;
+		for (int i = 0; i < levels; i++) {
+			levelStart[i] = offset;
+			offset += (long) tiles(i) * tiles(i) * tileBytes();
+		}
+
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		ByteBuffer header = header();
+		boolean matches = raf.length() == offset;
+		if (matches) {
+			ByteBuffer existing = ByteBuffer.allocate(HEADER_SIZE);
+			channel.read(existing, 0);
+			existing.flip();
+			matches = existing.equals(header);
+		}
+		if (!matches) {
+			// Everything is thrown away. Growing the file again leaves it
+			// sparse, so tiles that are never worked out take no space.
+			raf.setLength(0);
+			raf.setLength(offset);
+			channel.write(header, 0);
+		}
+		flags = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, flagCount);
+	}
+
+	/**
+	 * The header a file for this landscape must have
+	 */
+	private ByteBuffer header() {
+		ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
+		b.putInt(MAGIC);
+		b.putInt(VERSION);
+		b.putLong(landscape.getReference().contentHash());
+		for (double f : landscape.getFixed()) {
+			b.putDouble(f);
+		}
+		b.putDouble(wMin);
+		b.putDouble(wMax);
+		b.putDouble(tMin);
+		b.putDouble(tMax);
+		b.putInt(resolution);
+		b.putInt(tileSize);
+		b.putInt(levels);
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * @return The number of levels, the coarsest being levels() - 1
+	 */
+	public int levels() {
+		return levels;
+	}
+
+	/**
+	 * @param level
+	 *            The level
+	 * @return The number of grid points along each side of a level
+	 */
+	public int resolution(int level) {
+		return ((resolution - 1) >> level) + 1;
+	}
+
+	/**
+	 * @param level
+	 *            The level
+	 * @return The number of tiles along each side of a level
+	 */
+	public int tiles(int level) {
+		return (resolution(level) + tileSize - 1) / tileSize;
+	}
+
+	/**
+	 * @return The number of grid points along each side of a tile
+	 */
+	public int tileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * The w of a grid point of a level
+	 *
+	 * @param level
+	 *            The level
+	 * @param i
+	 *            The index of the point along the w side
+	 * @return Its w
+	 */
+	public double w(int level, int i) {
+		return Landscape.at(wMin, wMax, resolution, i << level);
+	}
+
+	/**
+	 * The t of a grid point of a level
+	 *
+	 * @param level
+	 *            The level
+	 * @param j
+	 *            The index of the point along the t side
+	 * @return Its t
+	 */
+	public double t(int level, int j) {
+		return Landscape.at(tMin, tMax, resolution, j << level);
+	}
+
+	/**
+	 * Whether a tile has been worked out
+	 *
+	 * @param level
+	 *            The level
+	 * @param tw
+	 *            The index of the tile along the w side
+	 * @param tt
+	 *            The index of the tile along the t side
+	 * @return true if it is in the file
+	 */
+	public boolean has(int level, int tw, int tt) {
+		return flags.get(flag(level, tw, tt)) != 0;
+	}
+
+	/**
+	 * @return How many tiles this has worked out (rather than found in the
+	 *         file)
+	 */
+	public int getComputed() {
+		return computed.get();
+	}
+
+	/**
+	 * Make sure every tile of a level that covers part of a rectangle is in
+	 * the file, working out any that aren't. Each strip of tiles is worked
+	 * out as a single task on the pool.
+	 *
+	 * @param level
+	 *            The level
+	 * @param wLo
+	 *            The smallest w needed
+	 * @param wHi
+	 *            The largest w needed
+	 * @param tLo
+	 *            The smallest t needed
+	 * @param tHi
+	 *            The largest t needed
+	 * @param pool
+	 *            The pool to work the tiles out on
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 * @throws IOException
+	 *             If a tile can't be written
+	 */
+	public void fill(int level, double wLo, double wHi, double tLo, double tHi, ExecutorService pool)
+			throws InterruptedException, IOException {
+		int[] tw = tileRange(level, wLo, wHi, wMin, wMax);
+		int[] tt = tileRange(level, tLo, tHi, tMin, tMax);
+
+		List<Future<?>> strips = new ArrayList<>();
+		for (int i = tw[0]; i <= tw[1]; i++) {
+			int strip = i;
+			for (int j = tt[0]; j <= tt[1]; j++) {
+				if (!has(level, strip, j)) {
+					strips.add(pool.submit(() -> {
+						computeStrip(level, strip, tt[0], tt[1]);
+						return null;
+					}));
+					break;
+				}
+			}
+		}
+		for (Future<?> f : strips) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Make sure every tile of a level is in the file
+	 *
+	 * @param level
+	 *            The level
+	 * @param pool
+	 *            The pool to work the tiles out on
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 * @throws IOException
+	 *             If a tile can't be written
+	 */
+	public void fill(int level, ExecutorService pool) throws InterruptedException, IOException {
+		fill(level, wMin, wMax, tMin, tMax, pool);
+	}
+
+	/**
+	 * Work out the missing tiles of one strip between two tile rows
+	 */
+	private void computeStrip(int level, int tw, int ttLo, int ttHi) throws IOException {
+		int n = resolution(level);
+		int i0 = tw * tileSize;
+		int width = Math.min(tileSize, n - i0);
+		Landscape.Column[] columns = new Landscape.Column[width];
+		for (int i = 0; i < width; i++) {
+			columns[i] = landscape.column(w(level, i0 + i));
+		}
+
+		for (int tt = ttLo; tt <= ttHi; tt++) {
+			if (has(level, tw, tt)) {
+				continue;
+			}
+			int j0 = tt * tileSize;
+			int height = Math.min(tileSize, n - j0);
+			double[] t = new double[height];
+			for (int j = 0; j < height; j++) {
+				t[j] = t(level, j0 + j);
+			}
+
+			MappedByteBuffer bytes = map(level, tw, tt, FileChannel.MapMode.READ_WRITE);
+			FloatBuffer tile = bytes.asFloatBuffer();
+			for (int i = 0; i < width; i++) {
+				for (int j = 0; j < height; j++) {
+					tile.put(i * tileSize + j, (float) columns[i].distance(t[j]));
+				}
+			}
+			// Only counts as done once the distances are on disk, so even
+			// after a power cut a tile is never marked done without them
+			bytes.force();
+			flags.put(flag(level, tw, tt), (byte) 1);
+			computed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Read the grid points of a level inside a rectangle. Points in tiles
+	 * that haven't been worked out are left out.
+	 *
+	 * @param level
+	 *            The level
+	 * @param wLo
+	 *            The smallest w
+	 * @param wHi
+	 *            The largest w
+	 * @param tLo
+	 *            The smallest t
+	 * @param tHi
+	 *            The largest t
+	 * @return The w, t and distance of each point
+	 * @throws IOException
+	 *             If a tile can't be read
+	 */
+	public double[][] read(int level, double wLo, double wHi, double tLo, double tHi) throws IOException {
+		int[] iw = pointRange(level, wLo, wHi, wMin, wMax);
+		int[] jt = pointRange(level, tLo, tHi, tMin, tMax);
+		int count = Math.max(0, iw[1] - iw[0] + 1) * Math.max(0, jt[1] - jt[0] + 1);
+		double[] w = new double[count];
+		double[] t = new double[count];
+		double[] d = new double[count];
+
+		int k = 0;
+		for (int tw = iw[0] / tileSize; tw <= iw[1] / tileSize && iw[0] <= iw[1]; tw++) {
+			for (int tt = jt[0] / tileSize; tt <= jt[1] / tileSize && jt[0] <= jt[1]; tt++) {
+				if (!has(level, tw, tt)) {
+					continue;
+				}
+				FloatBuffer tile = map(level, tw, tt, FileChannel.MapMode.READ_ONLY).asFloatBuffer();
+				int iLo = Math.max(iw[0], tw * tileSize), iHi = Math.min(iw[1], (tw + 1) * tileSize - 1);
+				int jLo = Math.max(jt[0], tt * tileSize), jHi = Math.min(jt[1], (tt + 1) * tileSize - 1);
+				for (int i = iLo; i <= iHi; i++) {
+					for (int j = jLo; j <= jHi; j++) {
+						w[k] = w(level, i);
+						t[k] = t(level, j);
+						d[k] = tile.get((i - tw * tileSize) * tileSize + (j - tt * tileSize));
+						k++;
+					}
+				}
+			}
+		}
+		if (k < count) {
+			w = Arrays.copyOf(w, k);
+			t = Arrays.copyOf(t, k);
+			d = Arrays.copyOf(d, k);
+		}
+		return new double[][] { w, t, d };
+	}
+
+	/**
+	 * The finest level that has at most a number of points inside a
+	 * rectangle, for drawing a view without reading more than can be shown
+	 *
+	 * @param wLo
+	 *            The smallest w
+	 * @param wHi
+	 *            The largest w
+	 * @param tLo
+	 *            The smallest t
+	 * @param tHi
+	 *            The largest t
+	 * @param maxPoints
+	 *            The most points wanted
+	 * @return The level
+	 */
+	public int levelFor(double wLo, double wHi, double tLo, double tHi, long maxPoints) {
+		for (int level = 0; level < levels - 1; level++) {
+			int[] iw = pointRange(level, wLo, wHi, wMin, wMax);
+			int[] jt = pointRange(level, tLo, tHi, tMin, tMax);
+			long count = (long) Math.max(0, iw[1] - iw[0] + 1) * Math.max(0, jt[1] - jt[0] + 1);
+			if (count <= maxPoints) {
+				return level;
+			}
+		}
+		return levels - 1;
+	}
+
+	/**
+	 * The first and last grid points of a level between two values
+	 */
+	private int[] pointRange(int level, double lo, double hi, double min, double max) {
+		int n = resolution(level);
+		double step = (max - min) / (resolution - 1) * (1 << level);
+		int first = (int) Math.max(0, Math.ceil((lo - min) / step - 1e-9));
+		int last = (int) Math.min(n - 1, Math.floor((hi - min) / step + 1e-9));
+		return new int[] { first, last };
+	}
+
+	/**
+	 * The first and last tiles of a level with points between two values
+	 */
+	private int[] tileRange(int level, double lo, double hi, double min, double max) {
+		int[] points = pointRange(level, lo, hi, min, max);
+		if (points[0] > points[1]) {
+			return new int[] { 0, -1 };
+		}
+		return new int[] { points[0] / tileSize, points[1] / tileSize };
+	}
+
+	private int flag(int level, int tw, int tt) {
+		return flagStart[level] + tw * tiles(level) + tt;
+	}
+
+	private long tileBytes() {
+		return (long) tileSize * tileSize * Float.BYTES;
+	}
+
+	private MappedByteBuffer map(int level, int tw, int tt, FileChannel.MapMode mode) throws IOException {
+		long position = levelStart[level] + ((long) tw * tiles(level) + tt) * tileBytes();
+		return channel.map(mode, position, tileBytes());
+	}
+
+	/**
+	 * Write everything out and close the file
+	 */
+	@Override
+	public void close() throws IOException {
+		flags.force();
+		channel.force(true);
+		raf.close();
+	}
+}
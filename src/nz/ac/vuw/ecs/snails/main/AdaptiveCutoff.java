@@ -0,0 +1,56 @@
+package nz.ac.vuw.ecs.snails.main;
+
+import nz.ac.vuw.ecs.fgpj.core.ConfigModifier;
+import nz.ac.vuw.ecs.fgpj.core.GPConfig;
+import nz.ac.vuw.ecs.fgpj.core.GeneticProgram;
+import nz.ac.vuw.ecs.fgpj.core.Population;
+
+/**
+ * Refreshes the early abandoning cutoff of a SnailFitness every generation.
+ * The cutoff is set to a multiple of the error of the best program so far.
+ * Anything that much worse than the best is not going to win a tournament, so
+ * there is no point finishing its evaluation.
+ *
+ * As there is only one ConfigModifier per run, another modifier (such as a
+ * ProgressTracker) can be given to be run after this one.
+ *
+ */
+public class AdaptiveCutoff implements ConfigModifier {
+
+	private final SnailFitness sfit;
+	private final double factor;
+	private final ConfigModifier next;
+
+	/**
+	 * Create a new AdaptiveCutoff.
+	 *
+	 * @param sfit
+	 *            The fitness function to set the cutoff of
+	 * @param factor
+	 *            How many times worse than the best a program can be before
+	 *            it is abandoned
+	 * @param next
+	 *            Another ConfigModifier to run afterwards, or null
+	 */
+	public AdaptiveCutoff(SnailFitness sfit, double factor, ConfigModifier next) {
+		this.sfit = sfit;
+		this.factor = factor;
+		this.next = next;
+	}
+
+	@Override
+	public void ModifyConfig(GPConfig g, Population pop) {
+		GeneticProgram best = pop.getBest();
+		double fitness = best.getFitness();
+		// The best could itself have been abandoned or be infinite in the
+		// very first generation, in which case there is nothing to go on yet
+		if (fitness != SnailFitness.ABANDONED && !Double.isInfinite(fitness) && !Double.isNaN(fitness)) {
+			sfit.setCutoff(fitness * factor);
+		}
+
+		if (next != null) {
+			next.ModifyConfig(g, pop);
+		}
+	}
+
+}
@@ -3,50 +3,96 @@ package nz.ac.vuw.ecs.snails.main;
 import java.awt.Color;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
-import java.util.concurrent.ExecutionException;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 
 import org.math.plot.Plot3DPanel;
 
-import javafx.geometry.Point3D;
-import nz.ac.vuw.ecs.snails.sa.RaupState;
+import nz.ac.vuw.ecs.snails.landscape.Landscape;
+import nz.ac.vuw.ecs.snails.landscape.QuadtreeSampler;
+import nz.ac.vuw.ecs.snails.landscape.TileFile;
+import nz.ac.vuw.ecs.snails.reference.ReferenceCurve;
 
 public class DrawSpace {
 
+	// The most points to draw at once
+	private static final long MAX_POINTS = 250000;
+
 	public static void main(String[] args) {
-		if (args.length < 1 || args.length > 2) {
-			System.err.println("Usage:");
-			System.err.println("java -jar sa.jar <targetFilename> number");
-			System.exit(-1);
+		if (args.length < 2) {
+			usage();
 		}
 
 		String filename = args[0];
 		int numberOfRuns = Integer.parseInt(args[1]);
 
-		final List<Point3D> values = new ArrayList<>();
+		// With a budget, numberOfRuns is the size of the starting grid, and
+		// cells are split where the landscape is interesting until the budget
+		// is used up
+		int budget = 0;
+		File csv = null;
+
+		// Otherwise the even grid is kept in a tile file, and only the part
+		// in view is worked out and drawn
+		File tileFile = new File(filename + ".tiles");
+		double[] view = null;
+		for (int i = 2; i < args.length; i++) {
+			switch (args[i]) {
+			case "--adaptive":
+				if (++i == args.length) {
+					usage();
+				}
+				budget = Integer.parseInt(args[i]);
+				break;
+			case "--csv":
+				// Write the adaptive cells here
+				if (++i == args.length) {
+					usage();
+				}
+				csv = new File(args[i]);
+				break;
+			case "--tiles":
+				// Where to keep the grid
+				if (++i == args.length) {
+					usage();
+				}
+				tileFile = new File(args[i]);
+				break;
+			case "--view":
+				// Zoom in on wMin wMax tMin tMax
+				if (i + 4 >= args.length) {
+					usage();
+				}
+				view = new double[4];
+				for (int v = 0; v < 4; v++) {
+					view[v] = Double.parseDouble(args[++i]);
+				}
+				break;
+			default:
+				System.err.println("Unsupported argument: " + args[i]);
+				usage();
+			}
+		}
+
+		ReferenceCurve reference = null;
 
 		try {
-			Scanner scan = new Scanner(new File(filename));
-			while (scan.hasNext()) {
-				values.add(new Point3D(scan.nextDouble(), scan.nextDouble(), scan.nextDouble()));
-			}
-			scan.close();
-		} catch (FileNotFoundException e) {
+			reference = ReferenceCurve.fromFile(new File(filename));
+		} catch (IOException e) {
 			System.err.println("Failed to read in reference model file");
 			e.printStackTrace();
 			System.exit(-1);
 		}
 
-		ExecutorService threadPool = Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors());
+		final ReferenceCurve values = reference;
 
-		List<Future<Point3D>> results = new ArrayList<>();
+		// r0 = 1, y0 = 0, rc = 1
+		Landscape landscape = new Landscape(values);
 
 		double wMin = 1;
 		double wMax = 10000;
@@ -54,46 +100,87 @@ public class DrawSpace {
 		double tMin = 0;
 		double tMax = 4;
 
-		for (double w = wMin; w <= wMax; w += (wMax - wMin) / numberOfRuns) {
-			for (double t = tMin; t <= tMax; t += (tMax - tMin) / numberOfRuns) {
-				final double wf = w;
-				final double tf = t;
-				results.add(threadPool.submit(() -> {
-					RaupState s = new RaupState(1, 0, 1, wf, tf);
-					return new Point3D(wf, tf, s.distanceTo(values));
-				}));
-			}
+		if (view == null) {
+			view = new double[] { wMin, wMax, tMin, tMax };
 		}
 
-		threadPool.shutdown();
-		
 		Plot3DPanel plot = new Plot3DPanel();
-		double[] x = new double[results.size()];
-		double[] y = new double[results.size()];
-		double[] z = new double[results.size()];
-
-		int i = 0;
-		for (Future<Point3D> s : results) {
-			try {
-				Point3D pi = s.get();
-				x[i] = pi.getX();
-				y[i] = pi.getY();
-				z[i] = pi.getZ() < 1 ? pi.getZ():Math.log(pi.getZ());
-				i++;
-			} catch (InterruptedException | ExecutionException e) {
-				e.printStackTrace();
-			}
-		}
-
-		// add the reference curve
-		plot.addScatterPlot("Reference", Color.BLUE, x, y, z);
-		
 		JFrame frame = new JFrame("Snail Hugging Progress");
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		frame.setContentPane(plot);
 		frame.setSize(1000, 800);
 		frame.setVisible(true);
-		
+
+		if (budget > 0) {
+			QuadtreeSampler sampler = new QuadtreeSampler(landscape, wMin, wMax, tMin, tMax, numberOfRuns, true);
+			QuadtreeSampler.Result result = sampler.sample(budget);
+			System.out.println(result.w.length + " points in " + result.cells.size() + " cells");
+
+			if (csv != null) {
+				try (PrintStream out = new PrintStream(csv)) {
+					QuadtreeSampler.writeCsv(result.cells, out);
+				} catch (FileNotFoundException e) {
+					System.err.println("Failed to write " + csv);
+					e.printStackTrace();
+				}
+			}
+
+			draw(plot, new double[][] { result.w, result.t, result.distance });
+			return;
+		}
+
+		ExecutorService threadPool = Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors());
+		try (TileFile tiles = new TileFile(tileFile, landscape, wMin, wMax, tMin, tMax, numberOfRuns + 1,
+				TileFile.DEFAULT_TILE_SIZE)) {
+			// Work down the pyramid, drawing each level as it is finished
+			// until there are more points than are worth drawing. Nothing is
+			// worked out that is already in the file.
+			int shown = tiles.levelFor(view[0], view[1], view[2], view[3], MAX_POINTS);
+			for (int level = tiles.levels() - 1; level >= 0; level--) {
+				int before = tiles.getComputed();
+				tiles.fill(level, view[0], view[1], view[2], view[3], threadPool);
+				System.out.println("Level " + level + ": " + (tiles.getComputed() - before) + " tiles worked out");
+				if (level >= shown) {
+					draw(plot, tiles.read(level, view[0], view[1], view[2], view[3]));
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to use tile file " + tileFile);
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		threadPool.shutdown();
+	}
+
+	/**
+	 * Replace what the plot shows with a set of points, drawing the log of
+	 * the distance
+	 *
+	 * @param plot
+	 *            The plot to draw on
+	 * @param points
+	 *            The w, t and distance of each point
+	 */
+	private static void draw(Plot3DPanel plot, double[][] points) {
+		double[][] xyz = new double[points[0].length][3];
+		for (int i = 0; i < xyz.length; i++) {
+			double d = points[2][i];
+			xyz[i][0] = points[0][i];
+			xyz[i][1] = points[1][i];
+			xyz[i][2] = d < 1 ? d : Math.log(d);
+		}
+		SwingUtilities.invokeLater(() -> {
+			plot.removeAllPlots();
+			plot.addScatterPlot("Landscape", Color.BLUE, xyz);
+		});
+	}
+
+	private static void usage() {
+		System.err.println("Usage:");
+		System.err.println("java -jar sa.jar <targetFilename> number [--adaptive budget [--csv cells.csv]]");
+		System.err.println("    [--tiles file] [--view wMin wMax tMin tMax]");
+		System.exit(-1);
 	}
 
 }
@@ -0,0 +1,123 @@
+package nz.ac.vuw.ecs.snails.main;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of fitness values, keyed on the structure of the program.
+ * When it is full the least recently used entry is thrown away. Every lookup
+ * is counted, so the hit rate of a run can be reported.
+ *
+ * This class is thread safe, so a single cache can be shared by all the
+ * threads of a ParallelFitness.
+ *
+ */
+public class FitnessCache {
+
+	private final Map<ProgramKey, Double> cache;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Create a cache that holds up to capacity fitness values
+	 *
+	 * @param capacity
+	 *            The maximum number of entries
+	 */
+	public FitnessCache(final int capacity) {
+		// Access ordered, so the eldest entry is the least recently used
+		cache = new LinkedHashMap<ProgramKey, Double>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ProgramKey, Double> eldest) {
+				if (size() > capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Look up the fitness of a program
+	 *
+	 * @param key
+	 *            The key of the program
+	 * @return The fitness, or null if it is not in the cache
+	 */
+	public synchronized Double get(ProgramKey key) {
+		Double fitness = cache.get(key);
+		if (fitness == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return fitness;
+	}
+
+	/**
+	 * Remember the fitness of a program
+	 *
+	 * @param key
+	 *            The key of the program
+	 * @param fitness
+	 *            The fitness of the program
+	 */
+	public synchronized void put(ProgramKey key, double fitness) {
+		cache.put(key, fitness);
+	}
+
+	/**
+	 * Forget everything, for example if the reference changes
+	 */
+	public synchronized void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * The number of fitness values currently held
+	 *
+	 * @return the size of the cache
+	 */
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	/**
+	 * The number of lookups that found a fitness value
+	 *
+	 * @return the number of hits
+	 */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/**
+	 * The number of lookups that had to be evaluated
+	 *
+	 * @return the number of misses
+	 */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/**
+	 * The number of entries thrown away to make room for new ones
+	 *
+	 * @return the number of evictions
+	 */
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long lookups = hits + misses;
+		return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries", hits, misses,
+				lookups == 0 ? 0 : 100.0 * hits / lookups, evictions, cache.size());
+	}
+}
@@ -0,0 +1,328 @@
+package nz.ac.vuw.ecs.snails.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import nz.ac.vuw.ecs.fgpj.core.GPConfig;
+import nz.ac.vuw.ecs.fgpj.core.GeneticProgram;
+import nz.ac.vuw.ecs.snails.functions.TreeEncoder;
+import nz.ac.vuw.ecs.snails.sa.CheckpointRandom;
+
+/**
+ * Saves the population of a GP run every so often, so that a stopped run can
+ * carry on from where it was rather than starting again from a random
+ * population.
+ *
+ * A snapshot holds every program, its fitness and whether that was screened
+ * out, the generation number, the early abandoning cutoff and the state of
+ * the GP's random number generator. The programs are stored in the binary
+ * form of TreeEncoder, with constants kept bit for bit. Encoding is the only
+ * work done on the evolution thread, and is a single walk of each program;
+ * the snapshot is compressed and written by a background thread.
+ *
+ * fgpj can only build a program with given trees by parsing it, so on resume
+ * the encoded programs are turned back into text and parsed. That happens
+ * once, when the snapshot is read, and the text carries the constants in
+ * full so nothing has to be patched afterwards.
+ *
+ * The population is captured through SnailFitness.solutionFound, which is
+ * the one place the GP hands over the whole population each generation. For
+ * the same reason a resumed population is swapped in at the first call to
+ * solutionFound after the run starts, along with the cutoff and the random
+ * number generator, so the generation bred from it is bred and scored just
+ * as it was in the original run. The exact fitness of every resumed program
+ * is put in the fitness cache first, so none of them need scoring again.
+ *
+ */
+public class PopulationSnapshot {
+
+	// Identifies a snapshot file, and its layout
+	private static final int MAGIC = 0x534e4c50;
+	private static final int VERSION = 3;
+
+	private final File file;
+	private final GPConfig conf;
+	private final SnailFitness sfit;
+	private final int numTrees;
+	private final int everyGenerations;
+	private final long everyMillis;
+
+	// Snapshots are written one at a time, in order, off the GP's thread
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "population-snapshot");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private int generation = 0;
+	private int lastGeneration = 0;
+	private long lastTime = System.currentTimeMillis();
+
+	// A snapshot waiting to be swapped in
+	private Snapshot pending = null;
+
+	/**
+	 * Start taking snapshots. This replaces the random number generator of
+	 * the config with one that can be saved, so it should be made before the
+	 * population is.
+	 *
+	 * @param file
+	 *            Where to write snapshots (each replaces the last)
+	 * @param conf
+	 *            The GPConfig being used
+	 * @param sfit
+	 *            The fitness function, whose cutoff and screening are saved
+	 *            along with the population
+	 * @param numTrees
+	 *            The number of trees in each program
+	 * @param everyGenerations
+	 *            Take a snapshot at least this often (in generations)
+	 * @param everyMillis
+	 *            Take a snapshot at least this often (in milliseconds)
+	 */
+	public PopulationSnapshot(File file, GPConfig conf, SnailFitness sfit, int numTrees, int everyGenerations,
+			long everyMillis) {
+		this.file = file;
+		this.conf = conf;
+		this.sfit = sfit;
+		this.numTrees = numTrees;
+		this.everyGenerations = everyGenerations;
+		this.everyMillis = everyMillis;
+		if (!(conf.randomNumGenerator instanceof CheckpointRandom)) {
+			conf.randomNumGenerator = new CheckpointRandom(conf.randomNumGenerator.nextLong());
+		}
+	}
+
+	/**
+	 * Called once per generation with the whole population.
+	 *
+	 * @param pop
+	 *            The population
+	 */
+	public void generation(List<GeneticProgram> pop) {
+		if (pending != null) {
+			restore(pending, pop);
+			pending = null;
+			return;
+		}
+
+		generation++;
+		long now = System.currentTimeMillis();
+		if (generation - lastGeneration < everyGenerations && now - lastTime < everyMillis) {
+			return;
+		}
+		lastGeneration = generation;
+		lastTime = now;
+
+		// The population is about to change, so everything has to be copied
+		// now
+		int size = pop.size();
+		TreeEncoder encoder = new TreeEncoder();
+		byte[][] programs = new byte[size][];
+		double[] fitness = new double[size];
+		double[] estimate = new double[size];
+		for (int i = 0; i < size; i++) {
+			GeneticProgram p = pop.get(i);
+			programs[i] = encoder.encode(p, numTrees);
+			fitness[i] = p.getFitness();
+			estimate[i] = sfit.getEstimate(p);
+		}
+		CheckpointRandom.State rng = ((CheckpointRandom) conf.randomNumGenerator).getState();
+		double cutoff = sfit.getCutoff();
+		int atGeneration = generation;
+
+		writer.submit(() -> write(atGeneration, rng, cutoff, encoder, programs, fitness, estimate));
+	}
+
+	/**
+	 * Carry on from a snapshot. The programs replace the population at the
+	 * next generation, and their fitness values go in the cache straight
+	 * away. Only exact values are cached: the fitness of a program that was
+	 * screened out or abandoned (or isn't finite) depended on the cutoff at
+	 * the time, just as SnailFitness never caches them.
+	 *
+	 * @param snapshot
+	 *            The snapshot to carry on from
+	 * @param cache
+	 *            The fitness cache to prime, or null
+	 */
+	public void resumeFrom(Snapshot snapshot, FitnessCache cache) {
+		if (cache != null) {
+			for (int i = 0; i < snapshot.programs.size(); i++) {
+				GeneticProgram p = snapshot.programs.get(i);
+				double fitness = p.getFitness();
+				if (!snapshot.approximate[i] && fitness != SnailFitness.ABANDONED && !Double.isInfinite(fitness)
+						&& !Double.isNaN(fitness)) {
+					cache.put(ProgramKey.of(p, numTrees), fitness);
+				}
+			}
+		}
+		this.generation = snapshot.generation;
+		this.lastGeneration = snapshot.generation;
+		this.pending = snapshot;
+	}
+
+	private void restore(Snapshot snapshot, List<GeneticProgram> pop) {
+		// Swap the programs in where the GP keeps them, so the next
+		// generation is bred from them
+		int n = Math.min(pop.size(), snapshot.programs.size());
+		for (int i = 0; i < n; i++) {
+			GeneticProgram p = snapshot.programs.get(i);
+			if (snapshot.approximate[i]) {
+				sfit.markScreenedOut(p, snapshot.estimate[i]);
+			}
+			pop.set(i, p);
+		}
+		// The random population scored before this set the cutoff from its
+		// own best, so it has to be put back too
+		sfit.setCutoff(snapshot.cutoff);
+		((CheckpointRandom) conf.randomNumGenerator).setState(snapshot.rng);
+	}
+
+	/**
+	 * Wait for any snapshot being written to finish
+	 */
+	public void close() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(int atGeneration, CheckpointRandom.State rng, double cutoff, TreeEncoder encoder,
+			byte[][] programs, double[] fitness, double[] estimate) {
+		// Written next to the real file then moved over it, so a crash never
+		// leaves a broken snapshot
+		File temp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(atGeneration);
+			out.writeLong(rng.seed);
+			out.writeBoolean(rng.haveNextNextGaussian);
+			out.writeDouble(rng.nextNextGaussian);
+			out.writeDouble(cutoff);
+			encoder.writeTable(out);
+			out.writeInt(programs.length);
+			for (int i = 0; i < programs.length; i++) {
+				out.write(programs[i]);
+				out.writeDouble(fitness[i]);
+				// Whether it was screened out, and what it was estimated at
+				out.writeBoolean(!Double.isNaN(estimate[i]));
+				out.writeDouble(estimate[i]);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to write population snapshot " + file + ": " + e.getMessage());
+			return;
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Failed to write population snapshot " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read a snapshot back in
+	 *
+	 * @param file
+	 *            The snapshot file
+	 * @param conf
+	 *            The GPConfig to build the programs with. It must have the
+	 *            same functions and terminals as the run that wrote it.
+	 * @param numTrees
+	 *            The number of trees in each program
+	 * @return The snapshot
+	 * @throws IOException
+	 *             If the file can't be read or isn't a snapshot
+	 */
+	public static Snapshot read(File file, GPConfig conf, int numTrees) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a population snapshot");
+			}
+			int generation = in.readInt();
+			CheckpointRandom.State rng = new CheckpointRandom.State(in.readLong(), in.readBoolean(), in.readDouble());
+			double cutoff = in.readDouble();
+			TreeEncoder.Table table = TreeEncoder.readTable(in);
+			int size = in.readInt();
+			List<GeneticProgram> programs = new ArrayList<>(size);
+			boolean[] approximate = new boolean[size];
+			double[] estimate = new double[size];
+			for (int i = 0; i < size; i++) {
+				String text = TreeEncoder.decode(in, table, numTrees);
+				double fitness = in.readDouble();
+				approximate[i] = in.readBoolean();
+				estimate[i] = in.readDouble();
+
+				GeneticProgram p = new GeneticProgram(numTrees);
+				p.parseProgram(text, conf);
+				p.setFitness(fitness);
+				programs.add(p);
+			}
+			return new Snapshot(generation, rng, cutoff, programs, approximate, estimate);
+		}
+	}
+
+	/**
+	 * A population read back from a snapshot file
+	 */
+	public static class Snapshot {
+		/**
+		 * The generation the snapshot was taken at
+		 */
+		public final int generation;
+
+		/**
+		 * The state of the random number generator
+		 */
+		public final CheckpointRandom.State rng;
+
+		/**
+		 * The early abandoning cutoff
+		 */
+		public final double cutoff;
+
+		/**
+		 * The programs, with their fitness set
+		 */
+		public final List<GeneticProgram> programs;
+
+		/**
+		 * Whether each program was screened out, and the error it was
+		 * estimated to have if it was (NaN if not)
+		 */
+		public final boolean[] approximate;
+		public final double[] estimate;
+
+		public Snapshot(int generation, CheckpointRandom.State rng, double cutoff, List<GeneticProgram> programs,
+				boolean[] approximate, double[] estimate) {
+			this.generation = generation;
+			this.rng = rng;
+			this.cutoff = cutoff;
+			this.programs = programs;
+			this.approximate = approximate;
+			this.estimate = estimate;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package nz.ac.vuw.ecs.snails.main;
+
+import nz.ac.vuw.ecs.fgpj.core.GeneticProgram;
+import nz.ac.vuw.ecs.snails.functions.TreeSignature;
+
+/**
+ * A canonical key for a whole program, made from the TreeSignature of each of
+ * its trees. Two programs have equal keys exactly when they compute the same
+ * thing in the same way, so the key can be used to look up results that were
+ * computed for an identical program, such as an elite from the last generation
+ * or a child that crossover happened to make identical to its parent.
+ *
+ * The hash is computed once when the key is made.
+ *
+ */
+public final class ProgramKey {
+
+	private final String signature;
+	private final long hash;
+
+	private ProgramKey(String signature) {
+		this.signature = signature;
+		// FNV-1a over the signature
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < signature.length(); i++) {
+			h ^= signature.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		this.hash = h;
+	}
+
+	/**
+	 * Make the key of a program
+	 *
+	 * @param p
+	 *            The program
+	 * @param numTrees
+	 *            The number of trees in the program
+	 * @return The key of the program
+	 */
+	public static ProgramKey of(GeneticProgram p, int numTrees) {
+		TreeSignature[] trees = new TreeSignature[numTrees];
+		for (int i = 0; i < numTrees; i++) {
+			trees[i] = new TreeSignature();
+		}
+		p.evaluate(trees);
+
+		StringBuilder s = new StringBuilder();
+		for (TreeSignature t : trees) {
+			s.append(t.signature());
+			s.append('|');
+		}
+		return new ProgramKey(s.toString());
+	}
+
+	/**
+	 * A 64 bit hash of the structure of the program
+	 *
+	 * @return The hash
+	 */
+	public long longHash() {
+		return hash;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof ProgramKey)) {
+			return false;
+		}
+		ProgramKey k = (ProgramKey) o;
+		return hash == k.hash && signature.equals(k.signature);
+	}
+
+	@Override
+	public String toString() {
+		return signature;
+	}
+}
@@ -1,26 +1,17 @@
 package nz.ac.vuw.ecs.snails.main;
 
-import java.awt.Color;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import javax.swing.JFrame;
-import javax.swing.SwingUtilities;
-
-import org.math.plot.Plot3DPanel;
-
-import javafx.geometry.Point3D;
 import nz.ac.vuw.ecs.fgpj.core.ConfigModifier;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
 import nz.ac.vuw.ecs.fgpj.core.GeneticProgram;
 import nz.ac.vuw.ecs.fgpj.core.Population;
+import nz.ac.vuw.ecs.snails.plot.PlotPublisher;
 
 /**
  * The class will create a GUI that shows the best result so far against the
  * reference shell. It will update as the evolution progresses. To prevent this
- * from holding up execution, as much as possible of this job will run in a
- * separate thread.
+ * from holding up execution, the curve is worked out and drawn by a
+ * PlotPublisher on its own thread, at most a set number of times a second. A
+ * new best that turns up before the last has been drawn replaces it.
  *
  * @author Roman Klapaukh
  *
@@ -28,8 +19,7 @@ import nz.ac.vuw.ecs.fgpj.core.Population;
 public class ProgressTracker implements ConfigModifier {
 
 	SnailFitness sfit;
-	Plot3DPanel plot;
-	ExecutorService tp;
+	PlotPublisher publisher;
 
 	/**
 	 * Create new ProgressTracker. This requires a SnailFitness to both get the
@@ -41,39 +31,23 @@ public class ProgressTracker implements ConfigModifier {
 	 *            for getting the curves of generated solutions.
 	 */
 	public ProgressTracker(SnailFitness fit) {
-		this.sfit = fit;
-		List<Point3D> points = fit.getReferenceCurve();
-
-		plot = new Plot3DPanel();
-
-		double[] x = new double[points.size()];
-		double[] y = new double[points.size()];
-		double[] z = new double[points.size()];
-
-		for (int i = 0; i < points.size(); i++) {
-			Point3D pi = points.get(i);
-			x[i] = pi.getY() * Math.sin(pi.getX());
-			y[i] = pi.getY() * Math.cos(pi.getX());
-			z[i] = pi.getZ();
-		}
-
-		// add the reference curve
-		plot.addScatterPlot("Reference", Color.BLUE, x, y, z);
-
-		// Add a space for the current best to be displayed
-		plot.addScatterPlot("Best individual", Color.RED, x, y, z);
-
-		// put the PlotPanel in a JFrame, as a JPanel
-		JFrame frame = new JFrame("Snail Hugging Progress");
-		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		frame.setContentPane(plot);
-		frame.setSize(1000, 800);
-		frame.setVisible(true);
+		this(fit, PlotPublisher.DEFAULT_FRAME_RATE);
+	}
 
-		// Don't want this to get in the way of other stuff so lock it to only
-		// having a single thread. The fitness evaluation should always have
-		// most of the cores available to it
-		tp = Executors.newSingleThreadExecutor();
+	/**
+	 * Create new ProgressTracker that redraws at most a set number of times a
+	 * second.
+	 *
+	 * @param fit
+	 *            The SnailFitness to use for the reference curve and then later
+	 *            for getting the curves of generated solutions.
+	 * @param frameRate
+	 *            The most times to redraw per second
+	 */
+	public ProgressTracker(SnailFitness fit, double frameRate) {
+		this.sfit = fit;
+		publisher = PlotPublisher.window("Snail Hugging Progress", fit.getReferenceCurve(),
+				PlotPublisher.DEFAULT_POINTS, frameRate, false);
 	}
 
 	@Override
@@ -83,54 +57,10 @@ public class ProgressTracker implements ConfigModifier {
 			//Don't waste CPU cycles on elitism
 			return;
 		}
-		// Don't actually do it in the main program thread. Just add it to the
-		// todo
-		tp.submit(new UpdateJob(p.copy(g), g));
-	}
-
-	/**
-	 * This represents a single update the plot task.
-	 *
-	 * @author Roman Klapaukh
-	 *
-	 */
-	private class UpdateJob implements Runnable {
-		private final GeneticProgram p;
-		private final GPConfig conf;
-
-		/**
-		 * Create a new update the plot task.
-		 *
-		 * @param p
-		 *            The individual to plot
-		 * @param conf
-		 *            The GPConfig being used
-		 *
-		 */
-		public UpdateJob(GeneticProgram p, GPConfig conf) {
-			this.p = p;
-			this.conf = conf;
-		}
-
-		/**
-		 * Use the SnailFitness to generate the curve of the program and then
-		 * update the plot
-		 */
-		public void run() {
-			List<Point3D> points = sfit.genPoints(p, conf);
-
-			double[][] XY = new double[points.size()][3];
-			for (int i = 0; i < points.size(); i++) {
-				Point3D pi = points.get(i);
-				XY[i][0] = pi.getY()*Math.sin(pi.getX());
-				XY[i][1] = pi.getY()*Math.cos(pi.getX());;
-				XY[i][2] = pi.getZ();
-
-			}
-
-			plot.changePlotData(1, XY);
-			SwingUtilities.invokeLater(()-> plot.repaint());
-		}
+		// Don't actually do it in the main program thread. The copy is only
+		// evaluated if it is still the newest when the next frame is drawn.
+		GeneticProgram best = p.copy(g);
+		publisher.publish((theta, r, y) -> sfit.genPoints(best, theta, r, y));
 	}
 
 }
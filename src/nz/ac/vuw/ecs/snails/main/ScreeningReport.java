@@ -0,0 +1,58 @@
+package nz.ac.vuw.ecs.snails.main;
+
+import java.io.PrintStream;
+
+import nz.ac.vuw.ecs.fgpj.core.ConfigModifier;
+import nz.ac.vuw.ecs.fgpj.core.GPConfig;
+import nz.ac.vuw.ecs.fgpj.core.Population;
+
+/**
+ * Reports, once a generation, how many programs SnailFitness screened out
+ * (and so didn't have to score in full) since the last generation. See
+ * SnailFitness.setScreening.
+ *
+ * Like AdaptiveCutoff, another modifier can be given to be run after this one.
+ *
+ */
+public class ScreeningReport implements ConfigModifier {
+
+	private final SnailFitness sfit;
+	private final PrintStream out;
+	private final ConfigModifier next;
+
+	private int generation = 0;
+	private long lastScreened = 0;
+	private long lastFull = 0;
+
+	/**
+	 * Create a new ScreeningReport.
+	 *
+	 * @param sfit
+	 *            The fitness function to report on
+	 * @param out
+	 *            Where to write the report
+	 * @param next
+	 *            Another ConfigModifier to run afterwards, or null
+	 */
+	public ScreeningReport(SnailFitness sfit, PrintStream out, ConfigModifier next) {
+		this.sfit = sfit;
+		this.out = out;
+		this.next = next;
+	}
+
+	@Override
+	public void ModifyConfig(GPConfig g, Population pop) {
+		long screened = sfit.getScreenedOut();
+		long full = sfit.getFullEvaluations();
+		out.println("Generation " + generation + ": " + (screened - lastScreened) + " screened out, "
+				+ (full - lastFull) + " scored in full");
+		generation++;
+		lastScreened = screened;
+		lastFull = full;
+
+		if (next != null) {
+			next.ModifyConfig(g, pop);
+		}
+	}
+
+}
@@ -1,17 +1,24 @@
 package nz.ac.vuw.ecs.snails.main;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javafx.geometry.Point3D;
 import javafx.scene.transform.Rotate;
 import nz.ac.vuw.ecs.fgpj.core.Fitness;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
 import nz.ac.vuw.ecs.fgpj.core.GeneticProgram;
+import nz.ac.vuw.ecs.snails.compiler.CompiledTree;
+import nz.ac.vuw.ecs.snails.compiler.ProgramCompiler;
+import nz.ac.vuw.ecs.snails.functions.ReturnColumn;
 import nz.ac.vuw.ecs.snails.functions.ReturnDouble;
+import nz.ac.vuw.ecs.snails.reference.ReferenceCurve;
 
 /**
  * SymbolicFitness attempts to be a general fitness function using Root Mean
@@ -23,10 +30,64 @@ import nz.ac.vuw.ecs.snails.functions.ReturnDouble;
  *
  */
 public class SnailFitness extends Fitness {
+	/**
+	 * The fitness given to a program that was abandoned because its error
+	 * passed the cutoff, or that was screened out (see setScreening). It is
+	 * worse than any real error, but still better than a program whose error
+	 * is not a number.
+	 */
+	public static final double ABANDONED = Double.MAX_VALUE;
+
+	// The reference samples are scored in blocks of this size, so that
+	// hopeless programs can be abandoned part way through
+	private static final int BLOCK = 256;
+
 	// The values are all the points of the Snail model
-	private List<Point3D> values;
+	private ReferenceCurve values;
 	private final String filename;
 
+	// Each worker thread (ParallelFitness runs several) gets its own pair of
+	// return values so scoring does not allocate anything per individual
+	private final ThreadLocal<ReturnDouble[]> workspace = ThreadLocal
+			.withInitial(() -> new ReturnDouble[] { new ReturnDouble(), new ReturnDouble() });
+
+	// The same again for evaluating whole columns at once
+	private final ThreadLocal<ReturnColumn[]> columns = ThreadLocal.withInitial(
+			() -> new ReturnColumn[] { new ReturnColumn(values.length), new ReturnColumn(values.length) });
+
+	// Whether to evaluate programs a column at a time or a value at a time
+	private boolean batch = true;
+
+	// If set, programs are compiled to bytecode rather than interpreted
+	private ProgramCompiler compiler = null;
+
+	// If set, fitness values are looked up here before evaluating
+	private FitnessCache cache = null;
+
+	// If set, this is shown the population every generation
+	private PopulationSnapshot snapshot = null;
+
+	// Programs with an error above this are abandoned
+	private volatile double cutoff = Double.POSITIVE_INFINITY;
+
+	// If set, programs are screened on these few samples first
+	private volatile ReferenceCurve coarse = null;
+	private int screeningSamples = 0;
+	private double screeningMargin = 1;
+
+	// Programs that were screened out, with their estimated error. Weak so
+	// that programs the GP has thrown away don't hang around
+	private final Map<GeneticProgram, Double> approximate = Collections
+			.synchronizedMap(new WeakHashMap<GeneticProgram, Double>());
+
+	private final AtomicLong screenedOut = new AtomicLong();
+	private final AtomicLong fullEvaluations = new AtomicLong();
+	private final AtomicLong samplesScored = new AtomicLong();
+
+	// Space for the output of compiled programs
+	private final ThreadLocal<double[][]> compiledOutput = ThreadLocal
+			.withInitial(() -> new double[][] { new double[values.length], new double[values.length] });
+
 	public SnailFitness(String filename) {
 		this.filename = filename;
 	}
@@ -40,13 +101,8 @@ public class SnailFitness extends Fitness {
 
 	public void loadFile(String filename) {
 		try {
-			values = new ArrayList<>();
-			Scanner scan = new Scanner(new File(filename));
-			while (scan.hasNext()) {
-				values.add(new Point3D(scan.nextDouble(), scan.nextDouble(), scan.nextDouble()));
-			}
-			scan.close();
-		} catch (FileNotFoundException e) {
+			values = ReferenceCurve.fromFile(new File(filename));
+		} catch (IOException e) {
 			System.err.println("Failed to read in reference model file");
 			e.printStackTrace();
 			System.exit(-1);
@@ -61,18 +117,25 @@ public class SnailFitness extends Fitness {
 	public void initFitness() {
 		if (filename != null) {
 			loadFile(filename);
+			buildScreeningSample();
 			return;
 		}
-		values = new ArrayList<Point3D>();
-
-		for (double t = 0; t < 100; t += 0.1) {
-			values.add(new Point3D(t, t, t));
+		// The same samples as counting t up from 0 to 100 in steps of 0.1
+		int n = 1001;
+		double[] t = new double[n];
+		double acc = 0;
+		for (int i = 0; i < n; i++) {
+			t[i] = acc;
+			acc += 0.1;
 		}
+		values = new ReferenceCurve(t, t.clone(), t.clone());
+		buildScreeningSample();
 
 	}
 
-	public List<Point3D> getReferenceCurve() {
-		return new ArrayList<Point3D>(values);
+	public ReferenceCurve getReferenceCurve() {
+		// The curve is immutable, so it is safe to share
+		return values;
 	}
 
 	public boolean isDirty() {
@@ -83,19 +146,418 @@ public class SnailFitness extends Fitness {
 	@Override
 	public void assignFitness(GeneticProgram p, GPConfig config) {
 
-		List<Point3D> points = genPoints(p, config);
-		double error = rmse(values, points);
-		p.setFitness(error);
+		// An identical program may already have been scored
+		ProgramKey key = cache == null ? null : ProgramKey.of(p, 2);
+		Double fitness = key == null ? null : cache.get(key);
+		if (fitness == null) {
+			// Compiled once, for both screening and scoring
+			CompiledTree[] trees = compiler == null ? null : compiler.compile(p, 2);
+			double coarse = screen(p, trees);
+			if (coarse >= 0) {
+				// Not ranked by the estimate, as a program that passes
+				// screening but is then abandoned gets ABANDONED, and must
+				// not lose to one that looked even worse
+				approximate.put(p, coarse);
+				p.setFitness(ABANDONED);
+				return;
+			}
+			fitness = score(p, trees);
+			fullEvaluations.incrementAndGet();
+			if (key != null && fitness != ABANDONED) {
+				// Abandoned scores depend on the cutoff at the time, so
+				// aren't worth remembering
+				cache.put(key, fitness);
+			}
+		}
+		approximate.remove(p);
+		p.setFitness(fitness);
+
+	}
+
+	/**
+	 * Screen programs on a few reference samples before scoring them on all
+	 * of them. The samples are spread evenly over the reference (the middle
+	 * of each of samples equal runs). A program whose error on the samples,
+	 * scaled up to the whole reference, is more than margin times the cutoff
+	 * is not scored in full. It is given the fitness ABANDONED, just as if it
+	 * had been scored and abandoned, and is marked as approximate, with the
+	 * scaled up error kept as its estimate (see getEstimate).
+	 *
+	 * This only does anything while there is a cutoff (see setCutoff), as
+	 * that is what decides whether a program is still worth looking at.
+	 * Passing 0 samples turns screening off. This can be called before the
+	 * reference is loaded.
+	 *
+	 * @param samples
+	 *            The number of reference samples to screen on
+	 * @param margin
+	 *            How far past the cutoff the estimate must be before the
+	 *            program is screened out
+	 */
+	public void setScreening(int samples, double margin) {
+		this.screeningSamples = samples;
+		this.screeningMargin = margin;
+		buildScreeningSample();
+	}
+
+	/**
+	 * Pick the screening samples out of the reference. This has to wait
+	 * until the reference has been loaded.
+	 */
+	private void buildScreeningSample() {
+		if (screeningSamples <= 0 || values == null) {
+			coarse = null;
+			return;
+		}
+		int n = values.length;
+		int samples = Math.min(screeningSamples, n);
+		double[] theta = new double[samples];
+		double[] r = new double[samples];
+		double[] y = new double[samples];
+		for (int j = 0; j < samples; j++) {
+			int i = (int) ((j + 0.5) * n / samples);
+			theta[j] = values.theta[i];
+			r[j] = values.r[i];
+			y[j] = values.y[i];
+		}
+		this.coarse = new ReferenceCurve(theta, r, y);
+	}
+
+	/**
+	 * Whether a program was screened out (see setScreening), so its fitness
+	 * came from screening rather than from scoring it.
+	 *
+	 * @param p
+	 *            The program
+	 * @return true if the program was screened out
+	 */
+	public boolean isApproximate(GeneticProgram p) {
+		return approximate.containsKey(p);
+	}
+
+	/**
+	 * Mark a program as screened out, as it was when it was saved in a
+	 * PopulationSnapshot
+	 */
+	void markScreenedOut(GeneticProgram p, double estimate) {
+		approximate.put(p, estimate);
+	}
+
+	/**
+	 * The error a screened out program was estimated to have, from the
+	 * screening samples scaled up to the whole reference.
+	 *
+	 * @param p
+	 *            The program
+	 * @return The estimated error, or NaN if the program wasn't screened out
+	 */
+	public double getEstimate(GeneticProgram p) {
+		Double estimate = approximate.get(p);
+		return estimate == null ? Double.NaN : estimate;
+	}
+
+	/**
+	 * @return The number of programs screened out so far, each of which is
+	 *         a full evaluation avoided
+	 */
+	public long getScreenedOut() {
+		return screenedOut.get();
+	}
 
+	/**
+	 * @return The number of programs scored against the whole reference so
+	 *         far
+	 */
+	public long getFullEvaluations() {
+		return fullEvaluations.get();
 	}
 
-	public double rmse(List<Point3D> reference, List<Point3D> generated) {
+	/**
+	 * @return The number of reference samples programs have been evaluated
+	 *         on by score so far, counting only the blocks scored before a
+	 *         program was abandoned
+	 */
+	public long getSamplesScored() {
+		return samplesScored.get();
+	}
+
+	/**
+	 * Score a program on the screening samples.
+	 *
+	 * @param p
+	 *            The program to screen
+	 * @param trees
+	 *            The program compiled, or null to interpret it
+	 * @return The estimated error if the program is screened out, or -1 if it
+	 *         needs to be scored in full
+	 */
+	private double screen(GeneticProgram p, CompiledTree[] trees) {
+		ReferenceCurve sample = coarse;
+		double limit = cutoff * screeningMargin;
+		if (sample == null || Double.isInfinite(limit)) {
+			return -1;
+		}
+
+		double[] gr;
+		double[] gy;
+		if (trees != null) {
+			double[][] out = compiledOutput.get();
+			gr = out[0];
+			gy = out[1];
+			trees[0].fill(sample.theta, gr, 0, sample.length);
+			trees[1].fill(sample.theta, gy, 0, sample.length);
+		} else {
+			ReturnColumn c[] = columns.get();
+			c[0].setT(sample.theta, 0, sample.length);
+			c[1].setT(sample.theta, 0, sample.length);
+			p.evaluate(c);
+			gr = c[0].values();
+			gy = c[1].values();
+		}
+
+		double error = 0;
+		for (int i = 0; i < sample.length; i++) {
+			double dr = sample.r[i] - gr[i];
+			double dy = sample.y[i] - gy[i];
+			error += dr * dr + dy * dy;
+		}
+
+		if (Double.isNaN(error) || Double.isInfinite(error)) {
+			// The samples are part of the reference, so the full error can't
+			// be a number either. Scoring it in full will find that out in
+			// the first block and give the exact answer.
+			return -1;
+		}
+		double estimate = Math.sqrt(error * values.length / sample.length);
+		if (estimate > limit) {
+			screenedOut.incrementAndGet();
+			return estimate;
+		}
+		return -1;
+	}
+
+	/**
+	 * Set something to take snapshots of the population as the run goes. It is
+	 * given the population once a generation. Passing null turns snapshots
+	 * off.
+	 *
+	 * @param snapshot
+	 *            The snapshot taker, or null
+	 */
+	public void setSnapshot(PopulationSnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Set a cache of fitness values to check before evaluating any program.
+	 * The fitness function never changes, so a program that has been seen
+	 * before (by its structure) will always get the same fitness. Passing
+	 * null turns caching off.
+	 *
+	 * @param cache
+	 *            The cache to use, or null
+	 */
+	public void setCache(FitnessCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Set whether programs are evaluated for the whole theta column in one
+	 * pass over the tree (the default), or one theta at a time. Both give
+	 * identical results.
+	 *
+	 * @param batch
+	 *            true to evaluate a column at a time
+	 */
+	public void setBatchEvaluation(boolean batch) {
+		this.batch = batch;
+	}
+
+	/**
+	 * Set the cutoff for early abandoning. Once a program's error is
+	 * certain to be worse than the cutoff, scoring stops and it is given the
+	 * fitness ABANDONED. As smaller is better, a program that is already
+	 * worse than the cutoff has no chance of being selected, so there is no
+	 * point finishing it. The default is to never abandon.
+	 *
+	 * @param cutoff
+	 *            The error above which programs are abandoned
+	 */
+	public void setCutoff(double cutoff) {
+		this.cutoff = cutoff;
+	}
+
+	/**
+	 * Get the current early abandoning cutoff
+	 *
+	 * @return the current cutoff
+	 */
+	public double getCutoff() {
+		return cutoff;
+	}
+
+	/**
+	 * Evaluate a program at every theta in the reference and return the
+	 * error between the two curves. This is the same as taking the rmse of
+	 * genPoints, but the squared error is accumulated as the program is
+	 * evaluated so no points are ever created.
+	 *
+	 * The samples are scored a block at a time. After each block, scoring
+	 * stops if the error is already past the cutoff (giving ABANDONED) or has
+	 * stopped being a number (giving positive infinity). The second happens
+	 * whether or not there is a cutoff.
+	 *
+	 * @param p
+	 *            The program to score
+	 * @return The error between the program and the reference curve
+	 */
+	public double score(GeneticProgram p) {
+		return score(p, compiler == null ? null : compiler.compile(p, 2));
+	}
+
+	private double score(GeneticProgram p, CompiledTree[] trees) {
+		// The error is compared before taking the square root
+		double limit = cutoff * cutoff;
+
+		if (trees != null) {
+			return scoreCompiled(trees, limit);
+		}
+		// Not compiled (or couldn't be), so interpret it
+		return batch ? scoreColumn(p, limit) : scoreScalar(p, limit);
+	}
+
+	/**
+	 * Set a compiler to turn programs into bytecode before scoring them.
+	 * Passing null goes back to interpreting programs.
+	 *
+	 * @param compiler
+	 *            The compiler to use, or null
+	 */
+	public void setCompiler(ProgramCompiler compiler) {
+		this.compiler = compiler;
+	}
+
+	private double scoreCompiled(CompiledTree[] trees, double limit) {
+		double[][] out = compiledOutput.get();
+		double[] gr = out[0];
+		double[] gy = out[1];
+		double[] theta = values.theta;
+		double[] r = values.r;
+		double[] y = values.y;
+
+		double error = 0;
+		int scored = 0;
+		for (int start = 0; start < values.length; start += BLOCK) {
+			int end = Math.min(start + BLOCK, values.length);
+			scored = end;
+			trees[0].fill(theta, gr, start, end);
+			trees[1].fill(theta, gy, start, end);
+
+			for (int i = start; i < end; i++) {
+				double dr = r[i] - gr[i];
+				double dy = y[i] - gy[i];
+				error += dr * dr + dy * dy;
+			}
+			if (!(error <= limit) || Double.isInfinite(error)) {
+				// Past the cutoff, or no longer a number (which a cutoff of
+				// infinity wouldn't catch)
+				break;
+			}
+		}
+		return finish(error, limit, scored);
+	}
+
+	private double scoreColumn(GeneticProgram p, double limit) {
+		ReturnColumn c[] = columns.get();
+		double[] r = values.r;
+		double[] y = values.y;
+
+		double error = 0;
+		int scored = 0;
+		for (int start = 0; start < values.length; start += BLOCK) {
+			int length = Math.min(BLOCK, values.length - start);
+			scored = start + length;
+			c[0].setT(values.theta, start, length);
+			c[1].setT(values.theta, start, length);
+			// One walk of each tree computes the whole block
+			p.evaluate(c);
+
+			double[] gr = c[0].values();
+			double[] gy = c[1].values();
+			for (int i = 0; i < length; i++) {
+				double dr = r[start + i] - gr[i];
+				double dy = y[start + i] - gy[i];
+				error += dr * dr + dy * dy;
+			}
+			if (!(error <= limit) || Double.isInfinite(error)) {
+				// Past the cutoff, or no longer a number (which a cutoff of
+				// infinity wouldn't catch)
+				break;
+			}
+		}
+		return finish(error, limit, scored);
+	}
+
+	private double scoreScalar(GeneticProgram p, double limit) {
+		ReturnDouble d[] = workspace.get();
+		double[] theta = values.theta;
+		double[] r = values.r;
+		double[] y = values.y;
+
+		double error = 0;
+		int scored = 0;
+		for (int start = 0; start < values.length; start += BLOCK) {
+			int end = Math.min(start + BLOCK, values.length);
+			scored = end;
+			for (int i = start; i < end; i++) {
+				setT(d, theta[i]);
+				p.evaluate(d);
+				double dr = r[i] - d[0].value();
+				double dy = y[i] - d[1].value();
+				error += dr * dr + dy * dy;
+			}
+			if (!(error <= limit) || Double.isInfinite(error)) {
+				// Past the cutoff, or no longer a number (which a cutoff of
+				// infinity wouldn't catch)
+				break;
+			}
+		}
+		return finish(error, limit, scored);
+	}
+
+	/**
+	 * Turn the summed squared error into a fitness.
+	 *
+	 * @param error
+	 *            The sum of squared errors (possibly only partially summed)
+	 * @param limit
+	 *            The square of the cutoff
+	 * @param scored
+	 *            The number of samples the error was summed over
+	 * @return The fitness to assign
+	 */
+	private double finish(double error, double limit, int scored) {
+		samplesScored.addAndGet(scored);
+		if (Double.isNaN(error) || Double.isInfinite(error)) {
+			// GenExp and Exp overflow all the time. NaN would sort as the
+			// worst anyway, but infinity keeps the run statistics sane
+			return Double.POSITIVE_INFINITY;
+		}
+		if (error <= limit) {
+			return Math.sqrt(error);
+		}
+		return ABANDONED;
+	}
+
+	public double rmse(ReferenceCurve reference, List<Point3D> generated) {
 		double error = 0;
 		for (int i = 0; i < generated.size(); i++) {
-			Point3D r = reference.get(i);
 			Point3D g = generated.get(i);
 
-			error += Math.pow(r.subtract(g).magnitude(), 2);
+			double dt = reference.theta[i] - g.getX();
+			double dr = reference.r[i] - g.getY();
+			double dy = reference.y[i] - g.getZ();
+			error += dt * dt + dr * dr + dy * dy;
 		}
 		return Math.sqrt(error);
 	}
@@ -119,6 +581,10 @@ public class SnailFitness extends Fitness {
 
 	@Override
 	public boolean solutionFound(List<GeneticProgram> pop) {
+		if (snapshot != null) {
+			// This is the only place the whole population is handed over
+			snapshot.generation(pop);
+		}
 		for (GeneticProgram p : pop) {
 			// There is a solution if any program has a fitness of 0
 			if (Double.compare(p.getFitness(), 0) == 0) {
@@ -134,17 +600,28 @@ public class SnailFitness extends Fitness {
 		// There is no required clean up for this fitness function.
 	}
 
+	/**
+	 * Generate the curve a program describes at the theta values of the
+	 * reference. This is only needed for plotting, fitness evaluation uses
+	 * score which does not build the curve.
+	 *
+	 * @param p
+	 *            The program to evaluate
+	 * @param config
+	 *            The GPConfig being used
+	 * @return The points of the generated curve
+	 */
 	public List<Point3D> genPoints(GeneticProgram p, GPConfig config) {
 		// Create space for the return values and variables
-		List<Point3D> list = new ArrayList<>();
+		List<Point3D> list = new ArrayList<>(values.length);
 
 		ReturnDouble d[] = new ReturnDouble[] {new ReturnDouble(), new ReturnDouble()};
 
-		for (int i = 0; i < values.size(); i++) {
-			Point3D t = values.get(i);
-			setT(d, t.getX());
+		for (int i = 0; i < values.length; i++) {
+			double t = values.theta[i];
+			setT(d, t);
 			p.evaluate(d);
-			Point3D genPoint = toPoint3D(t.getX(),d);
+			Point3D genPoint = toPoint3D(t,d);
 			list.add(genPoint);
 		}
 
@@ -152,4 +629,28 @@ public class SnailFitness extends Fitness {
 
 	}
 
+	/**
+	 * Generate the curve a program describes at a set of angles, without
+	 * building any points. This is what the plots use.
+	 *
+	 * @param p
+	 *            The program to evaluate
+	 * @param theta
+	 *            The angles
+	 * @param r
+	 *            Where to put r at each angle
+	 * @param y
+	 *            Where to put y at each angle
+	 */
+	public void genPoints(GeneticProgram p, double[] theta, double[] r, double[] y) {
+		ReturnDouble d[] = new ReturnDouble[] { new ReturnDouble(), new ReturnDouble() };
+
+		for (int i = 0; i < theta.length; i++) {
+			setT(d, theta[i]);
+			p.evaluate(d);
+			r[i] = d[0].value();
+			y[i] = d[1].value();
+		}
+	}
+
 }
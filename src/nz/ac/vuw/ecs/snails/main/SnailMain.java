@@ -19,11 +19,16 @@ package nz.ac.vuw.ecs.snails.main;
  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
  */
 
+import java.io.File;
+import java.io.IOException;
+
+import nz.ac.vuw.ecs.fgpj.core.ConfigModifier;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
 import nz.ac.vuw.ecs.fgpj.core.GeneticProgram;
 import nz.ac.vuw.ecs.fgpj.core.ParallelFitness;
 import nz.ac.vuw.ecs.fgpj.core.Population;
 import nz.ac.vuw.ecs.fgpj.core.TournamentSelection;
+import nz.ac.vuw.ecs.snails.compiler.ProgramCompiler;
 import nz.ac.vuw.ecs.snails.functions.Add;
 import nz.ac.vuw.ecs.snails.functions.Cos;
 import nz.ac.vuw.ecs.snails.functions.Divide;
@@ -58,6 +63,34 @@ public class SnailMain {
 
 		boolean gui = false;
 
+		// Compile programs to bytecode rather than interpreting them. See
+		// CompilerBenchmark for when this pays off.
+		boolean compile = false;
+
+		// Look fitness values up by program structure, so elites and
+		// identical children aren't scored again
+		boolean cacheFitness = false;
+
+		// Stop scoring programs once they are 10 times worse than the best of
+		// the last generation. They all get the same fitness (ABANDONED), so
+		// selection can't tell them apart.
+		boolean abandon = false;
+
+		// Screen programs on 32 samples first, and don't score the rest of
+		// any that are more than twice the cutoff out. They are screened
+		// against the cutoff, so this only does anything along with abandon.
+		boolean screen = false;
+
+		// Save the population to snapshotFile every 100 generations or 10
+		// minutes, whichever comes first. This swaps the GP's random number
+		// generator for one that can be saved.
+		boolean snapshots = false;
+
+		// Carry on from the population in snapshotFile rather than starting
+		// from a random one (and keep saving it)
+		boolean resume = false;
+		File snapshotFile = new File("population.snap");
+
 		// 3 trees - one for each dimension
 		GPConfig conf = new GPConfig(2, 1, 6, 0.70, 0.28, 0.02);
 
@@ -91,9 +124,40 @@ public class SnailMain {
 		SnailFitness sfit = new SnailFitness("raupCyl.csv");
 		conf.fitnessObject = new ParallelFitness<SnailFitness>(sfit, 16, 10);
 
+		if (compile) {
+			sfit.setCompiler(new ProgramCompiler(4096));
+		}
+
+		FitnessCache cache = null;
+		if (cacheFitness) {
+			cache = new FitnessCache(20000);
+			sfit.setCache(cache);
+		}
+
+		// This must happen before the population is made, as it swaps in the
+		// random number generator
+		PopulationSnapshot snapshot = null;
+		if (snapshots || resume) {
+			snapshot = new PopulationSnapshot(snapshotFile, conf, sfit, 2, 100, 10 * 60 * 1000);
+			sfit.setSnapshot(snapshot);
+		}
+
+		ProgressTracker tracker = null;
 		if (gui) {
 			sfit.initFitness();
-			conf.configModifier = new ProgressTracker(sfit);
+			tracker = new ProgressTracker(sfit);
+		}
+
+		ConfigModifier modifier = tracker;
+		if (screen) {
+			sfit.setScreening(32, 2);
+			modifier = new ScreeningReport(sfit, System.out, modifier);
+		}
+		if (abandon) {
+			modifier = new AdaptiveCutoff(sfit, 10, modifier);
+		}
+		if (modifier != null) {
+			conf.configModifier = modifier;
 		}
 		
 		// Create a population
@@ -112,6 +176,18 @@ public class SnailMain {
 		long start = System.currentTimeMillis();
 
 		int gens = 500;
+		if (resume) {
+			try {
+				PopulationSnapshot.Snapshot saved = PopulationSnapshot.read(snapshotFile, conf, 2);
+				snapshot.resumeFrom(saved, cache);
+				// The first generation is spent swapping the snapshot in
+				gens -= saved.generation - 1;
+				System.out.println("Resuming from generation " + saved.generation);
+			} catch (IOException e) {
+				System.err.println("Failed to read population snapshot, starting again");
+				e.printStackTrace();
+			}
+		}
 		int numGenerations = p.evolve(gens); // return how many generations
 												// actually happened
 		if (numGenerations < gens) {
@@ -119,12 +195,18 @@ public class SnailMain {
 		}
 		// end timing
 		long end = System.currentTimeMillis();
+		if (snapshot != null) {
+			snapshot.close();
+		}
 
 		// Get the best program
 		GeneticProgram s = p.getBest();
 
 		System.out.println("Runtime was: " + (end - start) / (1000d * 60d) + " minutes");
 		System.out.println("Best program fitness: " + s.getFitness());
+		if (cache != null) {
+			System.out.println("Fitness cache: " + cache);
+		}
 		System.out.println("Number of generations this program has been selected for by elitism immediately prior: "
 				+ s.lastChange());
 		System.out.println("Crossover usage (ignoring data from other parents): " + s.numCrossovers());
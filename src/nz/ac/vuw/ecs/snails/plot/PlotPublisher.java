@@ -0,0 +1,293 @@
+package nz.ac.vuw.ecs.snails.plot;
+
+import java.awt.Color;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+
+import org.math.plot.Plot3DPanel;
+
+import nz.ac.vuw.ecs.snails.reference.ReferenceCurve;
+
+/**
+ * Draws the latest curve from an optimiser against the reference, no more
+ * often than a set frame rate.
+ *
+ * Publishing a curve only records it; it isn't worked out until it is drawn.
+ * If a newer curve is published before then, the older one is dropped rather
+ * than queued, so however fast the optimiser finds new curves there is never
+ * more than one waiting, and at most one frame rate's worth of work is ever
+ * taken away from the optimiser.
+ *
+ * Curves are only worked out at (at most) maxPoints of the reference samples,
+ * spread evenly along it, as there is no point drawing more points than the
+ * screen has pixels. The sin and cos of theta at those samples are worked out
+ * once, when the publisher is made.
+ *
+ * publish may be called from any thread.
+ *
+ */
+public class PlotPublisher {
+
+	/**
+	 * The default number of frames per second
+	 */
+	public static final double DEFAULT_FRAME_RATE = 30;
+
+	/**
+	 * The default number of points to draw a curve with (about the width of
+	 * the window)
+	 */
+	public static final int DEFAULT_POINTS = 1000;
+
+	/**
+	 * Something that can work out a curve at the samples being drawn
+	 */
+	@FunctionalInterface
+	public interface Curve {
+		/**
+		 * Work out r and y for each theta
+		 *
+		 * @param theta
+		 *            The angles to work the curve out at
+		 * @param r
+		 *            Where to put r (the same length as theta)
+		 * @param y
+		 *            Where to put y (the same length as theta)
+		 */
+		void points(double[] theta, double[] r, double[] y);
+	}
+
+	// The samples drawn, and their sin and cos
+	private final double[] theta;
+	private final double[] sin;
+	private final double[] cos;
+
+	private final long frameNanos;
+	private final Consumer<double[][]> sink;
+
+	// Frames are drawn one at a time, on their own thread
+	private final ScheduledExecutorService drawer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "plot-publisher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// The newest curve that hasn't been drawn yet
+	private final AtomicReference<Curve> pending = new AtomicReference<>();
+
+	// Whether a frame is already due
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	// When the next frame may be drawn
+	private volatile long nextFrame = System.nanoTime();
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong drawn = new AtomicLong();
+
+	/**
+	 * Create a new publisher that hands each frame (as rows of x, y, z) to a
+	 * sink. The sink is called on the publisher's own thread.
+	 *
+	 * @param reference
+	 *            The reference curve, whose theta values curves are worked
+	 *            out at
+	 * @param maxPoints
+	 *            The most points to work a curve out at
+	 * @param frameRate
+	 *            The most frames to draw per second
+	 * @param sink
+	 *            Where to send each frame
+	 */
+	public PlotPublisher(ReferenceCurve reference, int maxPoints, double frameRate, Consumer<double[][]> sink) {
+		if (!(frameRate > 0)) {
+			throw new IllegalArgumentException("The frame rate must be positive");
+		}
+		int[] samples = decimate(reference.length, maxPoints);
+		theta = new double[samples.length];
+		sin = new double[samples.length];
+		cos = new double[samples.length];
+		for (int i = 0; i < samples.length; i++) {
+			theta[i] = reference.theta[samples[i]];
+			sin[i] = Math.sin(theta[i]);
+			cos[i] = Math.cos(theta[i]);
+		}
+		this.frameNanos = (long) (1e9 / frameRate);
+		this.sink = sink;
+	}
+
+	/**
+	 * Open a window showing the reference curve, and a second curve that is
+	 * replaced by each frame.
+	 *
+	 * @param title
+	 *            The title of the window
+	 * @param reference
+	 *            The reference curve
+	 * @param maxPoints
+	 *            The most points to draw each curve with
+	 * @param frameRate
+	 *            The most frames to draw per second
+	 * @param autoBounds
+	 *            Whether to rescale the axes to fit each frame
+	 * @return The publisher for the second curve
+	 */
+	public static PlotPublisher window(String title, ReferenceCurve reference, int maxPoints, double frameRate,
+			boolean autoBounds) {
+		Plot3DPanel plot = new Plot3DPanel();
+		PlotPublisher publisher = new PlotPublisher(reference, maxPoints, frameRate, xyz -> SwingUtilities
+				.invokeLater(() -> {
+					plot.changePlotData(1, xyz);
+					if (autoBounds) {
+						plot.setAutoBounds();
+					}
+					plot.repaint();
+				}));
+
+		double[][] xyz = publisher.toCartesian(publisher.reference(reference));
+
+		// add the reference curve
+		plot.addScatterPlot("Reference", Color.BLUE, xyz);
+
+		// Add a space for the current best to be displayed
+		plot.addScatterPlot("Best individual", Color.RED, xyz);
+
+		// put the PlotPanel in a JFrame, as a JPanel
+		JFrame frame = new JFrame(title);
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frame.setContentPane(plot);
+		frame.setSize(1000, 800);
+		frame.setVisible(true);
+
+		return publisher;
+	}
+
+	/**
+	 * Publish a new curve, replacing any that hasn't been drawn yet
+	 *
+	 * @param curve
+	 *            The curve to draw
+	 */
+	public void publish(Curve curve) {
+		published.incrementAndGet();
+		pending.set(curve);
+		if (scheduled.compareAndSet(false, true)) {
+			long delay = Math.max(0, nextFrame - System.nanoTime());
+			drawer.schedule(this::draw, delay, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void draw() {
+		long now = System.nanoTime();
+		if (now - nextFrame < 0) {
+			// Too soon after the last frame, so wait (still scheduled)
+			drawer.schedule(this::draw, nextFrame - now, TimeUnit.NANOSECONDS);
+			return;
+		}
+		// This has to be set before anything can be published for another
+		// frame, or that frame would be timed from this one's start
+		nextFrame = now + frameNanos;
+
+		// Anything published from here on needs another frame
+		scheduled.set(false);
+		Curve curve = pending.getAndSet(null);
+		if (curve == null) {
+			return;
+		}
+
+		double[][] ry = new double[2][theta.length];
+		try {
+			curve.points(theta, ry[0], ry[1]);
+		} catch (RuntimeException e) {
+			// A curve that can't be drawn shouldn't stop the next one
+			e.printStackTrace();
+			return;
+		}
+		drawn.incrementAndGet();
+		sink.accept(toCartesian(ry));
+	}
+
+	/**
+	 * The reference at the samples being drawn, as r and y
+	 */
+	private double[][] reference(ReferenceCurve reference) {
+		int[] samples = decimate(reference.length, theta.length);
+		double[][] ry = new double[2][samples.length];
+		for (int i = 0; i < samples.length; i++) {
+			ry[0][i] = reference.r[samples[i]];
+			ry[1][i] = reference.y[samples[i]];
+		}
+		return ry;
+	}
+
+	/**
+	 * Turn r and y at the samples into rows of x, y and z
+	 */
+	private double[][] toCartesian(double[][] ry) {
+		double[][] xyz = new double[theta.length][3];
+		for (int i = 0; i < theta.length; i++) {
+			xyz[i][0] = ry[0][i] * sin[i];
+			xyz[i][1] = ry[0][i] * cos[i];
+			xyz[i][2] = ry[1][i];
+		}
+		return xyz;
+	}
+
+	/**
+	 * Pick at most m of n samples, evenly spaced and including the first and
+	 * last
+	 */
+	static int[] decimate(int n, int m) {
+		if (m >= n) {
+			int[] all = new int[n];
+			for (int i = 0; i < n; i++) {
+				all[i] = i;
+			}
+			return all;
+		}
+		if (m < 2) {
+			return n == 0 || m < 1 ? new int[0] : new int[] { 0 };
+		}
+		int[] samples = new int[m];
+		for (int i = 0; i < m; i++) {
+			samples[i] = (int) ((long) i * (n - 1) / (m - 1));
+		}
+		return samples;
+	}
+
+	/**
+	 * @return The theta values curves are worked out at
+	 */
+	public double[] getTheta() {
+		return theta.clone();
+	}
+
+	/**
+	 * @return How many curves have been published
+	 */
+	public long getPublished() {
+		return published.get();
+	}
+
+	/**
+	 * @return How many curves have been drawn. The rest were replaced before
+	 *         they could be.
+	 */
+	public long getDrawn() {
+		return drawn.get();
+	}
+
+	/**
+	 * Stop drawing. Anything not yet drawn is dropped.
+	 */
+	public void close() {
+		drawer.shutdownNow();
+	}
+}
@@ -0,0 +1,126 @@
+package nz.ac.vuw.ecs.snails.reference;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A reference curve (the measured specimen) stored as three contiguous
+ * columns of cylindrical coordinates: theta, r and y. All of the fitness,
+ * annealing and landscape code reads the specimen through this class so that
+ * the hot loops only ever touch primitive arrays.
+ *
+ * The columns are exposed directly for speed. They must be treated as read
+ * only, as a single curve is shared between all of the threads fitting it.
+ *
+ */
+public final class ReferenceCurve {
+
+	/**
+	 * The theta (angle) column
+	 */
+	public final double[] theta;
+
+	/**
+	 * The r (distance from the coiling axis) column
+	 */
+	public final double[] r;
+
+	/**
+	 * The y (height along the coiling axis) column
+	 */
+	public final double[] y;
+
+	/**
+	 * The number of samples in the curve
+	 */
+	public final int length;
+
+	// Cached hash of the contents of all three columns
+	private final long hash;
+
+	/**
+	 * Create a new reference curve from its three columns. The columns are
+	 * not copied.
+	 *
+	 * @param theta
+	 *            The theta values
+	 * @param r
+	 *            The r values
+	 * @param y
+	 *            The y values
+	 */
+	public ReferenceCurve(double[] theta, double[] r, double[] y) {
+		if (theta.length != r.length || theta.length != y.length) {
+			throw new IllegalArgumentException("Reference columns must all be the same length");
+		}
+		this.theta = theta;
+		this.r = r;
+		this.y = y;
+		this.length = theta.length;
+		this.hash = computeHash();
+	}
+
+	/**
+	 * Read a reference curve from a file with the columns theta, r and y.
+	 * See ReferenceLoader for the formats understood, and the binary sidecar
+	 * it keeps so that a file only ever has to be parsed once.
+	 *
+	 * @param file
+	 *            The file to read
+	 * @return The curve in the file
+	 * @throws IOException
+	 *             If the file can't be read or isn't a table of three columns
+	 */
+	public static ReferenceCurve fromFile(File file) throws IOException {
+		return ReferenceLoader.load(file);
+	}
+
+	/**
+	 * A 64 bit hash of the contents of the curve. Two curves with the same
+	 * samples (bit for bit) have the same hash, so this can be used to tag
+	 * results that were computed against a particular specimen.
+	 *
+	 * @return The content hash
+	 */
+	public long contentHash() {
+		return hash;
+	}
+
+	private long computeHash() {
+		// FNV-1a over the raw bits of every sample
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < length; i++) {
+			h = mix(h, Double.doubleToLongBits(theta[i]));
+			h = mix(h, Double.doubleToLongBits(r[i]));
+			h = mix(h, Double.doubleToLongBits(y[i]));
+		}
+		return h;
+	}
+
+	private static long mix(long h, long bits) {
+		for (int i = 0; i < 8; i++) {
+			h ^= (bits >>> (i * 8)) & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof ReferenceCurve)) {
+			return false;
+		}
+		ReferenceCurve c = (ReferenceCurve) o;
+		return hash == c.hash && Arrays.equals(theta, c.theta) && Arrays.equals(r, c.r) && Arrays.equals(y, c.y);
+	}
+
+}
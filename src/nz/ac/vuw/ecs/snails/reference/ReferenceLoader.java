@@ -0,0 +1,402 @@
+package nz.ac.vuw.ecs.snails.reference;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Reads reference curves from text files, as quickly as it can.
+ *
+ * The text is parsed a byte at a time straight out of a buffer, rather than
+ * through Scanner's regular expressions. Columns may be separated by any mix
+ * of spaces, tabs and commas. Lines before the first row of numbers (such as
+ * the column names genRaup.R writes in cylindrical mode) are skipped if they
+ * hold no numbers at all, as are blank lines; any other line that isn't
+ * three numbers is an error.
+ *
+ * Numbers with few enough digits are worked out exactly from their digits
+ * and a power of ten. Anything else is handed to Double.parseDouble, so every
+ * value is bit for bit what Double.parseDouble would give, and a curve (and
+ * its content hash) doesn't depend on how it was loaded.
+ *
+ * After a file is parsed, its columns are written next to it as a binary
+ * sidecar (the file name with .bin added). Later loads memory map the
+ * sidecar rather than parsing the text again, for as long as the text file
+ * keeps the same length and modification time. If the sidecar can't be
+ * read or written (say the directory is read only) the text is just parsed
+ * instead.
+ *
+ */
+public final class ReferenceLoader {
+
+	// Identifies a sidecar, and its layout
+	private static final int MAGIC = 0x534e4c52;
+	private static final int VERSION = 1;
+
+	// magic, version, source length, source modification time, count, then
+	// padding so the columns are 8 byte aligned
+	private static final int HEADER_SIZE = 32;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// Every power of ten that is exactly a double
+	private static final double[] POWERS = new double[23];
+
+	static {
+		POWERS[0] = 1;
+		for (int i = 1; i < POWERS.length; i++) {
+			POWERS[i] = POWERS[i - 1] * 10;
+		}
+	}
+
+	private ReferenceLoader() {
+	}
+
+	/**
+	 * Load a reference curve, from its sidecar if there is an up to date one
+	 * and otherwise by parsing it (and then writing a sidecar)
+	 *
+	 * @param file
+	 *            The text file holding the curve
+	 * @return The curve
+	 * @throws IOException
+	 *             If the file can't be read or isn't a table of three columns
+	 */
+	public static ReferenceCurve load(File file) throws IOException {
+		File bin = sidecar(file);
+		long length = file.length();
+		long modified = file.lastModified();
+		if (modified != 0 && bin.exists()) {
+			try {
+				ReferenceCurve cached = readSidecar(bin, length, modified);
+				if (cached != null) {
+					return cached;
+				}
+			} catch (IOException e) {
+				// Only a cache, so parse the text instead
+			}
+		}
+
+		ReferenceCurve curve = parse(file);
+		if (modified != 0) {
+			try {
+				writeSidecar(bin, curve, length, modified);
+			} catch (IOException e) {
+				// Only a cache, so carry on without it
+			}
+		}
+		return curve;
+	}
+
+	/**
+	 * The sidecar a text file is cached in
+	 *
+	 * @param file
+	 *            The text file
+	 * @return Its sidecar
+	 */
+	public static File sidecar(File file) {
+		return new File(file.getPath() + ".bin");
+	}
+
+	/**
+	 * Parse a reference curve from a text file, ignoring any sidecar
+	 *
+	 * @param file
+	 *            The file to read
+	 * @return The curve in the file
+	 * @throws IOException
+	 *             If the file can't be read or isn't a table of three columns
+	 */
+	public static ReferenceCurve parse(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			return parse(in, file.getPath());
+		}
+	}
+
+	/**
+	 * Parse a reference curve from a stream of text
+	 *
+	 * @param in
+	 *            The text
+	 * @param name
+	 *            What to call the text in errors
+	 * @return The curve in the text
+	 * @throws IOException
+	 *             If the text can't be read or isn't a table of three columns
+	 */
+	public static ReferenceCurve parse(InputStream in, String name) throws IOException {
+		return new Parser(in, name).parse();
+	}
+
+	/**
+	 * Read a sidecar, if it was made from a text file of this length and
+	 * modification time
+	 *
+	 * @return The curve, or null if the sidecar is out of date or broken
+	 */
+	private static ReferenceCurve readSidecar(File bin, long length, long modified) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(bin, "r"); FileChannel channel = raf.getChannel()) {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				return null;
+			}
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (map.getInt() != MAGIC || map.getInt() != VERSION || map.getLong() != length
+					|| map.getLong() != modified) {
+				return null;
+			}
+			int n = map.getInt();
+			if (n < 0 || size != HEADER_SIZE + 3L * 8 * n) {
+				return null;
+			}
+			map.position(HEADER_SIZE);
+			DoubleBuffer columns = map.asDoubleBuffer();
+			double[] theta = new double[n];
+			double[] r = new double[n];
+			double[] y = new double[n];
+			columns.get(theta);
+			columns.get(r);
+			columns.get(y);
+			return new ReferenceCurve(theta, r, y);
+		}
+	}
+
+	/**
+	 * Write a sidecar. It is written to a temporary file first and then moved
+	 * into place, so a reader never sees half of one.
+	 */
+	private static void writeSidecar(File bin, ReferenceCurve curve, long length, long modified)
+			throws IOException {
+		File tmp = File.createTempFile(bin.getName(), ".tmp", bin.getAbsoluteFile().getParentFile());
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),
+					BUFFER_SIZE))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(length);
+				out.writeLong(modified);
+				out.writeInt(curve.length);
+				out.writeInt(0);
+				for (double[] column : new double[][] { curve.theta, curve.r, curve.y }) {
+					for (double v : column) {
+						out.writeDouble(v);
+					}
+				}
+			}
+			try {
+				Files.move(tmp.toPath(), bin.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), bin.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Turn the text of a number into a double, the same as Double.parseDouble
+	 *
+	 * @throws NumberFormatException
+	 *             If it isn't a number
+	 */
+	static double parseDouble(byte[] text, int length) {
+		int i = 0;
+		boolean negative = false;
+		if (length > 0 && (text[0] == '-' || text[0] == '+')) {
+			negative = text[0] == '-';
+			i++;
+		}
+
+		// The digits as an integer, and the power of ten to scale it by
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean any = false;
+		for (; i < length && text[i] >= '0' && text[i] <= '9'; i++) {
+			any = true;
+			if (mantissa != 0 || text[i] != '0') {
+				mantissa = mantissa * 10 + (text[i] - '0');
+				digits++;
+			}
+		}
+		if (i < length && text[i] == '.') {
+			for (i++; i < length && text[i] >= '0' && text[i] <= '9'; i++) {
+				any = true;
+				if (mantissa != 0 || text[i] != '0') {
+					mantissa = mantissa * 10 + (text[i] - '0');
+					digits++;
+				}
+				exponent--;
+			}
+		}
+		if (any && i < length && (text[i] == 'e' || text[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < length && (text[i] == '-' || text[i] == '+')) {
+				negativeExponent = text[i] == '-';
+				i++;
+			}
+			int e = 0;
+			int start = i;
+			for (; i < length && text[i] >= '0' && text[i] <= '9' && e < 10000; i++) {
+				e = e * 10 + (text[i] - '0');
+			}
+			if (i == start) {
+				any = false;
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+
+		// Only exact if the mantissa and the power of ten both are, as then
+		// the one multiply or divide rounds correctly. Everything else (too
+		// many digits, huge exponents, NaN, Infinity or junk) is slow but
+		// rare.
+		if (any && i == length && digits <= 18 && mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+			double v = exponent >= 0 ? mantissa * POWERS[exponent] : mantissa / POWERS[-exponent];
+			return negative ? -v : v;
+		}
+		return Double.parseDouble(new String(text, 0, length, StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Reads a table of three numbers per line from a buffered stream
+	 */
+	private static final class Parser {
+		private final InputStream in;
+		private final String name;
+
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int position = 0;
+		private int limit = 0;
+
+		// The current field
+		private byte[] field = new byte[64];
+		private int fieldLength;
+
+		private int line = 1;
+
+		Parser(InputStream in, String name) {
+			this.in = in;
+			this.name = name;
+		}
+
+		ReferenceCurve parse() throws IOException {
+			double[] theta = new double[1024];
+			double[] r = new double[1024];
+			double[] y = new double[1024];
+			int n = 0;
+
+			double[] row = new double[3];
+			int c;
+			while ((c = skipSeparators()) != -1) {
+				if (c == '\n') {
+					// Blank line
+					position++;
+					line++;
+					continue;
+				}
+
+				// The number of fields, and how many of them are numbers
+				int columns = 0;
+				int numbers = 0;
+				while ((c = skipSeparators()) != -1 && c != '\n') {
+					readField();
+					try {
+						double v = parseDouble(field, fieldLength);
+						if (columns < 3) {
+							row[columns] = v;
+						}
+						numbers++;
+					} catch (NumberFormatException e) {
+						// Not a number
+					}
+					columns++;
+				}
+
+				if (numbers == 0 && n == 0) {
+					// A heading
+				} else if (numbers != 3 || columns != 3) {
+					throw new IOException(name + ":" + line + ": expected three numbers (theta r y)");
+				} else {
+					if (n == theta.length) {
+						theta = Arrays.copyOf(theta, n * 2);
+						r = Arrays.copyOf(r, n * 2);
+						y = Arrays.copyOf(y, n * 2);
+					}
+					theta[n] = row[0];
+					r[n] = row[1];
+					y[n] = row[2];
+					n++;
+				}
+				if (c == '\n') {
+					position++;
+					line++;
+				}
+			}
+
+			return new ReferenceCurve(Arrays.copyOf(theta, n), Arrays.copyOf(r, n), Arrays.copyOf(y, n));
+		}
+
+		/**
+		 * Move past any separators on this line
+		 *
+		 * @return The next byte (which is left unread), or -1 at the end of
+		 *         the text
+		 */
+		private int skipSeparators() throws IOException {
+			while (true) {
+				if (position == limit && !fill()) {
+					return -1;
+				}
+				byte b = buffer[position];
+				if (b != ' ' && b != '\t' && b != ',' && b != '\r') {
+					return b;
+				}
+				position++;
+			}
+		}
+
+		/**
+		 * Copy bytes into field up to the next separator or end of line
+		 */
+		private void readField() throws IOException {
+			fieldLength = 0;
+			while (position < limit || fill()) {
+				byte b = buffer[position];
+				if (b == ' ' || b == '\t' || b == ',' || b == '\r' || b == '\n') {
+					return;
+				}
+				if (fieldLength == field.length) {
+					field = Arrays.copyOf(field, fieldLength * 2);
+				}
+				field[fieldLength++] = b;
+				position++;
+			}
+		}
+
+		private boolean fill() throws IOException {
+			int read = in.read(buffer);
+			if (read <= 0) {
+				return false;
+			}
+			position = 0;
+			limit = read;
+			return true;
+		}
+	}
+}
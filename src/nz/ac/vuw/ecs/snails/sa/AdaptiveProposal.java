@@ -0,0 +1,243 @@
+package nz.ac.vuw.ecs.snails.sa;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Proposes annealing moves over all five Raup parameters, with step sizes
+ * that tune themselves as the chain runs.
+ *
+ * Most moves change a single parameter by a Gaussian step with that
+ * parameter's own scale. After every move the scale is nudged (a
+ * Robbins-Monro update on its logarithm) so that the acceptance rate of moves
+ * of that parameter heads toward a target. As annealing cools, fewer moves
+ * are accepted at the same step size, so the steps shrink with the
+ * temperature on their own.
+ *
+ * If correlated moves are turned on, a running (exponentially weighted)
+ * covariance of the accepted states is kept as well. Once enough moves have
+ * been accepted, some moves shift all five parameters at once along
+ * L z, where L is the Cholesky factor of the covariance and z is standard
+ * normal. These follow ridges in the landscape (such as the one along which
+ * rc t is constant) that single parameter moves can only zig-zag along. They
+ * have their own scale, tuned the same way.
+ *
+ * An instance belongs to a single chain, and is not thread safe.
+ *
+ */
+public class AdaptiveProposal {
+
+	/**
+	 * The move number for a move of every parameter at once
+	 */
+	public static final int CORRELATED = RaupState.PARAMETERS;
+
+	private static final int N = RaupState.PARAMETERS;
+
+	// The best acceptance rate for one dimensional and high dimensional
+	// random walk Metropolis (Roberts, Gelman and Gilks)
+	private static final double SINGLE_TARGET = 0.44;
+	private static final double CORRELATED_TARGET = 0.234;
+
+	// The adaptation slows as 1 / sqrt(n) but never stops entirely, as the
+	// right step size keeps changing as the chain cools
+	private static final double MIN_GAIN = 0.01;
+
+	// The weight of each accepted state in the running covariance
+	private static final double FORGET = 0.01;
+
+	// How many accepted moves are needed before the covariance is trusted,
+	// and how often after that it is factorised again
+	private static final int WARM_UP = 200;
+	private static final int REFACTOR = 100;
+
+	private final double[] logScale = new double[N + 1];
+	private final long[] moves = new long[N + 1];
+	private final long[] accepted = new long[N + 1];
+
+	private final boolean correlated;
+	private final double[] mean = new double[N];
+	private final double[][] covariance = new double[N][N];
+	private double[][] cholesky = null;
+	private long acceptedStates = 0;
+
+	private int lastMove = -1;
+
+	/**
+	 * Create a new proposal with every step scale starting at the same size
+	 *
+	 * @param initialScale
+	 *            The starting step scale for every parameter
+	 * @param correlated
+	 *            Whether to learn and use correlated moves
+	 */
+	public AdaptiveProposal(double initialScale, boolean correlated) {
+		Arrays.fill(logScale, Math.log(initialScale));
+		// 2.38^2 / d is the optimal scaling of a move drawn from the true
+		// covariance
+		logScale[CORRELATED] = Math.log(2.38 / Math.sqrt(N));
+		this.correlated = correlated;
+	}
+
+	/**
+	 * Propose a move from a state. The kind of move made can be found with
+	 * lastMove, and must be passed back to feedback once it is known whether
+	 * the move was accepted.
+	 *
+	 * @param s
+	 *            The state to move from
+	 * @param r
+	 *            The random number generator to use
+	 * @return The proposed state
+	 */
+	public RaupState propose(RaupState s, Random r) {
+		if (cholesky != null && r.nextBoolean()) {
+			lastMove = CORRELATED;
+			double scale = Math.exp(logScale[CORRELATED]);
+			double[] z = new double[N];
+			for (int i = 0; i < N; i++) {
+				z[i] = r.nextGaussian();
+			}
+			double[] shift = new double[N];
+			for (int i = 0; i < N; i++) {
+				double sum = 0;
+				for (int j = 0; j <= i; j++) {
+					sum += cholesky[i][j] * z[j];
+				}
+				shift[i] = scale * sum;
+			}
+			return s.move(shift);
+		}
+
+		int parameter = r.nextInt(N);
+		lastMove = parameter;
+		return s.move(parameter, r.nextGaussian() * Math.exp(logScale[parameter]));
+	}
+
+	/**
+	 * @return The kind of the last move proposed: the number of the parameter
+	 *         that was moved, or CORRELATED
+	 */
+	public int lastMove() {
+		return lastMove;
+	}
+
+	/**
+	 * Tell the proposal whether a move was accepted, so it can adjust its
+	 * step sizes.
+	 *
+	 * @param move
+	 *            The kind of move (from lastMove)
+	 * @param wasAccepted
+	 *            Whether it was accepted
+	 * @param current
+	 *            The state of the chain after the move
+	 */
+	public void feedback(int move, boolean wasAccepted, RaupState current) {
+		moves[move]++;
+		if (wasAccepted) {
+			accepted[move]++;
+		}
+		double target = move == CORRELATED ? CORRELATED_TARGET : SINGLE_TARGET;
+		double gain = Math.max(MIN_GAIN, 1 / Math.sqrt(moves[move]));
+		logScale[move] += gain * ((wasAccepted ? 1 : 0) - target);
+
+		if (correlated && wasAccepted) {
+			learn(current);
+		}
+	}
+
+	/**
+	 * Add an accepted state to the running covariance
+	 */
+	private void learn(RaupState s) {
+		acceptedStates++;
+		if (acceptedStates == 1) {
+			for (int i = 0; i < N; i++) {
+				mean[i] = s.get(i);
+			}
+			return;
+		}
+
+		double[] d = new double[N];
+		for (int i = 0; i < N; i++) {
+			d[i] = s.get(i) - mean[i];
+			mean[i] += FORGET * d[i];
+		}
+		for (int i = 0; i < N; i++) {
+			for (int j = 0; j <= i; j++) {
+				covariance[i][j] = (1 - FORGET) * (covariance[i][j] + FORGET * d[i] * d[j]);
+			}
+		}
+
+		if (acceptedStates >= WARM_UP && acceptedStates % REFACTOR == 0) {
+			double[][] l = cholesky(covariance);
+			if (l != null) {
+				cholesky = l;
+			}
+		}
+	}
+
+	/**
+	 * Factorise a covariance (only the lower triangle is read) as L L^T. A
+	 * little is added to the diagonal so parameters that haven't moved don't
+	 * make it singular.
+	 *
+	 * @return L, or null if the matrix isn't positive definite
+	 */
+	static double[][] cholesky(double[][] a) {
+		double trace = 0;
+		for (int i = 0; i < N; i++) {
+			trace += a[i][i];
+		}
+		double jitter = 1e-10 * trace / N + 1e-300;
+
+		double[][] l = new double[N][N];
+		for (int i = 0; i < N; i++) {
+			for (int j = 0; j <= i; j++) {
+				double sum = a[i][j] + (i == j ? jitter : 0);
+				for (int k = 0; k < j; k++) {
+					sum -= l[i][k] * l[j][k];
+				}
+				if (i == j) {
+					if (!(sum > 0)) {
+						return null;
+					}
+					l[i][i] = Math.sqrt(sum);
+				} else {
+					l[i][j] = sum / l[j][j];
+				}
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * Get the current step scale of one kind of move
+	 *
+	 * @param move
+	 *            The number of a parameter, or CORRELATED
+	 * @return The step scale
+	 */
+	public double getScale(int move) {
+		return Math.exp(logScale[move]);
+	}
+
+	/**
+	 * Get the fraction of one kind of move that has been accepted
+	 *
+	 * @param move
+	 *            The number of a parameter, or CORRELATED
+	 * @return The acceptance rate, or NaN if there haven't been any
+	 */
+	public double getAcceptance(int move) {
+		return accepted[move] / (double) moves[move];
+	}
+
+	/**
+	 * @return Whether correlated moves are being made yet
+	 */
+	public boolean isCorrelating() {
+		return cholesky != null;
+	}
+}
@@ -0,0 +1,65 @@
+package nz.ac.vuw.ecs.snails.sa;
+
+/**
+ * A schedule driven by the acceptance rate rather than by time. Rather than
+ * fixing the temperature at each step, it fixes the fraction of moves that
+ * should be accepted, which falls geometrically from startAcceptance to
+ * endAcceptance over the run. After every move the temperature is nudged (on
+ * a log scale) up if too few moves are being accepted, and down if too many
+ * are. This copes with landscapes where a fixed schedule would freeze too
+ * early or stay hot for too long.
+ *
+ * An instance belongs to a single chain.
+ *
+ */
+public class AdaptiveScale implements Scale {
+
+	// How hard each move pushes the temperature
+	private static final double GAIN = 0.01;
+
+	private final double minRange;
+	private final double maxRange;
+	private final double decay;
+
+	private double target;
+	private double logTemperature;
+	private int lastX = 0;
+
+	/**
+	 * Create a new adaptive schedule
+	 *
+	 * @param maxDomain
+	 *            The length of the schedule
+	 * @param minRange
+	 *            The lowest temperature allowed
+	 * @param maxRange
+	 *            The starting (and highest allowed) temperature
+	 * @param startAcceptance
+	 *            The target acceptance rate at the start
+	 * @param endAcceptance
+	 *            The target acceptance rate at the end
+	 */
+	public AdaptiveScale(int maxDomain, double minRange, double maxRange, double startAcceptance,
+			double endAcceptance) {
+		this.minRange = minRange;
+		this.maxRange = maxRange;
+		this.decay = Math.pow(endAcceptance / startAcceptance, 1.0 / maxDomain);
+		this.target = startAcceptance;
+		this.logTemperature = Math.log(maxRange);
+	}
+
+	@Override
+	public double scale(int x) {
+		if (x != lastX) {
+			target *= x == lastX + 1 ? decay : Math.pow(decay, (double) x - lastX);
+			lastX = x;
+		}
+		return Math.exp(logTemperature);
+	}
+
+	@Override
+	public void feedback(boolean accepted) {
+		logTemperature += GAIN * (target - (accepted ? 1 : 0));
+		logTemperature = Math.min(Math.log(maxRange), Math.max(Math.log(minRange), logTemperature));
+	}
+}
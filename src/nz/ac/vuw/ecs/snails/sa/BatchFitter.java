@@ -0,0 +1,422 @@
+package nz.ac.vuw.ecs.snails.sa;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nz.ac.vuw.ecs.snails.reference.ReferenceCurve;
+
+/**
+ * Fits a whole collection of specimens in one JVM, rather than starting
+ * SimulatedAnnealing once per specimen and paying for start up and JIT warm
+ * up every time.
+ *
+ * Every specimen is read as a task on a single ForkJoinPool. As soon as one
+ * is read, each of its restarts (independent anneals sharing one RaupKernel)
+ * becomes a task on the same pool, so the pool is kept busy with restarts of
+ * whichever specimens are ready, and idle threads steal work from busy ones.
+ * When the last restart of a specimen finishes, the best of them is written
+ * out as a CSV row straight away, so rows come out in the order specimens
+ * finish. Specimen names are quoted if they need to be.
+ *
+ */
+public class BatchFitter {
+
+	// Files in a directory that are taken to be specimens
+	private static final List<String> EXTENSIONS = Arrays.asList(".csv", ".tsv", ".txt", ".dat");
+
+	private final ForkJoinPool pool;
+	private final int restarts;
+
+	private int iterationBudget = Integer.MAX_VALUE;
+	private boolean estimate = false;
+	private boolean polish = false;
+	private boolean adaptive = false;
+	private Long seed = null;
+
+	/**
+	 * Create a new batch fitter
+	 *
+	 * @param pool
+	 *            The pool to read specimens and run restarts on
+	 * @param restarts
+	 *            The number of anneals per specimen
+	 */
+	public BatchFitter(ForkJoinPool pool, int restarts) {
+		if (restarts < 1) {
+			throw new IllegalArgumentException("Every specimen needs at least one restart");
+		}
+		this.pool = pool;
+		this.restarts = restarts;
+	}
+
+	/**
+	 * Stop each anneal after at most this many iterations
+	 *
+	 * @param iterations
+	 *            The most iterations per anneal
+	 */
+	public void setIterationBudget(int iterations) {
+		this.iterationBudget = iterations;
+	}
+
+	/**
+	 * Start every anneal from the closed form estimate rather than a random
+	 * state
+	 *
+	 * @param estimate
+	 *            Whether to start from the estimate
+	 */
+	public void setEstimate(boolean estimate) {
+		this.estimate = estimate;
+	}
+
+	/**
+	 * Refine the result of every anneal with Levenberg-Marquardt
+	 *
+	 * @param polish
+	 *            Whether to polish
+	 */
+	public void setPolish(boolean polish) {
+		this.polish = polish;
+	}
+
+	/**
+	 * Move all five parameters with self tuning step sizes
+	 *
+	 * @param adaptive
+	 *            Whether to use an AdaptiveProposal
+	 */
+	public void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * Make every run repeatable. Each restart of each specimen gets its own
+	 * stream of random numbers made from this seed, the specimen's number and
+	 * the restart's number, so the results don't depend on which thread ran
+	 * what.
+	 *
+	 * @param seed
+	 *            The seed, or null for different results every time
+	 */
+	public void setSeed(Long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Fit one specimen, reading it and running its restarts on the pool
+	 *
+	 * @param index
+	 *            The number of the specimen (used to seed its restarts)
+	 * @param name
+	 *            The name to give the specimen
+	 * @param file
+	 *            The file holding it
+	 * @return The best fit, when it is done
+	 */
+	public CompletableFuture<Fit> fit(int index, String name, File file) {
+		// Timed from when the specimen starts being read, not from when it
+		// was queued behind the others
+		long[] started = new long[1];
+		return CompletableFuture.supplyAsync(() -> {
+			started[0] = System.nanoTime();
+			return read(file);
+		}, pool).thenCompose(reference -> {
+			RaupKernel kernel = new RaupKernel(reference);
+			RaupState start = estimate ? RaupState.estimate(reference).state : null;
+			LevenbergMarquardt optimiser = polish ? new LevenbergMarquardt(reference) : null;
+
+			List<CompletableFuture<RaupState>> runs = new ArrayList<>(restarts);
+			for (int i = 0; i < restarts; i++) {
+				int restart = i;
+				runs.add(CompletableFuture.supplyAsync(() -> anneal(kernel, start, optimiser, index, restart), pool));
+			}
+			return CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+				RaupState best = null;
+				double bestDistance = Double.POSITIVE_INFINITY;
+				for (CompletableFuture<RaupState> run : runs) {
+					RaupState s = run.join();
+					double d = s.distanceTo(reference);
+					if (best == null || d < bestDistance) {
+						best = s;
+						bestDistance = d;
+					}
+				}
+				return new Fit(name, best, bestDistance, (System.nanoTime() - started[0]) / 1e9);
+			});
+		});
+	}
+
+	private RaupState anneal(RaupKernel kernel, RaupState start, LevenbergMarquardt optimiser, int index,
+			int restart) {
+		CheckpointRandom r = seed == null ? new CheckpointRandom()
+				: new CheckpointRandom(seed ^ (index * 0x9E3779B97F4A7C15L) ^ ((long) restart << 32));
+		SimulatedAnnealing sa = new SimulatedAnnealing(kernel, r);
+		sa.setStart(start);
+		sa.setIterationBudget(iterationBudget);
+		if (adaptive) {
+			sa.setProposal(new AdaptiveProposal(0.01, false));
+		}
+		RaupState s = sa.minimise();
+		if (optimiser != null) {
+			s = optimiser.minimise(s).state;
+		}
+		return s;
+	}
+
+	private static ReferenceCurve read(File file) {
+		try {
+			return ReferenceCurve.fromFile(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Fit every specimen, writing a CSV row for each as soon as it is done.
+	 * Specimens that can't be read or fitted are reported on standard error
+	 * and left out.
+	 *
+	 * @param specimens
+	 *            The specimen files
+	 * @param out
+	 *            Where to write the rows
+	 * @return The number of specimens that failed
+	 */
+	public int fitAll(List<File> specimens, PrintStream out) {
+		out.println("specimen,w,r0,rc,y0,t,rmse,seconds");
+		out.flush();
+		AtomicInteger failed = new AtomicInteger();
+		List<CompletableFuture<Void>> all = new ArrayList<>(specimens.size());
+		for (int i = 0; i < specimens.size(); i++) {
+			File file = specimens.get(i);
+			all.add(fit(i, file.getPath(), file).handle((fit, error) -> {
+				if (error != null) {
+					failed.incrementAndGet();
+					Throwable cause = error.getCause() != null ? error.getCause() : error;
+					System.err.println("Failed to fit " + file + ": " + cause);
+					return null;
+				}
+				RaupState s = fit.state;
+				synchronized (out) {
+					out.println(String.format("%s,%f,%f,%f,%f,%f,%f,%.3f", csv(fit.name), s.w, s.r0, s.rc, s.y0,
+							s.t, fit.distance, fit.seconds));
+					out.flush();
+				}
+				return null;
+			}));
+		}
+		CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).join();
+		return failed.get();
+	}
+
+	/**
+	 * Quote a field for a CSV row if it needs it: if it holds a comma, a
+	 * quote or a line break it is put in quotes, with any quotes doubled
+	 */
+	private static String csv(String field) {
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0
+				&& field.indexOf('\r') < 0) {
+			return field;
+		}
+		return '"' + field.replace("\"", "\"\"") + '"';
+	}
+
+	/**
+	 * Find the specimens to fit. A directory gives every file in it with a
+	 * .csv, .tsv, .txt or .dat extension, in name order. Any other file is a
+	 * manifest, listing one specimen file per line (relative to the manifest)
+	 * with blank lines and lines starting with # ignored.
+	 *
+	 * @param source
+	 *            A directory or manifest
+	 * @return The specimen files
+	 * @throws IOException
+	 *             If the manifest can't be read
+	 */
+	public static List<File> specimens(File source) throws IOException {
+		List<File> files = new ArrayList<>();
+		if (source.isDirectory()) {
+			File[] contents = source.listFiles();
+			if (contents == null) {
+				throw new IOException("Can't list " + source);
+			}
+			Arrays.sort(contents);
+			for (File f : contents) {
+				String name = f.getName().toLowerCase();
+				if (f.isFile() && !name.startsWith(".") && EXTENSIONS.stream().anyMatch(name::endsWith)) {
+					files.add(f);
+				}
+			}
+			return files;
+		}
+
+		try (BufferedReader in = new BufferedReader(new FileReader(source))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				File f = new File(line);
+				files.add(f.isAbsolute() ? f : new File(source.getAbsoluteFile().getParentFile(), line));
+			}
+		}
+		return files;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			usage();
+		}
+
+		int restarts = 8;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int budget = Integer.MAX_VALUE;
+		boolean estimate = false;
+		boolean polish = false;
+		boolean adaptive = false;
+		Long seed = null;
+		File outFile = null;
+		for (int i = 1; i < args.length; i++) {
+			switch (args[i]) {
+			case "--restarts":
+				// Anneals per specimen
+				if (++i == args.length) {
+					usage();
+				}
+				restarts = Integer.parseInt(args[i]);
+				break;
+			case "--threads":
+				if (++i == args.length) {
+					usage();
+				}
+				threads = Integer.parseInt(args[i]);
+				break;
+			case "--budget":
+				// Iterations per anneal
+				if (++i == args.length) {
+					usage();
+				}
+				budget = Integer.parseInt(args[i]);
+				break;
+			case "--estimate":
+				estimate = true;
+				break;
+			case "--polish":
+				polish = true;
+				break;
+			case "--adaptive":
+				adaptive = true;
+				break;
+			case "--seed":
+				if (++i == args.length) {
+					usage();
+				}
+				seed = Long.parseLong(args[i]);
+				break;
+			case "--out":
+				// Write the rows here rather than standard out
+				if (++i == args.length) {
+					usage();
+				}
+				outFile = new File(args[i]);
+				break;
+			default:
+				System.err.println("Unsupported argument: " + args[i]);
+				usage();
+			}
+		}
+
+		List<File> specimens;
+		try {
+			specimens = specimens(new File(args[0]));
+		} catch (IOException e) {
+			System.err.println("Failed to read the list of specimens");
+			e.printStackTrace();
+			System.exit(-1);
+			return;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		BatchFitter fitter = new BatchFitter(pool, restarts);
+		fitter.setIterationBudget(budget);
+		fitter.setEstimate(estimate);
+		fitter.setPolish(polish);
+		fitter.setAdaptive(adaptive);
+		fitter.setSeed(seed);
+
+		PrintStream out = System.out;
+		if (outFile != null) {
+			try {
+				out = new PrintStream(outFile);
+			} catch (FileNotFoundException e) {
+				System.err.println("Failed to open " + outFile);
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		int failed = fitter.fitAll(specimens, out);
+		// Only close the file, never standard out
+		if (outFile != null) {
+			out.close();
+		}
+		pool.shutdown();
+
+		System.err.println((specimens.size() - failed) + " of " + specimens.size() + " specimens fitted");
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage:");
+		System.err.println("java -cp sa.jar nz.ac.vuw.ecs.snails.sa.BatchFitter <directory|manifest> [--restarts n] [--threads n]");
+		System.err.println("    [--budget iterations] [--estimate] [--polish] [--adaptive] [--seed s] [--out results.csv]");
+		System.exit(-1);
+	}
+
+	/**
+	 * The best fit found for a specimen
+	 */
+	public static class Fit {
+		/**
+		 * The specimen
+		 */
+		public final String name;
+
+		/**
+		 * The best state found over all restarts
+		 */
+		public final RaupState state;
+
+		/**
+		 * The distance between the state and the specimen
+		 */
+		public final double distance;
+
+		/**
+		 * How long the specimen took, from being read to its last restart
+		 * finishing
+		 */
+		public final double seconds;
+
+		public Fit(String name, RaupState state, double distance, double seconds) {
+			this.name = name;
+			this.state = state;
+			this.distance = distance;
+			this.seconds = seconds;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package nz.ac.vuw.ecs.snails.sa;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The best state found so far by any of a group of chains. Chains publish
+ * to it whenever they like and readers (the final output, a plot) can look at
+ * it at any time. Updates are a compare and set on a single reference, so
+ * nothing ever blocks.
+ *
+ */
+public class BestBoard {
+
+	private final AtomicReference<Entry> best = new AtomicReference<>();
+
+	/**
+	 * Offer a state to the board. It is only kept if it is better than
+	 * everything offered before it.
+	 *
+	 * @param state
+	 *            The state
+	 * @param distance
+	 *            The distance from the state to the reference
+	 * @return true if the state is now the best
+	 */
+	public boolean offer(RaupState state, double distance) {
+		Entry entry = new Entry(state, distance);
+		while (true) {
+			Entry current = best.get();
+			if (current != null && !(distance < current.distance)) {
+				return false;
+			}
+			if (best.compareAndSet(current, entry)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Get the best state and its distance together. Reading getState and
+	 * getDistance separately may see two different entries if a chain
+	 * publishes in between.
+	 *
+	 * @return The best entry so far, or null if there hasn't been one
+	 */
+	public Entry get() {
+		return best.get();
+	}
+
+	/**
+	 * @return The best state offered so far, or null if there hasn't been one
+	 */
+	public RaupState getState() {
+		Entry e = best.get();
+		return e == null ? null : e.state;
+	}
+
+	/**
+	 * @return The distance of the best state, or positive infinity if there
+	 *         hasn't been one
+	 */
+	public double getDistance() {
+		Entry e = best.get();
+		return e == null ? Double.POSITIVE_INFINITY : e.distance;
+	}
+
+	/**
+	 * A state and its distance
+	 */
+	public static class Entry {
+		public final RaupState state;
+		public final double distance;
+
+		Entry(RaupState state, double distance) {
+			this.state = state;
+			this.distance = distance;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package nz.ac.vuw.ecs.snails.sa;
+
+import java.util.Random;
+
+/**
+ * A Random whose state can be saved and restored, so that a chain restarted
+ * from a checkpoint draws exactly the same numbers it would have if it had
+ * never stopped. It produces the same sequence as java.util.Random with the
+ * same seed, but keeps the seed in a plain field (there is no way to read it
+ * back out of Random). That also means it must not be shared between
+ * threads, which a chain never does anyway.
+ *
+ */
+public class CheckpointRandom extends Random {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	private static final long ADDEND = 0xBL;
+	private static final long MASK = (1L << 48) - 1;
+
+	// Not initialised here, as Random's constructor calls setSeed before
+	// field initialisers would run
+	private long seed;
+	private boolean haveNextNextGaussian;
+	private double nextNextGaussian;
+
+	public CheckpointRandom() {
+		super();
+	}
+
+	public CheckpointRandom(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public void setSeed(long seed) {
+		super.setSeed(seed);
+		this.seed = (seed ^ MULTIPLIER) & MASK;
+		this.haveNextNextGaussian = false;
+	}
+
+	@Override
+	protected int next(int bits) {
+		seed = (seed * MULTIPLIER + ADDEND) & MASK;
+		return (int) (seed >>> (48 - bits));
+	}
+
+	@Override
+	public double nextGaussian() {
+		// The same polar method as Random, but with the spare value kept
+		// where it can be saved
+		if (haveNextNextGaussian) {
+			haveNextNextGaussian = false;
+			return nextNextGaussian;
+		}
+		double v1, v2, s;
+		do {
+			v1 = 2 * nextDouble() - 1;
+			v2 = 2 * nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		} while (s >= 1 || s == 0);
+		double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+		nextNextGaussian = v2 * multiplier;
+		haveNextNextGaussian = true;
+		return v1 * multiplier;
+	}
+
+	/**
+	 * Get the whole state of the generator
+	 *
+	 * @return The state, to pass to setState
+	 */
+	public State getState() {
+		return new State(seed, haveNextNextGaussian, nextNextGaussian);
+	}
+
+	/**
+	 * Put the generator back to a saved state
+	 *
+	 * @param state
+	 *            The state from getState
+	 */
+	public void setState(State state) {
+		this.seed = state.seed;
+		this.haveNextNextGaussian = state.haveNextNextGaussian;
+		this.nextNextGaussian = state.nextNextGaussian;
+	}
+
+	/**
+	 * The state of a CheckpointRandom
+	 */
+	public static class State {
+		public final long seed;
+		public final boolean haveNextNextGaussian;
+		public final double nextNextGaussian;
+
+		public State(long seed, boolean haveNextNextGaussian, double nextNextGaussian) {
+			this.seed = seed;
+			this.haveNextNextGaussian = haveNextNextGaussian;
+			this.nextNextGaussian = nextNextGaussian;
+		}
+	}
+}
@@ -1,9 +1,25 @@
 package nz.ac.vuw.ecs.snails.sa;
 
+/**
+ * Geometric cooling, T = maxRange * base^x, where base is chosen so that T
+ * reaches minRange at maxDomain.
+ *
+ * Annealing asks for x = 0, 1, 2, ... in order, so each temperature is just
+ * the one before times base. The power is only worked out in full when x
+ * jumps, and every RESYNC steps to stop rounding errors building up. This
+ * means an instance belongs to a single chain.
+ *
+ */
 public class GeometricScale implements Scale {
+	// How often the temperature is recomputed from scratch
+	private static final int RESYNC = 4096;
+
 	private final double base;
 	private final double maxRange;
 
+	private int lastX = Integer.MIN_VALUE;
+	private double last;
+
 	public GeometricScale(double maxDomain, double minRange, double maxRange) {
 		this.maxRange = maxRange;
 		base = Math.pow(minRange/maxRange,1/maxDomain);
@@ -11,7 +27,13 @@ public class GeometricScale implements Scale {
 
 	@Override
 	public double scale(int x) {
-		return (maxRange * Math.pow(base, x));
+		if (x == lastX + 1 && x % RESYNC != 0) {
+			last *= base;
+		} else if (x != lastX) {
+			last = maxRange * Math.pow(base, x);
+		}
+		lastX = x;
+		return last;
 	}
 
 }
@@ -0,0 +1,287 @@
+package nz.ac.vuw.ecs.snails.sa;
+
+import nz.ac.vuw.ecs.snails.reference.ReferenceCurve;
+
+/**
+ * A gradient based local optimiser for the five Raup parameters (w, r0, y0,
+ * rc, t). It uses the analytic partial derivatives of the model, with g =
+ * w^k and k = theta / 2pi:
+ *
+ * <pre>
+ * r = r0 g                  dr/dw = r0 k g / w          dr/dr0 = g
+ * y = y0 g + rc t (g - 1)   dy/dw = (y0 + rc t) k g / w dy/dy0 = g
+ *                           dy/drc = t (g - 1)          dy/dt = rc (g - 1)
+ * </pre>
+ *
+ * J^T J and J^T e are accumulated in a single pass over the reference, so the
+ * Jacobian itself is never stored. As only the product rc t appears in the
+ * model, J^T J is always singular; the damping term keeps the steps well
+ * defined.
+ *
+ * Where annealing needs around a million distance evaluations, this usually
+ * converges in tens of iterations from a reasonable start. It only finds the
+ * nearest minimum though, so it is best used from a good start (such as
+ * RaupState.estimate) or to polish the result of annealing.
+ *
+ * This class is immutable and thread safe.
+ *
+ */
+public class LevenbergMarquardt {
+
+	private static final int PARAMS = 5;
+
+	private final ReferenceCurve reference;
+	private final RaupKernel kernel;
+
+	// theta / 2pi for every sample
+	private final double[] k;
+
+	private final int maxIterations;
+
+	public LevenbergMarquardt(ReferenceCurve reference) {
+		this(reference, 200);
+	}
+
+	/**
+	 * Create a new optimiser for a reference curve
+	 *
+	 * @param reference
+	 *            The curve to fit
+	 * @param maxIterations
+	 *            The largest number of accepted steps to take
+	 */
+	public LevenbergMarquardt(ReferenceCurve reference, int maxIterations) {
+		this.reference = reference;
+		this.kernel = new RaupKernel(reference);
+		this.maxIterations = maxIterations;
+		k = new double[reference.length];
+		for (int i = 0; i < reference.length; i++) {
+			k[i] = reference.theta[i] / (2.0 * Math.PI);
+		}
+	}
+
+	/**
+	 * Find the nearest minimum to a starting state
+	 *
+	 * @param start
+	 *            Where to start from
+	 * @return The best state found
+	 */
+	public Result minimise(RaupState start) {
+		double[] p = { start.w, start.r0, start.y0, start.rc, start.t };
+		double distance = kernel.distance(start);
+		double cost = distance * distance;
+
+		double lambda = 1e-3;
+		double[][] jtj = new double[PARAMS][PARAMS];
+		double[] jte = new double[PARAMS];
+		double[][] a = new double[PARAMS][PARAMS];
+		double[] delta = new double[PARAMS];
+
+		int iteration = 0;
+		boolean converged = false;
+		while (iteration < maxIterations && !converged) {
+			if (!(p[0] > 0)) {
+				// The derivatives don't exist
+				break;
+			}
+			normalEquations(p, jtj, jte);
+
+			// Keep increasing the damping until a step makes things better
+			boolean improved = false;
+			while (!improved && lambda < 1e16) {
+				for (int i = 0; i < PARAMS; i++) {
+					System.arraycopy(jtj[i], 0, a[i], 0, PARAMS);
+					// Scale by the diagonal, but make sure parameters with
+					// no gradient (rc when t is 0) still get damped
+					a[i][i] += lambda * (jtj[i][i] + 1e-12);
+				}
+				if (!solve(a, jte, delta)) {
+					lambda *= 10;
+					continue;
+				}
+
+				RaupState candidate = new RaupState(p[1] + delta[1], p[2] + delta[2], p[3] + delta[3], p[0] + delta[0],
+						p[4] + delta[4]);
+				double candidateDistance = kernel.distance(candidate);
+				double candidateCost = candidateDistance * candidateDistance;
+
+				if (candidateCost < cost) {
+					improved = true;
+					double change = cost - candidateCost;
+					p[0] = candidate.w;
+					p[1] = candidate.r0;
+					p[2] = candidate.y0;
+					p[3] = candidate.rc;
+					p[4] = candidate.t;
+					distance = candidateDistance;
+					cost = candidateCost;
+					lambda = Math.max(lambda / 10, 1e-12);
+					converged = change <= 1e-12 * cost || cost == 0;
+				} else {
+					lambda *= 10;
+				}
+			}
+			if (!improved) {
+				// No step helps any more, so this is the minimum
+				converged = true;
+			}
+			iteration++;
+		}
+
+		return new Result(new RaupState(p[1], p[2], p[3], p[0], p[4]), distance, iteration);
+	}
+
+	/**
+	 * Work out J^T J and J^T e for the current parameters, where e is the
+	 * residual (reference - model)
+	 */
+	private void normalEquations(double[] p, double[][] jtj, double[] jte) {
+		double w = p[0], r0 = p[1], y0 = p[2], rc = p[3], t = p[4];
+		double lnw = Math.log(w);
+		double[] r = reference.r;
+		double[] y = reference.y;
+
+		for (int i = 0; i < PARAMS; i++) {
+			jte[i] = 0;
+			for (int j = 0; j < PARAMS; j++) {
+				jtj[i][j] = 0;
+			}
+		}
+
+		// Only the non zero entries of each row of J are kept
+		double sww = 0, swr0 = 0, swy0 = 0, swrc = 0, swt = 0;
+		double sr0r0 = 0, sy0y0 = 0, sy0rc = 0, sy0t = 0, srcrc = 0, srct = 0, stt = 0;
+		double ew = 0, er0 = 0, ey0 = 0, erc = 0, et = 0;
+		for (int i = 0; i < reference.length; i++) {
+			double g = Math.exp(lnw * k[i]);
+			double dgdw = k[i] * g / w;
+
+			// Row for r
+			double rw = r0 * dgdw;
+			double rr0 = g;
+			double er = r[i] - r0 * g;
+
+			// Row for y
+			double yw = (y0 + rc * t) * dgdw;
+			double yy0 = g;
+			double yrc = t * (g - 1);
+			double yt = rc * (g - 1);
+			double ey = y[i] - (y0 * g + rc * t * (g - 1));
+
+			sww += rw * rw + yw * yw;
+			swr0 += rw * rr0;
+			swy0 += yw * yy0;
+			swrc += yw * yrc;
+			swt += yw * yt;
+			sr0r0 += rr0 * rr0;
+			sy0y0 += yy0 * yy0;
+			sy0rc += yy0 * yrc;
+			sy0t += yy0 * yt;
+			srcrc += yrc * yrc;
+			srct += yrc * yt;
+			stt += yt * yt;
+
+			ew += rw * er + yw * ey;
+			er0 += rr0 * er;
+			ey0 += yy0 * ey;
+			erc += yrc * ey;
+			et += yt * ey;
+		}
+
+		// Order is w, r0, y0, rc, t
+		jtj[0][0] = sww;
+		jtj[0][1] = jtj[1][0] = swr0;
+		jtj[0][2] = jtj[2][0] = swy0;
+		jtj[0][3] = jtj[3][0] = swrc;
+		jtj[0][4] = jtj[4][0] = swt;
+		jtj[1][1] = sr0r0;
+		jtj[2][2] = sy0y0;
+		jtj[2][3] = jtj[3][2] = sy0rc;
+		jtj[2][4] = jtj[4][2] = sy0t;
+		jtj[3][3] = srcrc;
+		jtj[3][4] = jtj[4][3] = srct;
+		jtj[4][4] = stt;
+
+		jte[0] = ew;
+		jte[1] = er0;
+		jte[2] = ey0;
+		jte[3] = erc;
+		jte[4] = et;
+	}
+
+	/**
+	 * Solve a x = b by Gaussian elimination with partial pivoting. a and b are
+	 * not changed.
+	 *
+	 * @return false if a is singular
+	 */
+	private static boolean solve(double[][] a, double[] b, double[] x) {
+		int n = b.length;
+		double[][] m = new double[n][n + 1];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(a[i], 0, m[i], 0, n);
+			m[i][n] = b[i];
+		}
+
+		for (int col = 0; col < n; col++) {
+			int pivot = col;
+			for (int row = col + 1; row < n; row++) {
+				if (Math.abs(m[row][col]) > Math.abs(m[pivot][col])) {
+					pivot = row;
+				}
+			}
+			if (!(Math.abs(m[pivot][col]) > 0)) {
+				return false;
+			}
+			double[] tmp = m[col];
+			m[col] = m[pivot];
+			m[pivot] = tmp;
+
+			for (int row = col + 1; row < n; row++) {
+				double f = m[row][col] / m[col][col];
+				for (int c = col; c <= n; c++) {
+					m[row][c] -= f * m[col][c];
+				}
+			}
+		}
+
+		for (int row = n - 1; row >= 0; row--) {
+			double sum = m[row][n];
+			for (int c = row + 1; c < n; c++) {
+				sum -= m[row][c] * x[c];
+			}
+			x[row] = sum / m[row][row];
+			if (Double.isNaN(x[row]) || Double.isInfinite(x[row])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The result of a Levenberg-Marquardt run
+	 */
+	public static class Result {
+		/**
+		 * The best state found
+		 */
+		public final RaupState state;
+
+		/**
+		 * The distance between the state and the reference
+		 */
+		public final double distance;
+
+		/**
+		 * The number of iterations taken
+		 */
+		public final int iterations;
+
+		public Result(RaupState state, double distance, int iterations) {
+			this.state = state;
+			this.distance = distance;
+			this.iterations = iterations;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package nz.ac.vuw.ecs.snails.sa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Exchanger;
+import java.util.concurrent.Executors;
+
+import nz.ac.vuw.ecs.snails.reference.ReferenceCurve;
+
+/**
+ * Replica exchange (parallel tempering) search for the Raup parameters. Rather
+ * than several independent chains that each cool from hot to cold, a fixed
+ * ladder of temperatures is run at once with one chain (replica) per
+ * temperature. Every swapInterval steps, neighbouring replicas offer to swap
+ * states, and the swap is accepted with the Metropolis probability
+ *
+ * <pre>
+ * min(1, exp((1/T_i - 1/T_j)(E_i - E_j)))
+ * </pre>
+ *
+ * so good states found by the hot replicas (which wander between basins)
+ * drift down to the cold replicas (which refine them).
+ *
+ * Each replica runs on its own thread. Swaps alternate between the pairs
+ * (0,1), (2,3), ... and (1,2), (3,4), ... and the two threads of a pair hand
+ * their states to each other through an Exchanger, so no locks are held and
+ * replicas that aren't swapping never wait for each other.
+ *
+ */
+public class ParallelTempering {
+
+	private final RaupKernel kernel;
+	private final double[] temperatures;
+	private final int swapInterval;
+	private final int iterations;
+	private RaupState start = null;
+
+	/**
+	 * Create a new tempering run
+	 *
+	 * @param reference
+	 *            The curve to fit
+	 * @param replicas
+	 *            The number of replicas (at least 2)
+	 * @param minTemperature
+	 *            The temperature of the coldest replica
+	 * @param maxTemperature
+	 *            The temperature of the hottest replica
+	 * @param swapInterval
+	 *            How many steps each replica takes between swaps
+	 * @param iterations
+	 *            How many steps each replica takes in total
+	 */
+	public ParallelTempering(ReferenceCurve reference, int replicas, double minTemperature, double maxTemperature,
+			int swapInterval, int iterations) {
+		if (replicas < 2) {
+			throw new IllegalArgumentException("Tempering needs at least two replicas");
+		}
+		if (swapInterval < 1) {
+			throw new IllegalArgumentException("The swap interval must be positive");
+		}
+		this.kernel = new RaupKernel(reference);
+		this.swapInterval = swapInterval;
+		this.iterations = iterations;
+
+		// Geometric spacing gives roughly equal swap rates along the ladder
+		temperatures = new double[replicas];
+		for (int i = 0; i < replicas; i++) {
+			temperatures[i] = minTemperature * Math.pow(maxTemperature / minTemperature, i / (double) (replicas - 1));
+		}
+	}
+
+	/**
+	 * Set the state every replica starts from. If it is null (the default),
+	 * each replica starts from its own random state.
+	 *
+	 * @param start
+	 *            The starting state, or null for random ones
+	 */
+	public void setStart(RaupState start) {
+		this.start = start;
+	}
+
+	/**
+	 * Get the temperature ladder, coldest first
+	 *
+	 * @return The temperature of each replica
+	 */
+	public double[] getTemperatures() {
+		return temperatures.clone();
+	}
+
+	/**
+	 * Run every replica to the end and return the best state any of them saw.
+	 *
+	 * @return The best state found
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the replicas
+	 */
+	public RaupState minimise() throws InterruptedException {
+		int n = temperatures.length;
+		Random seeds = new Random();
+
+		List<SimulatedAnnealing> replicas = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			SimulatedAnnealing sa = new SimulatedAnnealing(kernel, new Random(seeds.nextLong()));
+			sa.setStart(start);
+			sa.init();
+			replicas.add(sa);
+		}
+
+		// exchangers[i] is shared by replicas i and i + 1
+		List<Exchanger<Offer>> exchangers = new ArrayList<>(n - 1);
+		for (int i = 0; i < n - 1; i++) {
+			exchangers.add(new Exchanger<>());
+		}
+
+		// Every replica must be running at once or the exchanges would never
+		// meet, so this can't share a pool with anything else
+		ExecutorService threads = Executors.newFixedThreadPool(n);
+		try {
+			CompletionService<Void> running = new ExecutorCompletionService<>(threads);
+			for (int i = 0; i < n; i++) {
+				final int index = i;
+				running.submit(() -> {
+					run(index, replicas.get(index), exchangers);
+					return null;
+				});
+			}
+			// Wait in the order they finish, so a replica that fails is seen
+			// straight away. Its partner would wait forever for the exchange,
+			// but shutdownNow interrupts it.
+			for (int i = 0; i < n; i++) {
+				running.take().get();
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("A replica failed", e.getCause());
+		} finally {
+			threads.shutdownNow();
+		}
+
+		SimulatedAnnealing best = replicas.get(0);
+		for (SimulatedAnnealing sa : replicas) {
+			if (sa.getBestDistance() < best.getBestDistance()) {
+				best = sa;
+			}
+		}
+		return best.getBest();
+	}
+
+	private void run(int index, SimulatedAnnealing sa, List<Exchanger<Offer>> exchangers)
+			throws InterruptedException {
+		double temperature = temperatures[index];
+		Random r = new Random(Double.doubleToLongBits(temperature) ^ System.nanoTime());
+
+		int rounds = iterations / swapInterval;
+		for (int round = 0; round < rounds; round++) {
+			for (int k = 0; k < swapInterval; k++) {
+				sa.step(temperature);
+			}
+
+			// The lower replica of each pair alternates between even and odd
+			int partner = (index % 2 == round % 2) ? index + 1 : index - 1;
+			if (partner < 0 || partner >= temperatures.length) {
+				continue;
+			}
+			int lower = Math.min(index, partner);
+
+			// Both sides must make the same decision, so the lower replica
+			// supplies the random number
+			Offer mine = new Offer(sa.getCurrent(), sa.getDistance(), index == lower ? r.nextDouble() : 0);
+			Offer theirs = exchangers.get(lower).exchange(mine);
+			double u = index == lower ? mine.u : theirs.u;
+
+			double delta = (1 / temperature - 1 / temperatures[partner]) * (sa.getDistance() - theirs.distance);
+			if (u < Math.exp(delta)) {
+				sa.setCurrent(theirs.state, theirs.distance);
+			}
+		}
+
+		// Use up whatever doesn't fill a whole round
+		for (int k = rounds * swapInterval; k < iterations; k++) {
+			sa.step(temperature);
+		}
+	}
+
+	/**
+	 * What one replica hands to its neighbour when they try to swap
+	 */
+	private static class Offer {
+		final RaupState state;
+		final double distance;
+		final double u;
+
+		Offer(RaupState state, double distance, double u) {
+			this.state = state;
+			this.distance = distance;
+			this.u = u;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package nz.ac.vuw.ecs.snails.sa;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import nz.ac.vuw.ecs.snails.reference.ReferenceCurve;
+
+/**
+ * Races a group of annealing restarts against each other (successive
+ * halving). Every chain follows the usual cooling schedule, but they are run
+ * a segment at a time. After each segment the chains are ranked by their
+ * current distance and the worst fraction are dropped. Each segment is twice
+ * as long as the one before, and only the last few chains ever get to the
+ * end of the schedule.
+ *
+ * The cores the dropped chains would have used go to the survivors. Each
+ * survivor scores as many proposals at a time as there were chains for each
+ * one left (see SimulatedAnnealing.setSpeculation), so after each cut the
+ * survivors get through the schedule faster, and the last, longest segments
+ * take less time than they would on their own. Every chain has its own
+ * CheckpointRandom, so this changes how long the chains take but not what
+ * they do.
+ *
+ * Every chain publishes its best state to a shared BestBoard after each
+ * segment, which can be read at any time while the race is running.
+ *
+ */
+public class RacingScheduler {
+
+	private final RaupKernel kernel;
+	private final int chains;
+	private final double cut;
+	private final double firstSegment;
+	private final BestBoard board = new BestBoard();
+	private RaupState start = null;
+	private Supplier<Scale> schedule = null;
+
+	/**
+	 * Create a new race
+	 *
+	 * @param reference
+	 *            The curve to fit
+	 * @param chains
+	 *            The number of restarts to race
+	 * @param cut
+	 *            The fraction of chains dropped after each segment (between 0
+	 *            and 1)
+	 * @param firstSegment
+	 *            The fraction of the cooling schedule run before the first cut
+	 */
+	public RacingScheduler(ReferenceCurve reference, int chains, double cut, double firstSegment) {
+		if (!(cut >= 0 && cut < 1)) {
+			throw new IllegalArgumentException("The cut must be in [0, 1)");
+		}
+		if (!(firstSegment > 0 && firstSegment <= 1)) {
+			throw new IllegalArgumentException("The first segment must be in (0, 1]");
+		}
+		this.kernel = new RaupKernel(reference);
+		this.chains = chains;
+		this.cut = cut;
+		this.firstSegment = firstSegment;
+	}
+
+	/**
+	 * Set the state every chain starts from. If it is null (the default),
+	 * each chain starts from its own random state.
+	 *
+	 * @param start
+	 *            The starting state, or null for random ones
+	 */
+	public void setStart(RaupState start) {
+		this.start = start;
+	}
+
+	/**
+	 * Set where each chain gets its cooling schedule from. If it is null (the
+	 * default), every chain uses geometric cooling.
+	 *
+	 * @param schedule
+	 *            A supplier of schedules, or null
+	 */
+	public void setSchedule(Supplier<Scale> schedule) {
+		this.schedule = schedule;
+	}
+
+	/**
+	 * @return The board the chains publish their best states to
+	 */
+	public BestBoard getBoard() {
+		return board;
+	}
+
+	/**
+	 * Run the race to the end
+	 *
+	 * @param pool
+	 *            The threads to run the chains on
+	 * @return The best state any chain found
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the chains
+	 */
+	public RaupState minimise(ExecutorService pool) throws InterruptedException {
+		// Survivors score their extra proposals here
+		ForkJoinPool speculation = new ForkJoinPool();
+		try {
+			return race(pool, speculation);
+		} finally {
+			speculation.shutdown();
+		}
+	}
+
+	private RaupState race(ExecutorService pool, ForkJoinPool speculation) throws InterruptedException {
+		Random seeds = new Random();
+		List<SimulatedAnnealing> alive = new ArrayList<>(chains);
+		for (int i = 0; i < chains; i++) {
+			SimulatedAnnealing sa = new SimulatedAnnealing(kernel, new CheckpointRandom(seeds.nextLong()));
+			sa.setStart(start);
+			if (schedule != null) {
+				sa.setScale(schedule.get());
+			}
+			sa.init();
+			alive.add(sa);
+		}
+
+		int length = alive.get(0).getMaxIterations();
+		int target = (int) Math.max(1, Math.round(length * firstSegment));
+		while (true) {
+			final int end = target;
+			List<Callable<Void>> segment = new ArrayList<>(alive.size());
+			for (SimulatedAnnealing sa : alive) {
+				segment.add(() -> {
+					sa.anneal(end - sa.getIteration());
+					board.offer(sa.getBest(), sa.getBestDistance());
+					return null;
+				});
+			}
+			for (Future<Void> f : pool.invokeAll(segment)) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("A chain failed", e.getCause());
+				}
+			}
+
+			if (end >= length) {
+				break;
+			}
+
+			// Keep the best, but always keep at least one
+			alive.sort(Comparator.comparingDouble(SimulatedAnnealing::getDistance));
+			int keep = Math.max(1, (int) Math.ceil(alive.size() * (1 - cut)));
+			alive = new ArrayList<>(alive.subList(0, keep));
+			for (SimulatedAnnealing sa : alive) {
+				sa.setSpeculation(chains / keep, speculation);
+			}
+
+			target = (int) Math.min(length, 2L * end);
+		}
+
+		return board.getState();
+	}
+}
@@ -0,0 +1,186 @@
+package nz.ac.vuw.ecs.snails.sa;
+
+import nz.ac.vuw.ecs.snails.reference.ReferenceCurve;
+
+/**
+ * Computes the distance from a RaupState to one particular reference curve as
+ * fast as possible. Everything that only depends on the reference (theta /
+ * 2pi) is worked out once up front, and each distance is then a single loop
+ * with no allocation.
+ *
+ * The model needs w^(theta/2pi) at every sample. This is computed as
+ * exp(ln(w) * theta/2pi), so only one exp is needed per sample rather than
+ * three calls to pow. When the theta values are evenly spaced (as they are in
+ * anything made by genRaup.R) consecutive powers differ by a constant factor,
+ * so most samples just need a multiply. To stop rounding errors building up,
+ * the power is recomputed exactly every RESYNC samples.
+ *
+ * This class is immutable and thread safe.
+ *
+ */
+public class RaupKernel {
+
+	// How often the incremental power is recomputed from scratch
+	private static final int RESYNC = 64;
+
+	// How far theta can be from an even grid and still count as even
+	private static final double UNIFORM_TOLERANCE = 1e-9;
+
+	private final ReferenceCurve reference;
+
+	// theta / 2pi for every sample
+	private final double[] k;
+
+	// Whether k goes up in equal steps, and if so the size of the step
+	private final boolean uniform;
+	private final double dk;
+
+	/**
+	 * Create a new kernel for a reference curve
+	 *
+	 * @param reference
+	 *            The curve to measure distances to
+	 */
+	public RaupKernel(ReferenceCurve reference) {
+		this.reference = reference;
+		int n = reference.length;
+		k = new double[n];
+		for (int i = 0; i < n; i++) {
+			k[i] = reference.theta[i] / (2.0 * Math.PI);
+		}
+
+		if (n > 1) {
+			dk = (k[n - 1] - k[0]) / (n - 1);
+			boolean even = true;
+			for (int i = 0; i < n && even; i++) {
+				double expected = k[0] + i * dk;
+				even = Math.abs(k[i] - expected) <= UNIFORM_TOLERANCE * Math.max(1, Math.abs(expected));
+			}
+			uniform = even;
+		} else {
+			dk = 0;
+			uniform = false;
+		}
+	}
+
+	/**
+	 * The reference curve distances are measured to
+	 *
+	 * @return the reference curve
+	 */
+	public ReferenceCurve getReference() {
+		return reference;
+	}
+
+	/**
+	 * Whether the reference has evenly spaced theta values, and so can use
+	 * the incremental power
+	 *
+	 * @return true if theta is evenly spaced
+	 */
+	public boolean isUniform() {
+		return uniform;
+	}
+
+	/**
+	 * The distance between a state and the reference. This is the same as
+	 * RaupState.distanceTo, up to rounding.
+	 *
+	 * @param s
+	 *            The state to measure
+	 * @return The error between the state and the reference
+	 */
+	public double distance(RaupState s) {
+		if (!(s.w > 0)) {
+			// Can't take the log. Let pow deal with all the special cases
+			// so the answer is exactly the same as the model
+			return s.distanceTo(reference);
+		}
+
+		double lnw = Math.log(s.w);
+		double r0 = s.r0;
+		double y0 = s.y0;
+		double rct = s.rc * s.t;
+		double[] r = reference.r;
+		double[] y = reference.y;
+		int n = reference.length;
+
+		double error = 0;
+		if (uniform) {
+			double step = Math.exp(lnw * dk);
+			for (int start = 0; start < n; start += RESYNC) {
+				int end = Math.min(start + RESYNC, n);
+				double g = Math.exp(lnw * k[start]);
+				for (int i = start; i < end; i++) {
+					double dr = r[i] - r0 * g;
+					double dy = y[i] - (y0 * g + rct * (g - 1));
+					error += dr * dr + dy * dy;
+					g *= step;
+				}
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				double g = Math.exp(lnw * k[i]);
+				double dr = r[i] - r0 * g;
+				double dy = y[i] - (y0 * g + rct * (g - 1));
+				error += dr * dr + dy * dy;
+			}
+		}
+		return Math.sqrt(error);
+	}
+
+	/**
+	 * An estimate of the distance between a state and the reference from a
+	 * stratified subsample of it. The reference is split into runs of stride
+	 * samples and only the middle sample of each run is used. The error is
+	 * scaled up by the fraction of samples used, so it estimates the full
+	 * distance and can be compared with it.
+	 *
+	 * @param s
+	 *            The state to measure
+	 * @param stride
+	 *            The number of samples each sample stands in for. 1 is the
+	 *            same as distance(s)
+	 * @return The estimated error between the state and the reference
+	 */
+	public double distance(RaupState s, int stride) {
+		int n = reference.length;
+		if (stride <= 1 || stride >= n || !(s.w > 0)) {
+			return distance(s);
+		}
+
+		double lnw = Math.log(s.w);
+		double r0 = s.r0;
+		double y0 = s.y0;
+		double rct = s.rc * s.t;
+		double[] r = reference.r;
+		double[] y = reference.y;
+
+		double error = 0;
+		int count = 0;
+		if (uniform) {
+			double step = Math.exp(lnw * dk * stride);
+			int block = RESYNC * stride;
+			for (int start = stride / 2; start < n; start += block) {
+				int end = Math.min(start + block, n);
+				double g = Math.exp(lnw * k[start]);
+				for (int i = start; i < end; i += stride) {
+					double dr = r[i] - r0 * g;
+					double dy = y[i] - (y0 * g + rct * (g - 1));
+					error += dr * dr + dy * dy;
+					g *= step;
+					count++;
+				}
+			}
+		} else {
+			for (int i = stride / 2; i < n; i += stride) {
+				double g = Math.exp(lnw * k[i]);
+				double dr = r[i] - r0 * g;
+				double dy = y[i] - (y0 * g + rct * (g - 1));
+				error += dr * dr + dy * dy;
+				count++;
+			}
+		}
+		return Math.sqrt(error * n / count);
+	}
+}
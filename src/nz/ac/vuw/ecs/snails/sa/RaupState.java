@@ -5,9 +5,15 @@ import java.util.List;
 import java.util.Random;
 
 import javafx.geometry.Point3D;
+import nz.ac.vuw.ecs.snails.reference.ReferenceCurve;
 
 public class RaupState {
 
+	/**
+	 * The number of parameters in a state
+	 */
+	public static final int PARAMETERS = 5;
+
 	public final double w, r0, y0, rc, t;
 
 	public RaupState(double r0, double y0, double rc, double w, double t) {
@@ -23,16 +29,54 @@ public class RaupState {
 	}
 
 	public RaupState moveRandom(Random r, double range) {
+		double shift = (r.nextGaussian() * range);
+		int position = r.nextInt(2);
+
+		return move(position, shift);
+	}
+
+	/**
+	 * Get one of the parameters by number. The numbering is the same as used
+	 * by move: 0 is w, 1 is t, 2 is rc, 3 is y0 and 4 is r0.
+	 *
+	 * @param parameter
+	 *            The number of the parameter
+	 * @return The value of the parameter
+	 */
+	public double get(int parameter) {
+		switch (parameter) {
+		case 0:
+			return w;
+		case 1:
+			return t;
+		case 2:
+			return rc;
+		case 3:
+			return y0;
+		case 4:
+			return r0;
+		default:
+			throw new IllegalArgumentException("There is no parameter " + parameter);
+		}
+	}
+
+	/**
+	 * Make a new state with one parameter shifted
+	 *
+	 * @param parameter
+	 *            The number of the parameter to move (see get)
+	 * @param shift
+	 *            How far to move it
+	 * @return The new state
+	 */
+	public RaupState move(int parameter, double shift) {
 		double neww = w;
 		double newr0 = r0;
 		double newrc = rc;
 		double newy0 = y0;
 		double newt = t;
 
-		double shift = (r.nextGaussian() * range);
-		int position = r.nextInt(2);
-
-		switch (position) {
+		switch (parameter) {
 		case 0:
 			neww += shift;
 			break;
@@ -55,6 +99,122 @@ public class RaupState {
 		return new RaupState(newr0, newy0, newrc, neww, newt);
 	}
 
+	/**
+	 * Make a new state with every parameter shifted at once
+	 *
+	 * @param shift
+	 *            How far to move each parameter, in the order used by get
+	 * @return The new state
+	 */
+	public RaupState move(double[] shift) {
+		return new RaupState(r0 + shift[4], y0 + shift[3], rc + shift[2], w + shift[0], t + shift[1]);
+	}
+
+	/**
+	 * Estimate the parameters of a reference curve directly, without any
+	 * search. The model is log-linear in r:
+	 *
+	 * ln r = ln r0 + (theta / 2pi) ln w
+	 *
+	 * so w and r0 come from a straight line fit of ln r against theta / 2pi.
+	 * The fit is weighted by r^2 so that it approximates least squares on r
+	 * itself rather than on ln r. Once w is known, with g = w^(theta / 2pi), y
+	 * is linear:
+	 *
+	 * y = (y0 + rc t) g - rc t
+	 *
+	 * so y0 and rc t come from a second straight line fit. Only the product
+	 * rc t matters, so rc is fixed at 1, which is also where the annealing
+	 * starts. Both fits are a single pass over the reference.
+	 *
+	 * @param reference
+	 *            The curve to estimate the parameters of
+	 * @return The estimated state and its distance to the reference
+	 */
+	public static Estimate estimate(ReferenceCurve reference) {
+		int n = reference.length;
+
+		// Weighted fit of ln r = a + b k
+		double sw = 0, swk = 0, swl = 0, swkk = 0, swkl = 0;
+		for (int i = 0; i < n; i++) {
+			double r = reference.r[i];
+			if (!(r > 0)) {
+				// Can't take the log
+				continue;
+			}
+			double k = reference.theta[i] / (2.0 * Math.PI);
+			double l = Math.log(r);
+			double weight = r * r;
+			sw += weight;
+			swk += weight * k;
+			swl += weight * l;
+			swkk += weight * k * k;
+			swkl += weight * k * l;
+		}
+
+		double w;
+		double r0;
+		double det = sw * swkk - swk * swk;
+		if (sw > 0 && det > 1e-12 * sw * swkk) {
+			double b = (sw * swkl - swk * swl) / det;
+			double a = (swl - b * swk) / sw;
+			w = Math.exp(b);
+			r0 = Math.exp(a);
+		} else {
+			// Not enough spread in theta to see any growth
+			w = 1;
+			r0 = sw > 0 ? Math.exp(swl / sw) : 1;
+		}
+
+		// Ordinary fit of y = slope g + intercept
+		double sg = 0, sy = 0, sgg = 0, sgy = 0;
+		for (int i = 0; i < n; i++) {
+			double g = Math.pow(w, reference.theta[i] / (2.0 * Math.PI));
+			double y = reference.y[i];
+			sg += g;
+			sy += y;
+			sgg += g * g;
+			sgy += g * y;
+		}
+
+		double y0;
+		double rct;
+		det = n * sgg - sg * sg;
+		if (n > 0 && det > 1e-12 * n * sgg) {
+			double slope = (n * sgy - sg * sy) / det;
+			double intercept = (sy - slope * sg) / n;
+			rct = -intercept;
+			y0 = slope - rct;
+		} else {
+			// g is constant (w is 1), so rc t can't be seen
+			rct = 0;
+			y0 = sg != 0 ? sy / sg : 0;
+		}
+
+		RaupState state = new RaupState(r0, y0, 1, w, rct);
+		return new Estimate(state, state.distanceTo(reference));
+	}
+
+	/**
+	 * The result of RaupState.estimate
+	 */
+	public static class Estimate {
+		/**
+		 * The estimated state
+		 */
+		public final RaupState state;
+
+		/**
+		 * The distance between the estimated state and the reference
+		 */
+		public final double residual;
+
+		public Estimate(RaupState state, double residual) {
+			this.state = state;
+			this.residual = residual;
+		}
+	}
+
 	public String toString() {
 		StringBuilder s = new StringBuilder();
 
@@ -72,20 +232,45 @@ public class RaupState {
 		return s.toString();
 	}
 
-	public double distanceTo(List<Point3D> reference) {
-		List<Point3D> points = genPoints(reference);
-
-		return rmse(reference, points);
+	public double distanceTo(ReferenceCurve reference) {
+		double error = 0;
+		for (int i = 0; i < reference.length; i++) {
+			double theta = reference.theta[i];
+			double dr = reference.r[i] - r(theta);
+			double dy = reference.y[i] - y(theta);
+			error += dr * dr + dy * dy;
+		}
+		return Math.sqrt(error);
 	}
 
-	public List<Point3D> genPoints(List<Point3D> reference){
-		List<Point3D> points = new ArrayList<>();
-		for (Point3D p : reference) {
-			points.add(new Point3D(p.getX(), r(p.getX()), y(p.getX())));
+	public List<Point3D> genPoints(ReferenceCurve reference){
+		List<Point3D> points = new ArrayList<>(reference.length);
+		for (int i = 0; i < reference.length; i++) {
+			double theta = reference.theta[i];
+			points.add(new Point3D(theta, r(theta), y(theta)));
 		}
 		return points;
 	}
 
+	/**
+	 * Work out the curve at a set of angles, without building any points.
+	 * This is what the plots use.
+	 *
+	 * @param theta
+	 *            The angles
+	 * @param r
+	 *            Where to put r at each angle
+	 * @param y
+	 *            Where to put y at each angle
+	 */
+	public void genPoints(double[] theta, double[] r, double[] y) {
+		for (int i = 0; i < theta.length; i++) {
+			double g = Math.pow(w, theta[i] / (2.0 * Math.PI));
+			r[i] = r0 * g;
+			y[i] = y0 * g + rc * t * (g - 1);
+		}
+	}
+
 	private double r(double theta) {
 		return r0 * Math.pow(w, theta / (2.0 * Math.PI));
 	}
@@ -93,15 +278,4 @@ public class RaupState {
 	private double y(double theta) {
 		return y0 * Math.pow(w, theta / (2.0 * Math.PI)) + rc * t * (Math.pow(w, theta / (2.0 * Math.PI)) - 1);
 	}
-
-	public double rmse(List<Point3D> reference, List<Point3D> generated) {
-		double error = 0;
-		for (int i = 0; i < generated.size(); i++) {
-			Point3D r = reference.get(i);
-			Point3D g = generated.get(i);
-
-			error += Math.pow(r.subtract(g).magnitude(), 2);
-		}
-		return Math.sqrt(error);
-	}
 }
@@ -0,0 +1,52 @@
+package nz.ac.vuw.ecs.snails.sa;
+
+/**
+ * Wraps another schedule and reheats when the search gets stuck. If no move
+ * has been accepted for patience steps in a row, the underlying schedule is
+ * wound back to halfway between its start and where it had got to, and it
+ * carries on cooling from there.
+ *
+ * An instance belongs to a single chain.
+ *
+ */
+public class ReheatingScale implements Scale {
+
+	private final Scale base;
+	private final int patience;
+
+	private int offset = 0;
+	private int lastX = 0;
+	private int rejected = 0;
+
+	/**
+	 * Create a new reheating schedule
+	 *
+	 * @param base
+	 *            The schedule to follow between reheats
+	 * @param patience
+	 *            How many rejected moves in a row trigger a reheat
+	 */
+	public ReheatingScale(Scale base, int patience) {
+		this.base = base;
+		this.patience = patience;
+	}
+
+	@Override
+	public double scale(int x) {
+		lastX = x;
+		return base.scale(x - offset);
+	}
+
+	@Override
+	public void feedback(boolean accepted) {
+		base.feedback(accepted);
+		if (accepted) {
+			rejected = 0;
+			return;
+		}
+		if (++rejected >= patience) {
+			rejected = 0;
+			offset += (lastX - offset) / 2;
+		}
+	}
+}
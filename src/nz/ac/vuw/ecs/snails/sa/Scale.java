@@ -3,4 +3,15 @@ package nz.ac.vuw.ecs.snails.sa;
 public interface Scale {
 
 	public double scale(int x);
+
+	/**
+	 * Tell the schedule whether the move made at the last temperature it gave
+	 * out was accepted. Schedules that react to the search (adaptive,
+	 * reheating) use this, static schedules ignore it.
+	 *
+	 * @param accepted
+	 *            Whether the move was accepted
+	 */
+	public default void feedback(boolean accepted) {
+	}
 }
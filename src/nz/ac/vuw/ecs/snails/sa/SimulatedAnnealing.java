@@ -1,113 +1,723 @@
 package nz.ac.vuw.ecs.snails.sa;
 
-import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
-import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
-import javafx.geometry.Point3D;
+import nz.ac.vuw.ecs.snails.plot.PlotPublisher;
+import nz.ac.vuw.ecs.snails.reference.ReferenceCurve;
 
-import javax.swing.JFrame;
-import javax.swing.SwingUtilities;
+public class SimulatedAnnealing {
 
-import org.math.plot.Plot3DPanel;
+	/**
+	 * How often (in iterations) minimise checks whether it should stop
+	 */
+	public static final int CHECK_INTERVAL = 1024;
 
-public class SimulatedAnnealing {
+	// How often (in iterations) the fidelity is checked against the
+	// temperature
+	private static final int FIDELITY_INTERVAL = 256;
+
+	// How often (in iterations) a checkpoint is written. This is a multiple
+	// of GeometricScale's resync interval, so the temperatures after a resume
+	// are bit for bit the same as if the run had never stopped
+	private static final int CHECKPOINT_INTERVAL = 1 << 16;
+
+	// Identifies a checkpoint file, and its layout
+	private static final int CHECKPOINT_MAGIC = 0x534e4c43;
+	private static final int CHECKPOINT_VERSION = 1;
 
 	private int maxIterations = 1000000;
 	private float maxTemperature = 10.0f;
 	private float minTemperature = 0.000001f;
 	private Scale scale;
 	private Random r;
-	private List<Point3D> reference;
+	private ReferenceCurve reference;
+	private RaupKernel kernel;
+	private RaupState start = null;
+
+	// The state of the chain
+	private RaupState current;
+	private double distance;
+	private RaupState best;
+	private double bestDistance;
+	private int iteration;
+
+	// How many proposals to score at once, and where
+	private int speculation = 1;
+	private ForkJoinPool speculationPool;
+
+	// When to stop before the end of the schedule
+	private int iterationBudget = Integer.MAX_VALUE;
+	private Duration timeLimit = null;
+	private long stagnationIterations = Long.MAX_VALUE;
+	private double stagnationEpsilon = 0;
+	private double target = 0;
+	private volatile boolean cancelled = false;
+
+	// When the best distance last improved by more than stagnationEpsilon,
+	// and what to
+	private int improvedAt;
+	private double improvedTo;
+
+	// Proposals are scored against every stride-th reference sample. While
+	// hot, the stride can be as much as maxStride
+	private int maxStride = 1;
+	private int stride = 1;
+
+	// The iteration at which the stride is next checked. Speculation can
+	// step past any particular iteration, so this is a threshold rather than
+	// a multiple of FIDELITY_INTERVAL to wait for
+	private int nextFidelityCheck = 0;
+
+	// If set, the chain is saved here as it runs
+	private File checkpoint = null;
+	private boolean resume = false;
+
+	// If set, moves come from here rather than moveRandom
+	private AdaptiveProposal proposal = null;
 
 	// Visualisation
-	Plot3DPanel plot;
-	ExecutorService tp;
+	PlotPublisher publisher;
 	boolean gui;
+	private double frameRate = PlotPublisher.DEFAULT_FRAME_RATE;
 
-	public SimulatedAnnealing(List<Point3D> reference, boolean gui) {
+	public SimulatedAnnealing(ReferenceCurve reference, boolean gui) {
 		scale = new GeometricScale(maxIterations, minTemperature, maxTemperature);
-		r = new Random();
+		r = new CheckpointRandom();
 		this.gui = gui;
 		this.reference = reference;
+		this.kernel = new RaupKernel(reference);
 	}
 
-	public RaupState minimise() {
+	/**
+	 * Create a chain with no visualisation that shares a kernel with other
+	 * chains, for use as a replica in ParallelTempering.
+	 */
+	SimulatedAnnealing(RaupKernel kernel, Random r) {
+		this.scale = new GeometricScale(maxIterations, minTemperature, maxTemperature);
+		this.r = r;
+		this.gui = false;
+		this.reference = kernel.getReference();
+		this.kernel = kernel;
+	}
 
-		if (gui) {
-			plot = new Plot3DPanel();
-			double[] x = new double[reference.size()];
-			double[] y = new double[reference.size()];
-			double[] z = new double[reference.size()];
+	/**
+	 * Set the state the search starts from, such as the result of
+	 * RaupState.estimate. If it is null (the default), a random state is used.
+	 *
+	 * @param start
+	 *            The starting state, or null for a random one
+	 */
+	public void setStart(RaupState start) {
+		this.start = start;
+	}
 
-			for (int i = 0; i < reference.size(); i++) {
-				Point3D pi = reference.get(i);
-				x[i] = pi.getY() * Math.sin(pi.getX());
-				y[i] = pi.getY() * Math.cos(pi.getX());
-				z[i] = pi.getZ();
-			}
+	/**
+	 * Set the most iterations minimise may take. The default is the whole
+	 * cooling schedule. The schedule itself is not shortened, so stopping
+	 * early leaves the chain warmer than it would be at the end.
+	 *
+	 * @param iterations
+	 *            The iteration budget
+	 */
+	public void setIterationBudget(int iterations) {
+		this.iterationBudget = iterations;
+	}
 
-			// add the reference curve
-			plot.addScatterPlot("Reference", Color.BLUE, x, y, z);
+	/**
+	 * Set the most time minimise may take. The default is no limit.
+	 *
+	 * @param limit
+	 *            The time limit, or null for none
+	 */
+	public void setTimeLimit(Duration limit) {
+		this.timeLimit = limit;
+	}
 
-			// Add a space for the current best to be displayed
-			plot.addScatterPlot("Best individual", Color.RED, x, y, z);
+	/**
+	 * Stop once the best distance hasn't improved by more than epsilon for a
+	 * number of iterations in a row. The default is to never stop for this.
+	 *
+	 * @param iterations
+	 *            How long to wait for an improvement
+	 * @param epsilon
+	 *            The smallest change that counts as an improvement
+	 */
+	public void setStagnation(int iterations, double epsilon) {
+		this.stagnationIterations = iterations;
+		this.stagnationEpsilon = epsilon;
+	}
 
-			// put the PlotPanel in a JFrame, as a JPanel
-			JFrame frame = new JFrame("Snail Hugging Progress");
-			frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-			frame.setContentPane(plot);
-			frame.setSize(1000, 800);
-			frame.setVisible(true);
+	/**
+	 * Stop as soon as a state at most this far from the reference is found.
+	 * The default is 0, which only stops on an exact fit.
+	 *
+	 * @param distance
+	 *            The distance that is good enough
+	 */
+	public void setTarget(double distance) {
+		this.target = distance;
+	}
+
+	/**
+	 * Seed the random number generator, so that a run can be repeated. The
+	 * default is a different seed every time.
+	 *
+	 * @param seed
+	 *            The seed
+	 */
+	public void setSeed(long seed) {
+		r.setSeed(seed);
+	}
 
-			// Don't want this to get in the way of other stuff so lock it to
-			// only
-			// having a single thread. The fitness evaluation should always have
-			// most of the cores available to it
-			tp = Executors.newSingleThreadExecutor();
+	/**
+	 * Ask a running minimise to stop. This can be called from any thread.
+	 * The run stops within CHECK_INTERVAL iterations and returns the best
+	 * state found so far. If called before the run starts, the run stops
+	 * straight away.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
 
+	/**
+	 * Run the search until the schedule ends or one of the stopping criteria
+	 * is met.
+	 *
+	 * @return The best state found
+	 */
+	public RaupState minimise() {
+		return run().state;
+	}
+
+	/**
+	 * Run the search until the schedule ends or one of the stopping criteria
+	 * (iteration budget, time limit, stagnation, target or cancellation) is
+	 * met. The criteria are checked every CHECK_INTERVAL iterations.
+	 *
+	 * @return The best state found, with how it was found
+	 */
+	public Result run() {
+		long startTime = System.nanoTime();
+		if (checkpoint != null && !(r instanceof CheckpointRandom)) {
+			throw new IllegalStateException("Checkpointing needs a CheckpointRandom");
 		}
 
-		RaupState s = new RaupState(r);
+		if (gui) {
+			publisher = PlotPublisher.window("Snail Hugging Progress", reference, PlotPublisher.DEFAULT_POINTS,
+					frameRate, true);
+		}
+
+		if (!(resume && checkpoint.exists() && restore(checkpoint))) {
+			init();
+		}
 
 		if (gui) {
-			tp.submit(new UpdateJob(s));
+			publish(current);
+		}
+
+		int end = Math.min(maxIterations, iterationBudget);
+		long deadline = timeLimit == null ? Long.MAX_VALUE : startTime + timeLimit.toNanos();
+		StopReason reason = null;
+		while (reason == null) {
+			if (bestDistance <= target) {
+				reason = StopReason.TARGET;
+			} else if (iteration >= maxIterations) {
+				reason = StopReason.COMPLETED;
+			} else if (iteration >= end) {
+				reason = StopReason.BUDGET;
+			} else if (cancelled) {
+				reason = StopReason.CANCELLED;
+			} else if (System.nanoTime() - deadline >= 0) {
+				reason = StopReason.TIME;
+			} else if ((long) iteration - improvedAt >= stagnationIterations) {
+				reason = StopReason.STAGNATION;
+			} else {
+				anneal(Math.min(CHECK_INTERVAL, end - iteration));
+				if (checkpoint != null && iteration % CHECKPOINT_INTERVAL == 0) {
+					save(checkpoint);
+				}
+			}
+		}
+		// Make sure the answer is measured against the whole reference
+		setStride(1);
+		return new Result(best, bestDistance, iteration, reason);
+	}
+
+	/**
+	 * Carry on down the cooling schedule for a number of steps, stopping
+	 * early if the end of the schedule is reached. This lets a chain be run
+	 * a segment at a time.
+	 *
+	 * @param steps
+	 *            The most steps to take
+	 */
+	void anneal(int steps) {
+		int end = (int) Math.min(maxIterations, (long) iteration + steps);
+		while (iteration < end) {
+			if (maxStride > 1 && iteration >= nextFidelityCheck) {
+				setStride(strideFor(temperature(iteration)));
+				nextFidelityCheck = (iteration / FIDELITY_INTERVAL + 1) * FIDELITY_INTERVAL;
+			}
+			if (speculation > 1) {
+				// Stop at the next check, so it happens at the same iteration
+				// as it would one step at a time
+				speculate(maxStride > 1 ? Math.min(end, nextFidelityCheck) : end);
+				continue;
+			}
+			boolean accepted = step(temperature(iteration));
+			scale.feedback(accepted);
+			if (accepted && gui) {
+				publish(current);
+			}
+			iteration++;
 		}
+	}
 
-		double distance = s.distanceTo(reference); // the error between s and
-													// the reference
+	/**
+	 * Score several proposals at once. While proposals are being rejected the
+	 * current state doesn't change, so the next few proposals are all made
+	 * from the same state and can be drawn (with their acceptance draws) up
+	 * front in the same order as one at a time. Their distances are worked
+	 * out in parallel, then they are checked in order, and the first one
+	 * accepted is taken. Everything after it is thrown away without using up
+	 * any iterations, and a CheckpointRandom is wound back to just after the
+	 * accepted proposal's draws, as if the rest had never been made.
+	 */
+	private void speculate(int end) {
+		int k = Math.min(speculation, end - iteration);
+		RaupState[] proposals = new RaupState[k];
+		int[] kinds = new int[k];
+		double[] u = new double[k];
+		CheckpointRandom.State[] after = r instanceof CheckpointRandom ? new CheckpointRandom.State[k] : null;
+		for (int i = 0; i < k; i++) {
+			proposals[i] = neighbour(current);
+			kinds[i] = proposal == null ? 0 : proposal.lastMove();
+			u[i] = r.nextDouble();
+			if (after != null) {
+				after[i] = ((CheckpointRandom) r).getState();
+			}
+		}
 
-		for (int k = 0; k < maxIterations; k++) {
-			double temperature = temperature(k);
-			RaupState sNew = neighbour(s);
+		List<ForkJoinTask<Double>> scores = new ArrayList<>(k);
+		int sampleStride = stride;
+		for (int i = 1; i < k; i++) {
+			RaupState p = proposals[i];
+			scores.add(speculationPool.submit(() -> kernel.distance(p, sampleStride)));
+		}
+		// This thread would only be waiting otherwise
+		double first = kernel.distance(proposals[0], sampleStride);
 
-			double distanceNew = sNew.distanceTo(reference); // The error
-																// between Snew
-																// and the
-																// reference
-			if (r.nextDouble() < accept(distance, distanceNew, temperature)) {
-				s = sNew;
-				distance = distanceNew;
+		for (int i = 0; i < k; i++) {
+			double distanceNew = i == 0 ? first : scores.get(i - 1).join();
+			boolean accepted = u[i] < accept(distance, distanceNew, temperature(iteration));
+			scale.feedback(accepted);
+			if (proposal != null) {
+				proposal.feedback(kinds[i], accepted, accepted ? proposals[i] : current);
+			}
+			iteration++;
+			if (accepted) {
+				setCurrent(proposals[i], distanceNew);
+				for (int j = i; j < scores.size(); j++) {
+					scores.get(j).cancel(false);
+				}
+				if (after != null) {
+					((CheckpointRandom) r).setState(after[i]);
+				}
 				if (gui) {
-					tp.submit(new UpdateJob(sNew));
+					publish(current);
 				}
+				return;
 			}
 		}
-		return s;
+	}
+
+	/**
+	 * Evaluate k proposals at a time on a pool rather than one at a time.
+	 * This lets a single chain use more than one core when most moves are
+	 * rejected, as they are once it is cold. A k of 1 (the default) turns
+	 * this off.
+	 *
+	 * Proposals are checked in the order they were drawn, so this gives the
+	 * same chain as taking single steps: exactly the same one, for the same
+	 * seed, when the random number generator is a CheckpointRandom (as it is
+	 * unless a replica was given another), and the same in distribution
+	 * otherwise. That doesn't hold with an AdaptiveProposal. All k proposals
+	 * are drawn before the feedback from any of them is applied, so the step
+	 * sizes lag up to k - 1 moves behind and the chain adapts differently
+	 * (though still toward the same acceptance rates).
+	 *
+	 * @param k
+	 *            The number of proposals to evaluate at a time
+	 * @param pool
+	 *            The pool to evaluate them on
+	 */
+	public void setSpeculation(int k, ForkJoinPool pool) {
+		if (k > 1 && pool == null) {
+			throw new IllegalArgumentException("Speculation needs a pool");
+		}
+		this.speculation = Math.max(1, k);
+		this.speculationPool = pool;
+	}
+
+	/**
+	 * Set the most times a second the plot is redrawn in gui mode. States
+	 * accepted between frames are never drawn.
+	 *
+	 * @param frameRate
+	 *            The most frames per second
+	 */
+	public void setFrameRate(double frameRate) {
+		if (!(frameRate > 0)) {
+			throw new IllegalArgumentException("The frame rate must be positive");
+		}
+		this.frameRate = frameRate;
+	}
+
+	/**
+	 * Show a state on the plot. This only records it, so it costs next to
+	 * nothing however often it is called.
+	 */
+	private void publish(RaupState s) {
+		publisher.publish(s::genPoints);
+	}
+
+	/**
+	 * @return How far through the cooling schedule the chain is
+	 */
+	int getIteration() {
+		return iteration;
+	}
+
+	/**
+	 * @return The length of the cooling schedule
+	 */
+	int getMaxIterations() {
+		return maxIterations;
+	}
+
+	/**
+	 * Put the chain at its starting state, ready for step to be called.
+	 */
+	void init() {
+		current = start == null ? new RaupState(r) : start;
+		stride = 1;
+		distance = kernel.distance(current); // the error between current and
+												// the reference
+		best = current;
+		bestDistance = distance;
+		iteration = 0;
+		improvedAt = 0;
+		improvedTo = distance;
+		nextFidelityCheck = 0;
+	}
+
+	/**
+	 * Take one Metropolis step at a fixed temperature. The annealing schedule
+	 * is up to the caller, so this is shared between minimise and the
+	 * replicas of ParallelTempering.
+	 *
+	 * @param temperature
+	 *            The temperature to take the step at
+	 * @return Whether the proposed move was accepted
+	 */
+	boolean step(double temperature) {
+		RaupState sNew = neighbour(current);
+
+		double distanceNew = kernel.distance(sNew, stride); // The error
+															// between sNew and
+															// the reference
+		boolean accepted = r.nextDouble() < accept(distance, distanceNew, temperature);
+		if (accepted) {
+			setCurrent(sNew, distanceNew);
+		}
+		if (proposal != null) {
+			proposal.feedback(proposal.lastMove(), accepted, current);
+		}
+		return accepted;
+	}
+
+	/**
+	 * Move the chain to a state whose distance is already known, such as one
+	 * swapped in from another replica.
+	 */
+	void setCurrent(RaupState s, double d) {
+		current = s;
+		distance = d;
+		if (d < bestDistance) {
+			best = s;
+			bestDistance = d;
+			if (d < improvedTo - stagnationEpsilon) {
+				improvedAt = iteration;
+				improvedTo = d;
+			}
+		}
+	}
+
+	RaupState getCurrent() {
+		return current;
+	}
+
+	double getDistance() {
+		return distance;
+	}
+
+	RaupState getBest() {
+		return best;
+	}
+
+	double getBestDistance() {
+		return bestDistance;
 	}
 
 	private RaupState neighbour(RaupState s) {
+		if (proposal != null) {
+			return proposal.propose(s, r);
+		}
 		return s.moveRandom(r, 0.01);
 	}
 
+	/**
+	 * Score proposals against a subsample of the reference while the chain is
+	 * hot. At high temperatures the acceptance decisions are so noisy that
+	 * the full reference is wasted effort. The log temperature range is split
+	 * into equal bands, one for each stride from maxStride (hottest) down to
+	 * 1 (coldest), halving each time. The default of 1 always uses the whole
+	 * reference.
+	 *
+	 * Distances at different strides aren't exactly comparable, so whenever
+	 * the stride changes the current and best states are scored again.
+	 *
+	 * @param maxStride
+	 *            The largest stride, rounded down to a power of 2
+	 */
+	public void setFidelity(int maxStride) {
+		this.maxStride = Integer.highestOneBit(Math.max(1, maxStride));
+	}
+
+	/**
+	 * Work out which stride to use at a temperature
+	 */
+	private int strideFor(double temperature) {
+		int levels = Integer.numberOfTrailingZeros(maxStride);
+		double fraction = Math.log(temperature / minTemperature) / Math.log(maxTemperature / minTemperature);
+		int level = (int) Math.floor(fraction * (levels + 1));
+		return 1 << Math.min(levels, Math.max(0, level));
+	}
+
+	/**
+	 * Change the stride proposals are scored with, and score the current and
+	 * best states again to match
+	 */
+	private void setStride(int newStride) {
+		if (newStride == stride) {
+			return;
+		}
+		stride = newStride;
+		distance = kernel.distance(current, stride);
+		bestDistance = kernel.distance(best, stride);
+		if (distance < bestDistance) {
+			best = current;
+			bestDistance = distance;
+		}
+		improvedTo = bestDistance;
+	}
+
+	/**
+	 * Save the chain to a file every so often as it runs. Only the chain
+	 * itself (its states, iteration, random number generator and stopping
+	 * state) is saved. An adaptive proposal or schedule starts adapting again
+	 * from scratch on a resume, so only runs without them resume exactly.
+	 *
+	 * @param file
+	 *            The file to save to, or null to not save
+	 * @param resume
+	 *            If true, and the file already holds a checkpoint, carry on
+	 *            from it rather than starting again
+	 */
+	public void setCheckpoint(File file, boolean resume) {
+		this.checkpoint = file;
+		this.resume = file != null && resume;
+	}
+
+	/**
+	 * Write the chain to a checkpoint file. The file is written next to the
+	 * real one and then moved over it, so a crash part way through never
+	 * leaves a broken checkpoint behind.
+	 */
+	private void save(File file) {
+		File temp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeInt(CHECKPOINT_VERSION);
+			out.writeLong(reference.contentHash());
+			out.writeInt(iteration);
+			writeState(out, current);
+			out.writeDouble(distance);
+			writeState(out, best);
+			out.writeDouble(bestDistance);
+			out.writeInt(improvedAt);
+			out.writeDouble(improvedTo);
+			out.writeInt(stride);
+			CheckpointRandom.State state = ((CheckpointRandom) r).getState();
+			out.writeLong(state.seed);
+			out.writeBoolean(state.haveNextNextGaussian);
+			out.writeDouble(state.nextNextGaussian);
+		} catch (IOException e) {
+			// Losing a checkpoint only costs time if there is a crash later
+			System.err.println("Failed to write checkpoint " + file + ": " + e.getMessage());
+			return;
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Failed to write checkpoint " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Put the chain back the way it was when a checkpoint was written.
+	 *
+	 * @return false if the checkpoint couldn't be used, in which case the
+	 *         chain is untouched
+	 */
+	private boolean restore(File file) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION) {
+				System.err.println("Ignoring " + file + ": not a checkpoint");
+				return false;
+			}
+			if (in.readLong() != reference.contentHash()) {
+				System.err.println("Ignoring " + file + ": it is for a different reference");
+				return false;
+			}
+			int savedIteration = in.readInt();
+			RaupState savedCurrent = readState(in);
+			double savedDistance = in.readDouble();
+			RaupState savedBest = readState(in);
+			double savedBestDistance = in.readDouble();
+			int savedImprovedAt = in.readInt();
+			double savedImprovedTo = in.readDouble();
+			int savedStride = in.readInt();
+			CheckpointRandom.State state = new CheckpointRandom.State(in.readLong(), in.readBoolean(),
+					in.readDouble());
+
+			iteration = savedIteration;
+			current = savedCurrent;
+			distance = savedDistance;
+			best = savedBest;
+			bestDistance = savedBestDistance;
+			improvedAt = savedImprovedAt;
+			improvedTo = savedImprovedTo;
+			stride = savedStride;
+			nextFidelityCheck = savedIteration;
+			((CheckpointRandom) r).setState(state);
+			return true;
+		} catch (IOException e) {
+			System.err.println("Ignoring " + file + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private static void writeState(DataOutputStream out, RaupState s) throws IOException {
+		for (int i = 0; i < RaupState.PARAMETERS; i++) {
+			out.writeDouble(s.get(i));
+		}
+	}
+
+	private static RaupState readState(DataInputStream in) throws IOException {
+		double[] p = new double[RaupState.PARAMETERS];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = in.readDouble();
+		}
+		return new RaupState(p[4], p[3], p[2], p[0], p[1]);
+	}
+
+	/**
+	 * Set the cooling schedule. The default is geometric cooling from
+	 * maxTemperature to minTemperature. Schedules that keep state (anything
+	 * but a TableScale) must not be shared between chains.
+	 *
+	 * @param scale
+	 *            The schedule to use
+	 */
+	public void setScale(Scale scale) {
+		this.scale = scale;
+	}
+
+	/**
+	 * Make a cooling schedule by name, over the standard schedule length and
+	 * temperatures.
+	 *
+	 * @param name
+	 *            One of geometric, lundy-mees, logarithmic, adaptive or
+	 *            reheating
+	 * @return A supplier of the schedule for each chain
+	 */
+	static Supplier<Scale> schedule(String name) {
+		int n = 1000000;
+		double min = 0.000001;
+		double max = 10;
+		switch (name) {
+		case "geometric":
+			return () -> new GeometricScale(n, min, max);
+		case "lundy-mees":
+			// Tables are immutable, so every chain can share one
+			TableScale lundyMees = TableScale.lundyMees(n, min, max);
+			return () -> lundyMees;
+		case "logarithmic":
+			TableScale logarithmic = TableScale.logarithmic(n, min, max);
+			return () -> logarithmic;
+		case "adaptive":
+			return () -> new AdaptiveScale(n, min, max, 0.5, 0.001);
+		case "reheating":
+			return () -> new ReheatingScale(new GeometricScale(n, min, max), 10000);
+		default:
+			throw new IllegalArgumentException("Unknown schedule: " + name);
+		}
+	}
+
+	/**
+	 * Use adaptive moves over all five parameters rather than fixed size
+	 * moves of just w and t. Passing null goes back to fixed moves.
+	 *
+	 * @param proposal
+	 *            The proposal to use, or null
+	 */
+	public void setProposal(AdaptiveProposal proposal) {
+		this.proposal = proposal;
+	}
+
 	private double temperature(int f) {
 		return scale.scale(f);
 	}
@@ -120,116 +730,468 @@ public class SimulatedAnnealing {
 	}
 
 	public static void main(String[] args) {
-		if (args.length < 2 || args.length > 3) {
-			System.err.println("Usage:");
-			System.err.println("java -jar sa.jar <targetFilename> number [batch|gui]");
-			System.exit(-1);
+		if (args.length < 2) {
+			usage();
 		}
 
 		String filename = args[0];
 		int numberOfRuns = Integer.parseInt(args[1]);
 
 		boolean gui = true;
-		if (args.length == 3) {
-			switch (args[2]) {
+		boolean estimate = false;
+		boolean estimateOnly = false;
+		boolean lm = false;
+		boolean polish = false;
+		boolean tempering = false;
+		int swapInterval = 100;
+		boolean race = false;
+		int speculation = 1;
+		boolean adaptive = false;
+		boolean correlated = false;
+		Supplier<Scale> schedule = null;
+		int budget = Integer.MAX_VALUE;
+		Duration timeLimit = null;
+		int stagnation = Integer.MAX_VALUE;
+		int fidelity = 1;
+		File checkpointDir = null;
+		boolean resume = false;
+		double frameRate = PlotPublisher.DEFAULT_FRAME_RATE;
+		for (int i = 2; i < args.length; i++) {
+			switch (args[i]) {
 			case "batch":
 				gui = false;
 				break;
 			case "gui":
 				gui = true;
 				break;
+			case "--estimate":
+				// Start each run from the closed form estimate
+				estimate = true;
+				break;
+			case "--estimate-only":
+				// Don't anneal at all, just use the closed form estimate
+				estimateOnly = true;
+				break;
+			case "--lm":
+				// Use Levenberg-Marquardt instead of annealing
+				lm = true;
+				break;
+			case "--polish":
+				// Refine the result of annealing with Levenberg-Marquardt
+				polish = true;
+				break;
+			case "--tempering":
+				// One replica per core on a fixed temperature ladder
+				tempering = true;
+				break;
+			case "--race":
+				// Race the runs against each other, dropping the worst
+				race = true;
+				break;
+			case "--speculate":
+				// Score this many proposals at a time in each run
+				if (++i == args.length) {
+					usage();
+				}
+				speculation = Integer.parseInt(args[i]);
+				break;
+			case "--adaptive":
+				// Tune a step size for each of the five parameters
+				adaptive = true;
+				break;
+			case "--correlated":
+				// As above, but also learn moves of all the parameters
+				adaptive = true;
+				correlated = true;
+				break;
+			case "--budget":
+				// Stop each run after this many iterations
+				if (++i == args.length) {
+					usage();
+				}
+				budget = Integer.parseInt(args[i]);
+				break;
+			case "--time":
+				// Stop each run after this many seconds
+				if (++i == args.length) {
+					usage();
+				}
+				timeLimit = Duration.ofMillis((long) (Double.parseDouble(args[i]) * 1000));
+				break;
+			case "--stagnation":
+				// Stop each run once it hasn't improved for this long
+				if (++i == args.length) {
+					usage();
+				}
+				stagnation = Integer.parseInt(args[i]);
+				break;
+			case "--fidelity":
+				// Score against every nth sample while hot
+				if (++i == args.length) {
+					usage();
+				}
+				fidelity = Integer.parseInt(args[i]);
+				break;
+			case "--fps":
+				// Redraw the plots at most this many times a second
+				if (++i == args.length) {
+					usage();
+				}
+				frameRate = Double.parseDouble(args[i]);
+				break;
+			case "--checkpoint":
+				// Save every run as it goes, and the results as they finish
+				if (++i == args.length) {
+					usage();
+				}
+				checkpointDir = new File(args[i]);
+				break;
+			case "--resume":
+				// Carry on from the checkpoints, skipping finished runs
+				resume = true;
+				break;
+			case "--schedule":
+				if (++i == args.length) {
+					usage();
+				}
+				try {
+					schedule = schedule(args[i]);
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					usage();
+				}
+				break;
+			case "--swap-interval":
+				if (++i == args.length) {
+					usage();
+				}
+				swapInterval = Integer.parseInt(args[i]);
+				break;
 			default:
-				System.err.println("Unsupported argument: " + args[1]);
-				System.exit(-1);
+				System.err.println("Unsupported argument: " + args[i]);
+				usage();
 			}
 		}
 
-		final List<Point3D> values = new ArrayList<>();
+		ReferenceCurve reference = null;
 
 		try {
-			Scanner scan = new Scanner(new File(filename));
-			while (scan.hasNext()) {
-				values.add(new Point3D(scan.nextDouble(), scan.nextDouble(), scan.nextDouble()));
-			}
-			scan.close();
-		} catch (FileNotFoundException e) {
+			reference = ReferenceCurve.fromFile(new File(filename));
+		} catch (IOException e) {
 			System.err.println("Failed to read in reference model file");
 			e.printStackTrace();
 			System.exit(-1);
 		}
+		final ReferenceCurve values = reference;
 
+		final RaupState start;
+		if (estimate || estimateOnly) {
+			RaupState.Estimate e = RaupState.estimate(values);
+			if (estimateOnly) {
+				RaupState s = e.state;
+				System.out.println("w,r0,rc,y0,t,rmse");
+				System.out.print(String.format("%f,%f,%f,%f,%f,%f\n", s.w, s.r0, s.rc, s.y0, s.t, e.residual));
+				return;
+			}
+			start = e.state;
+		} else {
+			start = null;
+		}
+
+
+		if (tempering) {
+			// Each run already uses every core, so runs go one after another
+			int replicas = Math.max(2, Runtime.getRuntime().availableProcessors());
+			ParallelTempering pt = new ParallelTempering(values, replicas, 0.000001, 10, swapInterval, 1000000);
+			pt.setStart(start);
+			LevenbergMarquardt optimiser = new LevenbergMarquardt(values);
+			System.out.println("w,r0,rc,y0,t,rmse");
+			for (int i = 0; i < numberOfRuns; i++) {
+				RaupState s;
+				try {
+					s = pt.minimise();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (polish) {
+					s = optimiser.minimise(s).state;
+				}
+				System.out.print(String.format("%f,%f,%f,%f,%f,%f\n", s.w, s.r0, s.rc, s.y0, s.t, s.distanceTo(values)));
+			}
+			return;
+		}
 
 		ExecutorService threadPool = Executors.newFixedThreadPool(2* Runtime.getRuntime().availableProcessors());
 
+		if (race) {
+			// Halve the field after 5% of the schedule, then 10%, 20%...
+			RacingScheduler racing = new RacingScheduler(values, numberOfRuns, 0.5, 0.05);
+			racing.setStart(start);
+			racing.setSchedule(schedule);
+
+			// The chains only publish to the board (after each segment), so
+			// the plot polls it once a frame
+			PlotPublisher publisher = null;
+			ScheduledExecutorService poller = null;
+			if (gui) {
+				publisher = PlotPublisher.window("Snail Hugging Progress", values, PlotPublisher.DEFAULT_POINTS,
+						frameRate, true);
+				PlotPublisher plot = publisher;
+				BestBoard board = racing.getBoard();
+				BestBoard.Entry[] shown = { null };
+				poller = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r, "race-plot");
+					t.setDaemon(true);
+					return t;
+				});
+				poller.scheduleAtFixedRate(() -> {
+					BestBoard.Entry best = board.get();
+					if (best != null && best != shown[0]) {
+						shown[0] = best;
+						plot.publish(best.state::genPoints);
+					}
+				}, 0, (long) (1e9 / frameRate), TimeUnit.NANOSECONDS);
+			}
 
-		List<Future<String>> results = new ArrayList<>();
+			RaupState s;
+			try {
+				s = racing.minimise(threadPool);
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				threadPool.shutdown();
+				if (poller != null) {
+					poller.shutdown();
+				}
+			}
+			if (polish) {
+				s = new LevenbergMarquardt(values).minimise(s).state;
+			}
+			if (publisher != null) {
+				// So the plot ends on the answer
+				publisher.publish(s::genPoints);
+			}
+			System.out.println("w,r0,rc,y0,t,rmse");
+			System.out.print(String.format("%f,%f,%f,%f,%f,%f\n", s.w, s.r0, s.rc, s.y0, s.t, s.distanceTo(values)));
+			return;
+		}
+
+
+		if (resume && checkpointDir == null) {
+			System.err.println("--resume needs --checkpoint");
+			usage();
+		}
+
+		// Results are appended to this as each run finishes, so nothing is
+		// lost if the batch is stopped
+		Set<Integer> finished = new HashSet<>();
+		PrintStream resultsFile = null;
+		if (checkpointDir != null) {
+			if (!checkpointDir.isDirectory() && !checkpointDir.mkdirs()) {
+				System.err.println("Failed to create checkpoint directory " + checkpointDir);
+				System.exit(-1);
+			}
+			File resultsPath = new File(checkpointDir, "results.csv");
+			if (resume) {
+				finished = readFinished(resultsPath);
+			}
+			try {
+				boolean fresh = !resultsPath.exists() || !resume;
+				resultsFile = new PrintStream(new FileOutputStream(resultsPath, !fresh));
+				if (fresh) {
+					resultsFile.println("run,w,r0,rc,y0,t,rmse");
+				}
+			} catch (FileNotFoundException e) {
+				System.err.println("Failed to open results file " + resultsPath);
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+
+		CompletionService<String[]> results = new ExecutorCompletionService<>(threadPool);
+		int submitted = 0;
 
 		final boolean threadGui = gui;
+		final boolean useLm = lm;
+		final boolean usePolish = polish;
+		final LevenbergMarquardt optimiser = new LevenbergMarquardt(values);
+		final int threadSpeculation = speculation;
+		final Supplier<Scale> threadSchedule = schedule;
+		final int threadBudget = budget;
+		final Duration threadTimeLimit = timeLimit;
+		final int threadStagnation = stagnation;
+		final int threadFidelity = fidelity;
+		final boolean threadAdaptive = adaptive;
+		final boolean threadCorrelated = correlated;
+		final File threadCheckpointDir = checkpointDir;
+		final boolean threadResume = resume;
+		final double threadFrameRate = frameRate;
+		final ForkJoinPool speculationPool = speculation > 1 ? new ForkJoinPool() : null;
 		for(int i = 0 ; i < numberOfRuns ; i++ ){
-			results.add(threadPool.submit(()->{
-			SimulatedAnnealing sa = new SimulatedAnnealing(values, threadGui);
-			RaupState s = sa.minimise();
-			return String.format("%f,%f,%f,%f,%f,%f\n", s.w, s.r0, s.rc, s.y0, s.t, s.distanceTo(values));
-			}));
+			if (finished.contains(i)) {
+				continue;
+			}
+			final int run = i;
+			submitted++;
+			results.submit(()->{
+			RaupState s;
+			if (useLm) {
+				s = optimiser.minimise(start != null ? start : new RaupState(new Random())).state;
+			} else {
+				SimulatedAnnealing sa = new SimulatedAnnealing(values, threadGui);
+				sa.setStart(start);
+				sa.setSpeculation(threadSpeculation, speculationPool);
+				if (threadSchedule != null) {
+					sa.setScale(threadSchedule.get());
+				}
+				sa.setIterationBudget(threadBudget);
+				sa.setTimeLimit(threadTimeLimit);
+				sa.setStagnation(threadStagnation, 0);
+				sa.setFidelity(threadFidelity);
+				sa.setFrameRate(threadFrameRate);
+				if (threadAdaptive) {
+					sa.setProposal(new AdaptiveProposal(0.01, threadCorrelated));
+				}
+				if (threadCheckpointDir != null) {
+					sa.setCheckpoint(new File(threadCheckpointDir, "run-" + run + ".ckpt"), threadResume);
+				}
+				s = sa.minimise();
+				if (usePolish) {
+					s = optimiser.minimise(s).state;
+				}
+			}
+			return new String[] { Integer.toString(run),
+					String.format("%f,%f,%f,%f,%f,%f", s.w, s.r0, s.rc, s.y0, s.t, s.distanceTo(values)) };
+			});
 
 		}
 
+		// Print each run as soon as it finishes, whatever order that is in
 		System.out.println("w,r0,rc,y0,t,rmse");
-		for(Future<String> s : results){
+		for (int i = 0; i < submitted; i++) {
 			try {
-				System.out.print(s.get());
+				String[] row = results.take().get();
+				System.out.println(row[1]);
+				if (resultsFile != null) {
+					resultsFile.println(row[0] + "," + row[1]);
+					resultsFile.flush();
+					// The run is safely recorded, so its checkpoint can go
+					new File(checkpointDir, "run-" + row[0] + ".ckpt").delete();
+				}
 			} catch (InterruptedException | ExecutionException e) {
 				//Cry, but just keep going
 			}
 		}
+		if (resultsFile != null) {
+			resultsFile.close();
+		}
 
 		threadPool.shutdown();
+		if (speculationPool != null) {
+			speculationPool.shutdown();
+		}
 
 	}
 
 	/**
-	 * This represents a single update the plot task.
-	 *
-	 * @author Roman Klapaukh
-	 *
+	 * Read which runs have already finished from a results file. A line cut
+	 * short by a crash is ignored, so that run is done again.
 	 */
-	private class UpdateJob implements Runnable {
-		private final RaupState s;
+	private static Set<Integer> readFinished(File resultsPath) {
+		Set<Integer> finished = new HashSet<>();
+		if (!resultsPath.exists()) {
+			return finished;
+		}
+		try (BufferedReader in = new BufferedReader(new FileReader(resultsPath))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(",");
+				if (fields.length != 7) {
+					continue;
+				}
+				try {
+					for (int i = 1; i < fields.length; i++) {
+						Double.parseDouble(fields[i]);
+					}
+					finished.add(Integer.parseInt(fields[0]));
+				} catch (NumberFormatException e) {
+					// The header, or a broken line
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to read " + resultsPath + ", starting again");
+		}
+		return finished;
+	}
 
+	private static void usage() {
+		System.err.println("Usage:");
+		System.err.println("java -jar sa.jar <targetFilename> number [batch|gui] [--estimate|--estimate-only] [--lm|--polish] [--tempering [--swap-interval n]|--race] [--speculate k] [--adaptive|--correlated]");
+		System.err.println("    [--schedule geometric|lundy-mees|logarithmic|adaptive|reheating]");
+		System.err.println("    [--budget iterations] [--time seconds] [--stagnation iterations]");
+		System.err.println("    [--fidelity maxStride] [--checkpoint dir [--resume]] [--fps framesPerSecond]");
+		System.exit(-1);
+	}
+
+	/**
+	 * Why a run stopped
+	 */
+	public enum StopReason {
 		/**
-		 * Create a new update the plot task.
-		 *
-		 * @param p
-		 *            The individual to plot
-		 * @param conf
-		 *            The GPConfig being used
-		 *
+		 * The cooling schedule finished
 		 */
-		public UpdateJob(RaupState s) {
-			this.s = s;
-		}
+		COMPLETED,
+		/**
+		 * The iteration budget ran out
+		 */
+		BUDGET,
+		/**
+		 * The time limit passed
+		 */
+		TIME,
+		/**
+		 * The best distance stopped improving
+		 */
+		STAGNATION,
+		/**
+		 * A state within the target distance was found
+		 */
+		TARGET,
+		/**
+		 * cancel was called
+		 */
+		CANCELLED
+	}
+
+	/**
+	 * The result of an annealing run
+	 */
+	public static class Result {
+		/**
+		 * The best state found
+		 */
+		public final RaupState state;
 
 		/**
-		 * Use the SnailFitness to generate the curve of the program and then
-		 * update the plot
+		 * The distance between the state and the reference
 		 */
-		public void run() {
-			List<Point3D> points = s.genPoints(reference);
+		public final double distance;
 
-			double[][] XY = new double[points.size()][3];
-			for (int i = 0; i < points.size(); i++) {
-				Point3D pi = points.get(i);
-				XY[i][0] = pi.getY() * Math.sin(pi.getX());
-				XY[i][1] = pi.getY() * Math.cos(pi.getX());
-				XY[i][2] = pi.getZ();
+		/**
+		 * The number of iterations taken
+		 */
+		public final int iterations;
 
-			}
+		/**
+		 * Why the run stopped
+		 */
+		public final StopReason reason;
 
-			SwingUtilities.invokeLater(() -> {
-				plot.changePlotData(1, XY);
-				plot.setAutoBounds();
-				plot.repaint();
-			});
+		public Result(RaupState state, double distance, int iterations, StopReason reason) {
+			this.state = state;
+			this.distance = distance;
+			this.iterations = iterations;
+			this.reason = reason;
 		}
 	}
 
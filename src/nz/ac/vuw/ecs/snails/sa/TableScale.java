@@ -0,0 +1,74 @@
+package nz.ac.vuw.ecs.snails.sa;
+
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * A cooling schedule worked out in advance, so that each temperature is a
+ * single array load. The table is stored as floats to halve its size, which
+ * is plenty of precision for a temperature. Past the end of the table the
+ * last temperature is used.
+ *
+ * Instances are immutable, so one table can be shared by every chain.
+ *
+ */
+public class TableScale implements Scale {
+
+	private final float[] table;
+
+	/**
+	 * Tabulate a schedule
+	 *
+	 * @param maxDomain
+	 *            The length of the schedule
+	 * @param schedule
+	 *            The temperature at each step
+	 */
+	public TableScale(int maxDomain, IntToDoubleFunction schedule) {
+		table = new float[maxDomain + 1];
+		for (int x = 0; x <= maxDomain; x++) {
+			table[x] = (float) schedule.applyAsDouble(x);
+		}
+	}
+
+	@Override
+	public double scale(int x) {
+		return table[Math.min(Math.max(x, 0), table.length - 1)];
+	}
+
+	/**
+	 * Lundy-Mees cooling, T(x + 1) = T(x) / (1 + beta T(x)), or in closed form
+	 * T(x) = 1 / (1 / maxRange + beta x). beta is chosen so that T reaches
+	 * minRange at maxDomain. This spends longer at low temperatures than
+	 * geometric cooling does.
+	 *
+	 * @param maxDomain
+	 *            The length of the schedule
+	 * @param minRange
+	 *            The final temperature
+	 * @param maxRange
+	 *            The starting temperature
+	 * @return The schedule
+	 */
+	public static TableScale lundyMees(int maxDomain, double minRange, double maxRange) {
+		double beta = (1 / minRange - 1 / maxRange) / maxDomain;
+		return new TableScale(maxDomain, x -> 1 / (1 / maxRange + beta * x));
+	}
+
+	/**
+	 * Logarithmic cooling, T(x) = maxRange ln 2 / ln(x + 2). This is the slow
+	 * schedule that annealing is guaranteed to converge under, and it will
+	 * not get anywhere near minRange in any sensible number of steps, so it
+	 * is only bounded below by it.
+	 *
+	 * @param maxDomain
+	 *            The length of the schedule
+	 * @param minRange
+	 *            The lowest temperature allowed
+	 * @param maxRange
+	 *            The starting temperature
+	 * @return The schedule
+	 */
+	public static TableScale logarithmic(int maxDomain, double minRange, double maxRange) {
+		return new TableScale(maxDomain, x -> Math.max(minRange, maxRange * Math.log(2) / Math.log(x + 2)));
+	}
+}
@@ -1,14 +1,36 @@
 package nz.ac.vuw.ecs.snails.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import javafx.geometry.Point3D;
 import javafx.scene.transform.Rotate;
 import nz.ac.vuw.ecs.fgpj.core.GPConfig;
 import nz.ac.vuw.ecs.fgpj.core.GeneticProgram;
+import nz.ac.vuw.ecs.snails.compiler.ProgramCompiler;
+import nz.ac.vuw.ecs.snails.functions.Add;
 import nz.ac.vuw.ecs.snails.functions.Cos;
+import nz.ac.vuw.ecs.snails.functions.Divide;
+import nz.ac.vuw.ecs.snails.functions.Exp;
+import nz.ac.vuw.ecs.snails.functions.GenExp;
+import nz.ac.vuw.ecs.snails.functions.Ln;
+import nz.ac.vuw.ecs.snails.functions.Minus;
+import nz.ac.vuw.ecs.snails.functions.RandomDouble;
 import nz.ac.vuw.ecs.snails.functions.Sin;
 import nz.ac.vuw.ecs.snails.functions.T;
+import nz.ac.vuw.ecs.snails.functions.Tan;
+import nz.ac.vuw.ecs.snails.functions.Times;
+import nz.ac.vuw.ecs.snails.main.FitnessCache;
+import nz.ac.vuw.ecs.snails.main.PopulationSnapshot;
+import nz.ac.vuw.ecs.snails.main.ProgramKey;
 import nz.ac.vuw.ecs.snails.main.SnailFitness;
+import nz.ac.vuw.ecs.snails.sa.CheckpointRandom;
 
 import org.junit.Test;
 
@@ -57,4 +79,285 @@ public class FitnessTests {
 		
 		assertTrue(p1.getFitness() < p2.getFitness());
 	}
+
+	// Uses every function, including division by zero and logs of negative
+	// numbers
+	private static final String ALL_FUNCTIONS = "2 Program0 ( + ( * t RandomDoublex2.5 ) ( / ( Sin t ) ( - t t ) ) ) | "
+			+ "Program1 ( ^ ( ln ( - RandomDoublex1.5 t ) ) ( e ( Cos ( Tan t ) ) ) ) |";
+
+	private GPConfig allFunctionsConfig() {
+		GPConfig conf = new GPConfig(2, 1, 6, 0.28, 0.7, 0.02);
+		conf.addTerminal(new T());
+		conf.addTerminal(new RandomDouble(1, 5, conf));
+		conf.addFunction(new Add());
+		conf.addFunction(new Times());
+		conf.addFunction(new Minus());
+		conf.addFunction(new Divide());
+		conf.addFunction(new Exp());
+		conf.addFunction(new Sin());
+		conf.addFunction(new Cos());
+		conf.addFunction(new Tan());
+		conf.addFunction(new Ln());
+		conf.addFunction(new GenExp());
+		return conf;
+	}
+
+	@Test
+	public void testColumnEvaluation(){
+		GeneticProgram p = new GeneticProgram(2);
+		p.parseProgram(ALL_FUNCTIONS, allFunctionsConfig());
+
+		SnailFitness sf = new SnailFitness(null);
+		sf.initFitness();
+
+		sf.setBatchEvaluation(false);
+		double scalar = sf.score(p);
+		sf.setBatchEvaluation(true);
+		double column = sf.score(p);
+
+		// Both must do exactly the same arithmetic
+		assertEquals(scalar, column, 0);
+	}
+
+	@Test
+	public void testCompiledEvaluation(){
+		GeneticProgram p = new GeneticProgram(2);
+		p.parseProgram(ALL_FUNCTIONS, allFunctionsConfig());
+
+		SnailFitness sf = new SnailFitness(null);
+		sf.initFitness();
+		double interpreted = sf.score(p);
+
+		ProgramCompiler compiler = new ProgramCompiler(10);
+		sf.setCompiler(compiler);
+		double compiled = sf.score(p);
+		// The second time around the compiled trees come from the cache
+		double cached = sf.score(p);
+
+		assertEquals(interpreted, compiled, 0);
+		assertEquals(interpreted, cached, 0);
+		assertEquals(2, compiler.misses());
+		assertEquals(2, compiler.hits());
+
+		// Screening and scoring share one lookup
+		sf.setScreening(32, 1);
+		sf.setCutoff(interpreted * 2);
+		sf.assignFitness(p, allFunctionsConfig());
+		assertEquals(interpreted, p.getFitness(), 0);
+		assertEquals(2, compiler.misses());
+		assertEquals(4, compiler.hits());
+	}
+
+	@Test
+	public void testFitnessCache(){
+		GPConfig conf = allFunctionsConfig();
+		GeneticProgram p1 = new GeneticProgram(2);
+		GeneticProgram p2 = new GeneticProgram(2);
+		GeneticProgram p3 = new GeneticProgram(2);
+		p1.parseProgram(ALL_FUNCTIONS, conf);
+		p2.parseProgram(ALL_FUNCTIONS, conf);
+		// Only differs in the last digit of a constant
+		p3.parseProgram(ALL_FUNCTIONS.replace("2.5", "2.5000000000000004"), conf);
+
+		assertEquals(ProgramKey.of(p1, 2), ProgramKey.of(p2, 2));
+		assertNotEquals(ProgramKey.of(p1, 2), ProgramKey.of(p3, 2));
+
+		SnailFitness sf = new SnailFitness(null);
+		sf.initFitness();
+		FitnessCache cache = new FitnessCache(1);
+		sf.setCache(cache);
+
+		sf.assignFitness(p1, conf);
+		sf.assignFitness(p2, conf);
+		assertEquals(p1.getFitness(), p2.getFitness(), 0);
+		assertEquals(1, cache.hits());
+
+		// Only room for one, so this pushes out the others
+		sf.assignFitness(p3, conf);
+		assertEquals(2, cache.misses());
+		assertEquals(1, cache.evictions());
+	}
+
+	@Test
+	public void testEarlyAbandon(){
+		GPConfig conf = allFunctionsConfig();
+		GeneticProgram p = new GeneticProgram(2);
+		p.parseProgram("2 Program0 t | Program1 ( * t RandomDoublex2.0 ) |", conf);
+		GeneticProgram overflow = new GeneticProgram(2);
+		overflow.parseProgram("2 Program0 ( e ( e ( e t ) ) ) | Program1 t |", conf);
+
+		SnailFitness sf = new SnailFitness(null);
+		sf.initFitness();
+		double full = sf.score(p);
+
+		sf.setCutoff(full * 2);
+		assertEquals(full, sf.score(p), 0);
+
+		sf.setCutoff(full / 2);
+		assertEquals(SnailFitness.ABANDONED, sf.score(p), 0);
+		// Abandoned programs must still be worse than any real score
+		assertTrue(sf.compare(full, SnailFitness.ABANDONED) > 0);
+
+		sf.setBatchEvaluation(false);
+		assertEquals(SnailFitness.ABANDONED, sf.score(p), 0);
+
+		assertEquals(Double.POSITIVE_INFINITY, sf.score(overflow), 0);
+
+		// Overflowing programs stop after their first block even without a
+		// cutoff, however they are evaluated
+		sf.setCutoff(Double.POSITIVE_INFINITY);
+		long before = sf.getSamplesScored();
+		assertEquals(Double.POSITIVE_INFINITY, sf.score(overflow), 0);
+		sf.setBatchEvaluation(true);
+		assertEquals(Double.POSITIVE_INFINITY, sf.score(overflow), 0);
+		sf.setCompiler(new ProgramCompiler(10));
+		assertEquals(Double.POSITIVE_INFINITY, sf.score(overflow), 0);
+		assertEquals(3 * 256, sf.getSamplesScored() - before);
+	}
+
+	@Test
+	public void testScreening(){
+		GPConfig conf = allFunctionsConfig();
+		GeneticProgram p = new GeneticProgram(2);
+		p.parseProgram("2 Program0 t | Program1 ( * t RandomDoublex2.0 ) |", conf);
+		GeneticProgram exact = new GeneticProgram(2);
+		exact.parseProgram("2 Program0 t | Program1 t |", conf);
+
+		SnailFitness sf = new SnailFitness(null);
+		sf.setScreening(32, 1);
+		sf.initFitness();
+		double full = sf.score(p);
+
+		// Without a cutoff there is nothing to screen against
+		sf.assignFitness(p, conf);
+		assertEquals(full, p.getFitness(), 0);
+		assertTrue(!sf.isApproximate(p));
+
+		sf.setCutoff(full * 2);
+		sf.assignFitness(p, conf);
+		assertEquals(full, p.getFitness(), 0);
+		assertTrue(!sf.isApproximate(p));
+		assertEquals(0, sf.getScreenedOut());
+
+		// Now it is well past the cutoff, so it is only estimated
+		sf.setCutoff(full / 4);
+		sf.assignFitness(p, conf);
+		assertTrue(sf.isApproximate(p));
+		assertEquals(full, sf.getEstimate(p), full * 0.05);
+		assertEquals(1, sf.getScreenedOut());
+
+		// A better program that passes screening but is then abandoned must
+		// never lose to the one screened out
+		GeneticProgram closer = new GeneticProgram(2);
+		closer.parseProgram("2 Program0 t | Program1 ( * t RandomDoublex1.5 ) |", conf);
+		sf.setCutoff(Double.POSITIVE_INFINITY);
+		sf.setCutoff(sf.score(closer) * 0.9);
+		sf.setScreening(32, 100);
+		sf.assignFitness(closer, conf);
+		assertTrue(!sf.isApproximate(closer));
+		assertEquals(SnailFitness.ABANDONED, closer.getFitness(), 0);
+		sf.setScreening(32, 1);
+		sf.assignFitness(p, conf);
+		assertTrue(sf.isApproximate(p));
+		assertTrue(sf.compare(closer.getFitness(), p.getFitness()) >= 0);
+
+		sf.assignFitness(exact, conf);
+		assertEquals(0, exact.getFitness(), 0);
+		assertTrue(!sf.isApproximate(exact));
+		assertTrue(Double.isNaN(sf.getEstimate(exact)));
+		assertEquals(4, sf.getFullEvaluations());
+	}
+
+	@Test
+	public void testPopulationSnapshot() throws IOException {
+		GPConfig conf = allFunctionsConfig();
+		File file = File.createTempFile("population", ".snap");
+		SnailFitness sf = new SnailFitness(null);
+		sf.setScreening(32, 1);
+		sf.initFitness();
+		PopulationSnapshot snapshot = new PopulationSnapshot(file, conf, sf, 2, 1, Long.MAX_VALUE);
+
+		// Constants that don't survive being printed to six decimal places,
+		// which the snapshot must keep exactly
+		List<GeneticProgram> pop = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			GeneticProgram p = new GeneticProgram(2);
+			p.parseProgram("2 Program0 ( + t RandomDoublex" + Math.PI * i + " ) | Program1 ( * RandomDoublex"
+					+ (1.0 / 3 + i) + " t ) |", conf);
+			p.setFitness(i * 0.1);
+			pop.add(p);
+		}
+		pop.get(3).setFitness(SnailFitness.ABANDONED);
+
+		// One that is screened out against the cutoff of the generation
+		GeneticProgram closer = new GeneticProgram(2);
+		closer.parseProgram("2 Program0 t | Program1 ( * t RandomDoublex1.5 ) |", conf);
+		double cutoff = sf.score(closer) * 0.9;
+		sf.setCutoff(cutoff);
+		GeneticProgram screened = new GeneticProgram(2);
+		screened.parseProgram("2 Program0 t | Program1 ( * t RandomDoublex2.0 ) |", conf);
+		sf.assignFitness(screened, conf);
+		assertTrue(sf.isApproximate(screened));
+		pop.add(screened);
+
+		// And one with every function, so every kind of node is encoded
+		GeneticProgram all = new GeneticProgram(2);
+		all.parseProgram(ALL_FUNCTIONS, conf);
+		all.setFitness(0.5);
+		pop.add(all);
+
+		snapshot.generation(pop);
+		snapshot.close();
+
+		PopulationSnapshot.Snapshot saved = PopulationSnapshot.read(file, conf, 2);
+		assertEquals(1, saved.generation);
+		assertEquals(cutoff, saved.cutoff, 0);
+		assertEquals(pop.size(), saved.programs.size());
+		for (int i = 0; i < pop.size(); i++) {
+			GeneticProgram original = pop.get(i);
+			GeneticProgram copy = saved.programs.get(i);
+			assertEquals(ProgramKey.of(original, 2), ProgramKey.of(copy, 2));
+			assertEquals(original.getFitness(), copy.getFitness(), 0);
+			assertEquals(sf.isApproximate(original), saved.approximate[i]);
+		}
+		assertEquals(sf.getEstimate(screened), saved.estimate[4], 0);
+
+		// Resuming primes the cache with the exact fitness values only
+		FitnessCache cache = new FitnessCache(100);
+		SnailFitness resumedFitness = new SnailFitness(null);
+		resumedFitness.setScreening(32, 1);
+		resumedFitness.initFitness();
+		PopulationSnapshot resumed = new PopulationSnapshot(file, conf, resumedFitness, 2, 1, Long.MAX_VALUE);
+		resumed.resumeFrom(saved, cache);
+		assertEquals(pop.get(2).getFitness(), cache.get(ProgramKey.of(pop.get(2), 2)), 0);
+		assertTrue(cache.get(ProgramKey.of(pop.get(3), 2)) == null);
+		assertTrue(cache.get(ProgramKey.of(screened, 2)) == null);
+
+		// The generation scored before the swap moves the generator on and
+		// sets a cutoff of its own, so both have to be put back along with
+		// the programs
+		conf.randomNumGenerator.nextLong();
+		resumedFitness.setCutoff(Double.POSITIVE_INFINITY);
+		List<GeneticProgram> fresh = new ArrayList<>(pop);
+		resumed.generation(fresh);
+		resumed.close();
+		for (int i = 0; i < pop.size(); i++) {
+			assertTrue(fresh.get(i) == saved.programs.get(i));
+		}
+		assertEquals(saved.rng.seed, ((CheckpointRandom) conf.randomNumGenerator).getState().seed);
+		assertEquals(cutoff, resumedFitness.getCutoff(), 0);
+		assertTrue(resumedFitness.isApproximate(fresh.get(4)));
+
+		// So the next generation is scored just as it was in the original run
+		GeneticProgram child = new GeneticProgram(2);
+		child.parseProgram("2 Program0 t | Program1 ( * t RandomDoublex1.5 ) |", conf);
+		GeneticProgram resumedChild = new GeneticProgram(2);
+		resumedChild.parseProgram("2 Program0 t | Program1 ( * t RandomDoublex1.5 ) |", conf);
+		sf.assignFitness(child, conf);
+		resumedFitness.setCache(cache);
+		resumedFitness.assignFitness(resumedChild, conf);
+		assertEquals(SnailFitness.ABANDONED, resumedChild.getFitness(), 0);
+		assertEquals(child.getFitness(), resumedChild.getFitness(), 0);
+		file.delete();
+	}
 }
@@ -0,0 +1,907 @@
+package nz.ac.vuw.ecs.snails.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import nz.ac.vuw.ecs.snails.landscape.Landscape;
+import nz.ac.vuw.ecs.snails.landscape.QuadtreeSampler;
+import nz.ac.vuw.ecs.snails.landscape.TileFile;
+import nz.ac.vuw.ecs.snails.plot.PlotPublisher;
+import nz.ac.vuw.ecs.snails.reference.ReferenceCurve;
+import nz.ac.vuw.ecs.snails.reference.ReferenceLoader;
+import nz.ac.vuw.ecs.snails.sa.AdaptiveProposal;
+import nz.ac.vuw.ecs.snails.sa.AdaptiveScale;
+import nz.ac.vuw.ecs.snails.sa.BatchFitter;
+import nz.ac.vuw.ecs.snails.sa.BestBoard;
+import nz.ac.vuw.ecs.snails.sa.CheckpointRandom;
+import nz.ac.vuw.ecs.snails.sa.GeometricScale;
+import nz.ac.vuw.ecs.snails.sa.LevenbergMarquardt;
+import nz.ac.vuw.ecs.snails.sa.ParallelTempering;
+import nz.ac.vuw.ecs.snails.sa.RacingScheduler;
+import nz.ac.vuw.ecs.snails.sa.RaupKernel;
+import nz.ac.vuw.ecs.snails.sa.RaupState;
+import nz.ac.vuw.ecs.snails.sa.ReheatingScale;
+import nz.ac.vuw.ecs.snails.sa.SimulatedAnnealing;
+import nz.ac.vuw.ecs.snails.sa.SimulatedAnnealing.StopReason;
+import nz.ac.vuw.ecs.snails.sa.Scale;
+import nz.ac.vuw.ecs.snails.sa.TableScale;
+
+import org.junit.Test;
+
+public class RaupTests {
+
+	/**
+	 * Make a curve the same way genRaup.R does
+	 */
+	private static ReferenceCurve raupCurve(double[] theta, RaupState s) {
+		double[] r = new double[theta.length];
+		double[] y = new double[theta.length];
+		for (int i = 0; i < theta.length; i++) {
+			double g = Math.pow(s.w, theta[i] / (2 * Math.PI));
+			r[i] = s.r0 * g;
+			y[i] = s.y0 * g + s.rc * s.t * (g - 1);
+		}
+		return new ReferenceCurve(theta, r, y);
+	}
+
+	private static double[] evenTheta() {
+		double[] theta = new double[1257];
+		for (int i = 0; i < theta.length; i++) {
+			theta[i] = i * 0.01;
+		}
+		return theta;
+	}
+
+	private static double[] unevenTheta(Random r) {
+		double[] theta = new double[1000];
+		for (int i = 0; i < theta.length; i++) {
+			theta[i] = r.nextDouble() * 4 * Math.PI;
+		}
+		Arrays.sort(theta);
+		return theta;
+	}
+
+	@Test
+	public void testKernel() {
+		Random r = new Random(7);
+		ReferenceCurve even = raupCurve(evenTheta(), new RaupState(1, 1, 1, 3.5, 0.7));
+		ReferenceCurve uneven = raupCurve(unevenTheta(r), new RaupState(1, 1, 1, 3.5, 0.7));
+
+		RaupKernel evenKernel = new RaupKernel(even);
+		RaupKernel unevenKernel = new RaupKernel(uneven);
+		assertTrue(evenKernel.isUniform());
+		assertTrue(!unevenKernel.isUniform());
+
+		for (int i = 0; i < 100; i++) {
+			RaupState s = new RaupState(r.nextDouble() * 2, r.nextDouble(), r.nextDouble() * 2, r.nextDouble() * 10,
+					r.nextDouble() * 5);
+			double expected = s.distanceTo(even);
+			assertEquals(expected, evenKernel.distance(s), 1e-9 * Math.max(1, expected));
+			expected = s.distanceTo(uneven);
+			assertEquals(expected, unevenKernel.distance(s), 1e-9 * Math.max(1, expected));
+		}
+
+		// Can't take logs of these, so they must match exactly
+		RaupState zero = new RaupState(1, 0, 1, 0, 1);
+		assertEquals(zero.distanceTo(even), evenKernel.distance(zero), 0);
+		RaupState negative = new RaupState(1, 0, 1, -0.01, 1);
+		assertEquals(negative.distanceTo(even), evenKernel.distance(negative), 0);
+
+		// A subsample should estimate the full distance, and be exact for
+		// a stride of 1
+		RaupState s = new RaupState(1.1, 0.5, 1, 3.3, 0.6);
+		double full = evenKernel.distance(s);
+		assertEquals(full, evenKernel.distance(s, 1), 0);
+		for (int stride : new int[] { 2, 4, 8, 16 }) {
+			assertEquals(full, evenKernel.distance(s, stride), 0.05 * full);
+			double unevenFull = unevenKernel.distance(s);
+			assertEquals(unevenFull, unevenKernel.distance(s, stride), 0.2 * unevenFull);
+		}
+	}
+
+	@Test
+	public void testEstimate() {
+		RaupState truth = new RaupState(1.3, 0.4, 1, 3.5, 0.7);
+		ReferenceCurve curve = raupCurve(evenTheta(), truth);
+
+		RaupState.Estimate e = RaupState.estimate(curve);
+		// A clean curve should be recovered almost exactly
+		assertEquals(truth.w, e.state.w, 1e-6);
+		assertEquals(truth.r0, e.state.r0, 1e-6);
+		assertEquals(truth.y0, e.state.y0, 1e-6);
+		assertEquals(truth.rc * truth.t, e.state.rc * e.state.t, 1e-6);
+		assertEquals(0, e.residual, 1e-4);
+
+		// With some noise it should still be close
+		Random r = new Random(3);
+		double[] noisyR = curve.r.clone();
+		double[] noisyY = curve.y.clone();
+		for (int i = 0; i < noisyR.length; i++) {
+			noisyR[i] += r.nextGaussian() * 0.01;
+			noisyY[i] += r.nextGaussian() * 0.01;
+		}
+		e = RaupState.estimate(new ReferenceCurve(curve.theta, noisyR, noisyY));
+		assertEquals(truth.w, e.state.w, 0.05);
+		assertEquals(truth.rc * truth.t, e.state.rc * e.state.t, 0.05);
+	}
+
+	@Test
+	public void testLevenbergMarquardt() {
+		RaupState truth = new RaupState(1.3, 0.4, 1, 3.5, 0.7);
+		ReferenceCurve curve = raupCurve(evenTheta(), truth);
+		LevenbergMarquardt lm = new LevenbergMarquardt(curve);
+
+		// Start some way off, where annealing would begin
+		LevenbergMarquardt.Result result = lm.minimise(new RaupState(1, 0, 1, 2, 2));
+		assertEquals(0, result.distance, 1e-6);
+		assertEquals(truth.w, result.state.w, 1e-6);
+		assertEquals(truth.rc * truth.t, result.state.rc * result.state.t, 1e-6);
+		assertTrue(result.iterations < 100);
+	}
+
+	@Test
+	public void testParallelTempering() throws InterruptedException {
+		RaupState truth = new RaupState(1.3, 0.4, 1, 3.5, 0.7);
+		ReferenceCurve curve = raupCurve(evenTheta(), truth);
+		RaupState start = new RaupState(1, 0, 1, 2, 2);
+
+		ParallelTempering pt = new ParallelTempering(curve, 4, 0.000001, 10, 50, 20000);
+		double[] ladder = pt.getTemperatures();
+		assertEquals(0.000001, ladder[0], 1e-12);
+		assertEquals(10, ladder[3], 1e-9);
+		for (int i = 1; i < ladder.length; i++) {
+			assertTrue(ladder[i] > ladder[i - 1]);
+		}
+
+		// The best state is kept, so it can never be worse than the start
+		pt.setStart(start);
+		RaupState best = pt.minimise();
+		assertTrue(best.distanceTo(curve) < start.distanceTo(curve));
+	}
+
+	@Test
+	public void testBestBoard() throws InterruptedException {
+		BestBoard board = new BestBoard();
+		assertEquals(null, board.get());
+		assertEquals(Double.POSITIVE_INFINITY, board.getDistance(), 0);
+
+		// Lots of threads offering at once must still end up with the best
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		for (int i = 0; i < 4; i++) {
+			final int seed = i;
+			pool.submit(() -> {
+				Random r = new Random(seed);
+				for (int j = 0; j < 10000; j++) {
+					double d = r.nextDouble() + 0.5;
+					board.offer(new RaupState(1, 0, 1, d, 1), d);
+				}
+			});
+		}
+		RaupState best = new RaupState(1, 0, 1, 0.25, 1);
+		pool.submit(() -> board.offer(best, 0.25));
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+
+		assertTrue(board.get().state == best);
+		assertEquals(0.25, board.getDistance(), 0);
+		assertTrue(!board.offer(best, 0.25));
+	}
+
+	@Test
+	public void testRacing() throws InterruptedException {
+		RaupState truth = new RaupState(1.3, 0.4, 1, 3.5, 0.7);
+		ReferenceCurve curve = raupCurve(evenTheta(), truth);
+		RaupState start = new RaupState(1, 0, 1, 2, 2);
+
+		// Survivors speculate with the cores of the dropped chains, which
+		// must not stop the race finishing with the best state on the board
+		RacingScheduler racing = new RacingScheduler(curve, 8, 0.5, 0.05);
+		racing.setStart(start);
+		racing.setSchedule(() -> new GeometricScale(20000, 0.000001, 10));
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		RaupState best = racing.minimise(pool);
+		pool.shutdown();
+
+		assertTrue(best == racing.getBoard().getState());
+		assertTrue(best.distanceTo(curve) < start.distanceTo(curve));
+	}
+
+	@Test
+	public void testAdaptiveProposal() {
+		// A Gaussian with a very different width in each parameter
+		double[] width = { 0.001, 0.01, 0.1, 1, 10 };
+		Random r = new Random(11);
+		AdaptiveProposal proposal = new AdaptiveProposal(0.01, true);
+
+		RaupState s = new RaupState(0, 0, 0, 0, 0);
+		double energy = 0;
+		for (int i = 0; i < 100000; i++) {
+			RaupState next = proposal.propose(s, r);
+			double e = 0;
+			for (int j = 0; j < RaupState.PARAMETERS; j++) {
+				double z = next.get(j) / width[j];
+				e += z * z / 2;
+			}
+			boolean accepted = r.nextDouble() < Math.exp(energy - e);
+			if (accepted) {
+				s = next;
+				energy = e;
+			}
+			proposal.feedback(proposal.lastMove(), accepted, s);
+		}
+
+		// Every parameter moves, and the steps follow the widths
+		for (int j = 0; j < RaupState.PARAMETERS; j++) {
+			assertEquals(0.44, proposal.getAcceptance(j), 0.05);
+			if (j > 0) {
+				assertTrue(proposal.getScale(j) > 3 * proposal.getScale(j - 1));
+			}
+		}
+		assertTrue(proposal.isCorrelating());
+		assertEquals(0.234, proposal.getAcceptance(AdaptiveProposal.CORRELATED), 0.05);
+	}
+
+	@Test
+	public void testSchedules() {
+		int n = 100000;
+		double base = Math.pow(0.000001 / 10, 1.0 / n);
+
+		// The incremental geometric schedule must follow the closed form,
+		// including after a jump
+		Scale geometric = new GeometricScale(n, 0.000001, 10);
+		for (int x = 0; x <= n; x++) {
+			double expected = 10 * Math.pow(base, x);
+			assertEquals(expected, geometric.scale(x), 1e-9 * expected);
+		}
+		assertEquals(10 * Math.pow(base, 10), geometric.scale(10), 1e-15);
+
+		Scale lundyMees = TableScale.lundyMees(n, 0.000001, 10);
+		assertEquals(10, lundyMees.scale(0), 1e-5);
+		assertEquals(0.000001, lundyMees.scale(n), 1e-12);
+		assertEquals(0.000001, lundyMees.scale(n + 10), 1e-12);
+		double t1 = lundyMees.scale(1000);
+		assertEquals(t1 / (1 + (1 / 0.000001 - 1 / 10.0) / n * t1), lundyMees.scale(1001), 1e-6 * t1);
+
+		Scale logarithmic = TableScale.logarithmic(n, 0.000001, 10);
+		assertEquals(10, logarithmic.scale(0), 1e-5);
+		assertEquals(10 * Math.log(2) / Math.log(n + 2), logarithmic.scale(n), 1e-5);
+
+		// Accepting everything cools an adaptive schedule, accepting
+		// nothing warms it up again
+		Scale adaptive = new AdaptiveScale(n, 0.000001, 10, 0.5, 0.001);
+		for (int x = 0; x < 1000; x++) {
+			adaptive.scale(x);
+			adaptive.feedback(true);
+		}
+		double cooled = adaptive.scale(1000);
+		assertTrue(cooled < 1);
+		for (int x = 1000; x < 2000; x++) {
+			adaptive.scale(x);
+			adaptive.feedback(false);
+		}
+		assertTrue(adaptive.scale(2000) > cooled);
+
+		// Getting stuck winds the schedule back
+		Scale reheating = new ReheatingScale(new GeometricScale(n, 0.000001, 10), 100);
+		double before = reheating.scale(50000);
+		for (int i = 0; i < 100; i++) {
+			reheating.feedback(false);
+		}
+		assertEquals(10 * Math.pow(base, 25001), reheating.scale(50001), 1e-9);
+		assertTrue(reheating.scale(50002) > before);
+	}
+
+	@Test
+	public void testAnytime() throws InterruptedException {
+		RaupState truth = new RaupState(1.3, 0.4, 1, 3.5, 0.7);
+		ReferenceCurve curve = raupCurve(evenTheta(), truth);
+		RaupState start = new RaupState(1, 0, 1, 2, 2);
+
+		SimulatedAnnealing sa = new SimulatedAnnealing(curve, false);
+		sa.setStart(start);
+		sa.setIterationBudget(5000);
+		SimulatedAnnealing.Result result = sa.run();
+		assertEquals(StopReason.BUDGET, result.reason);
+		assertEquals(5000, result.iterations);
+		// The best is kept, not wherever the chain ended up
+		assertEquals(result.state.distanceTo(curve), result.distance, 1e-9);
+		assertTrue(result.distance <= start.distanceTo(curve));
+
+		// Even when stopped while scoring a subsample, the answer is measured
+		// against the whole reference
+		sa = new SimulatedAnnealing(curve, false);
+		sa.setStart(start);
+		sa.setFidelity(16);
+		sa.setIterationBudget(5000);
+		result = sa.run();
+		assertEquals(result.state.distanceTo(curve), result.distance, 1e-9);
+
+		sa = new SimulatedAnnealing(curve, false);
+		sa.setStart(start);
+		sa.setTimeLimit(Duration.ofMillis(50));
+		assertEquals(StopReason.TIME, sa.run().reason);
+
+		// Nothing ever counts as enough of an improvement
+		sa = new SimulatedAnnealing(curve, false);
+		sa.setStart(start);
+		sa.setStagnation(2000, Double.MAX_VALUE);
+		result = sa.run();
+		assertEquals(StopReason.STAGNATION, result.reason);
+		assertTrue(result.iterations >= 2000 && result.iterations < 2000 + SimulatedAnnealing.CHECK_INTERVAL);
+
+		sa = new SimulatedAnnealing(curve, false);
+		sa.setStart(truth);
+		sa.setTarget(1e-9);
+		result = sa.run();
+		assertEquals(StopReason.TARGET, result.reason);
+		assertEquals(0, result.iterations);
+
+		// Cancel from another thread
+		SimulatedAnnealing cancelled = new SimulatedAnnealing(curve, false);
+		cancelled.setStart(start);
+		Thread canceller = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				// Cancel straight away then
+			}
+			cancelled.cancel();
+		});
+		canceller.start();
+		result = cancelled.run();
+		canceller.join();
+		assertEquals(StopReason.CANCELLED, result.reason);
+		assertTrue(result.iterations < 1000000);
+	}
+
+	@Test
+	public void testSpeculation() {
+		RaupState truth = new RaupState(1.3, 0.4, 1, 3.5, 0.7);
+		ReferenceCurve curve = raupCurve(evenTheta(), truth);
+		RaupState start = new RaupState(1, 0, 1, 2, 2);
+		ForkJoinPool pool = new ForkJoinPool(3);
+
+		SimulatedAnnealing single = new SimulatedAnnealing(curve, false);
+		single.setStart(start);
+		single.setSeed(12);
+		single.setIterationBudget(30000);
+		SimulatedAnnealing.Result one = single.run();
+
+		// Scoring several proposals at once takes exactly the same steps, and
+		// uses up exactly the budget
+		for (int k : new int[] { 2, 4, 7 }) {
+			SimulatedAnnealing sa = new SimulatedAnnealing(curve, false);
+			sa.setStart(start);
+			sa.setSeed(12);
+			sa.setIterationBudget(30000);
+			sa.setSpeculation(k, pool);
+			SimulatedAnnealing.Result result = sa.run();
+			assertEquals(StopReason.BUDGET, result.reason);
+			assertEquals(30000, result.iterations);
+			assertEquals(one.distance, result.distance, 0);
+			assertEquals(one.state.w, result.state.w, 0);
+			assertEquals(one.state.t, result.state.t, 0);
+		}
+
+		// Speculating never steps past a change of fidelity, so the stride
+		// follows the temperature just as it does one step at a time. The
+		// whole schedule fits in the budget, so every stride is used.
+		SimulatedAnnealing coarse = new SimulatedAnnealing(curve, false);
+		coarse.setStart(start);
+		coarse.setSeed(12);
+		coarse.setIterationBudget(30000);
+		coarse.setScale(new GeometricScale(30000, 0.000001, 10));
+		coarse.setFidelity(16);
+		SimulatedAnnealing.Result stepped = coarse.run();
+		for (int k : new int[] { 3, 7 }) {
+			SimulatedAnnealing sa = new SimulatedAnnealing(curve, false);
+			sa.setStart(start);
+			sa.setSeed(12);
+			sa.setIterationBudget(30000);
+			sa.setScale(new GeometricScale(30000, 0.000001, 10));
+			sa.setFidelity(16);
+			sa.setSpeculation(k, pool);
+			SimulatedAnnealing.Result result = sa.run();
+			assertEquals(30000, result.iterations);
+			assertEquals(stepped.distance, result.distance, 0);
+			assertEquals(stepped.state.w, result.state.w, 0);
+			assertEquals(stepped.state.t, result.state.t, 0);
+		}
+
+		// An adaptive proposal learns from its moves late, so only the budget
+		// and the quality of the answer can be compared
+		SimulatedAnnealing adaptive = new SimulatedAnnealing(curve, false);
+		adaptive.setStart(start);
+		adaptive.setSeed(12);
+		adaptive.setIterationBudget(30000);
+		adaptive.setProposal(new AdaptiveProposal(0.01, false));
+		adaptive.setSpeculation(4, pool);
+		SimulatedAnnealing.Result result = adaptive.run();
+		assertEquals(30000, result.iterations);
+		assertEquals(result.state.distanceTo(curve), result.distance, 1e-9);
+		assertTrue(result.distance < start.distanceTo(curve));
+
+		pool.shutdown();
+	}
+
+	@Test
+	public void testCheckpointRandom() {
+		Random plain = new Random(42);
+		CheckpointRandom saved = new CheckpointRandom(42);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(plain.nextInt(), saved.nextInt());
+			assertEquals(plain.nextDouble(), saved.nextDouble(), 0);
+			assertEquals(plain.nextGaussian(), saved.nextGaussian(), 0);
+		}
+
+		// Saved half way through a pair of Gaussians
+		saved.nextGaussian();
+		CheckpointRandom.State state = saved.getState();
+		double[] expected = new double[10];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = saved.nextGaussian() + saved.nextDouble();
+		}
+		CheckpointRandom restored = new CheckpointRandom();
+		restored.setState(state);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], restored.nextGaussian() + restored.nextDouble(), 0);
+		}
+	}
+
+	@Test
+	public void testCheckpoint() throws IOException {
+		RaupState truth = new RaupState(1.3, 0.4, 1, 3.5, 0.7);
+		ReferenceCurve curve = raupCurve(evenTheta(), truth);
+		File dir = Files.createTempDirectory("snails").toFile();
+		File file = new File(dir, "run.ckpt");
+		int interval = 1 << 16;
+
+		SimulatedAnnealing first = new SimulatedAnnealing(curve, false);
+		first.setStart(new RaupState(1, 0, 1, 2, 2));
+		first.setCheckpoint(file, false);
+		first.setIterationBudget(2 * interval);
+		SimulatedAnnealing.Result stopped = first.run();
+		assertTrue(file.exists());
+
+		// Resuming with the same budget has nothing left to do
+		SimulatedAnnealing again = new SimulatedAnnealing(curve, false);
+		again.setCheckpoint(file, true);
+		again.setIterationBudget(2 * interval);
+		SimulatedAnnealing.Result resumed = again.run();
+		assertEquals(2 * interval, resumed.iterations);
+		assertEquals(stopped.distance, resumed.distance, 0);
+		assertEquals(stopped.state.w, resumed.state.w, 0);
+
+		// Carrying on from the same checkpoint twice must give the same run
+		File copy = new File(dir, "copy.ckpt");
+		Files.copy(file.toPath(), copy.toPath());
+		SimulatedAnnealing a = new SimulatedAnnealing(curve, false);
+		a.setCheckpoint(file, true);
+		a.setIterationBudget(3 * interval);
+		SimulatedAnnealing b = new SimulatedAnnealing(curve, false);
+		b.setCheckpoint(copy, true);
+		b.setIterationBudget(3 * interval);
+		SimulatedAnnealing.Result ra = a.run();
+		SimulatedAnnealing.Result rb = b.run();
+		assertEquals(3 * interval, ra.iterations);
+		assertEquals(ra.distance, rb.distance, 0);
+		assertEquals(ra.state.w, rb.state.w, 0);
+		assertEquals(ra.state.t, rb.state.t, 0);
+		assertTrue(ra.distance <= stopped.distance);
+
+		file.delete();
+		copy.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testPlotPublisher() throws InterruptedException {
+		ReferenceCurve curve = raupCurve(evenTheta(), new RaupState(1, 1, 1, 3.5, 0.7));
+		List<double[][]> frames = Collections.synchronizedList(new ArrayList<>());
+		PlotPublisher publisher = new PlotPublisher(curve, 100, 10, frames::add);
+
+		double[] theta = publisher.getTheta();
+		assertEquals(100, theta.length);
+		assertEquals(curve.theta[0], theta[0], 0);
+		assertEquals(curve.theta[curve.length - 1], theta[99], 0);
+
+		// Far more states than frames, so nearly all should be dropped
+		RaupState last = null;
+		long started = System.nanoTime();
+		for (int i = 0; i < 100000; i++) {
+			last = new RaupState(1, 0.5, 1, 3 + i * 1e-5, 0.7);
+			publisher.publish(last::genPoints);
+		}
+
+		// The newest state always gets drawn in the end
+		double[] r = new double[theta.length];
+		double[] y = new double[theta.length];
+		last.genPoints(theta, r, y);
+		long deadline = System.nanoTime() + 10000000000L;
+		while (!isFrame(frames, theta, r, y) && System.nanoTime() - deadline < 0) {
+			Thread.sleep(10);
+		}
+		long elapsed = System.nanoTime() - started;
+		publisher.close();
+		assertTrue(isFrame(frames, theta, r, y));
+
+		// However long publishing took, there is at most one frame per tenth
+		// of a second (and the first)
+		assertEquals(100000, publisher.getPublished());
+		assertTrue(publisher.getDrawn() >= 1 && publisher.getDrawn() <= elapsed / 100000000 + 1);
+		assertTrue(publisher.getDrawn() < publisher.getPublished() / 100);
+		assertEquals(publisher.getDrawn(), frames.size());
+	}
+
+	/**
+	 * Whether the last frame drawn is of this r and y
+	 */
+	private static boolean isFrame(List<double[][]> frames, double[] theta, double[] r, double[] y) {
+		if (frames.isEmpty()) {
+			return false;
+		}
+		double[][] frame = frames.get(frames.size() - 1);
+		assertEquals(theta.length, frame.length);
+		for (int i = 0; i < theta.length; i++) {
+			if (Math.abs(r[i] * Math.sin(theta[i]) - frame[i][0]) > 1e-12
+					|| Math.abs(r[i] * Math.cos(theta[i]) - frame[i][1]) > 1e-12 || y[i] != frame[i][2]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Test
+	public void testLandscape() {
+		Random r = new Random(11);
+		ReferenceCurve curve = raupCurve(unevenTheta(r), new RaupState(1.2, 0.3, 0.8, 3.5, 0.7));
+
+		// Every point must match the model, for any fixed r0, y0 and rc
+		double[][] fixed = { { 1, 0, 1 }, { 1.2, 0.3, 0.8 }, { 0.5, -1, 0 } };
+		for (double[] f : fixed) {
+			Landscape landscape = new Landscape(curve, f[0], f[1], f[2]);
+			for (double w : new double[] { 0.5, 1, 2, 3.5, 100 }) {
+				Landscape.Column column = landscape.column(w);
+				for (double t : Landscape.axis(-1, 4, 11)) {
+					double expected = new RaupState(f[0], f[1], f[2], w, t).distanceTo(curve);
+					assertEquals(expected, column.distance(t), 1e-9 * Math.max(1, expected));
+				}
+
+				// Nothing in the column is better than the best t
+				double best = column.bestDistance();
+				assertEquals(column.distance(column.bestT()), best, 0);
+				for (double t : Landscape.axis(-1, 4, 101)) {
+					assertTrue(new RaupState(f[0], f[1], f[2], w, t).distanceTo(curve) >= best - 1e-9 * Math.max(1, best));
+				}
+				assertEquals(Math.min(4, Math.max(2, column.bestT())), column.bestT(2, 4), 0);
+			}
+		}
+
+		// At the true w the true t fits exactly
+		Landscape.Column truth = new Landscape(curve, 1.2, 0.3, 0.8).column(3.5);
+		assertEquals(0.7, truth.bestT(), 1e-9);
+		assertEquals(0, truth.bestDistance(), 1e-9);
+
+		// The grid includes both ends, however many steps there are
+		double[] axis = Landscape.axis(1, 10000, 4001);
+		assertEquals(4001, axis.length);
+		assertEquals(10000, axis[4000], 0);
+		double[][] grid = new Landscape(curve).grid(new double[] { 2, 3 }, 0, 4, 5);
+		assertEquals(2, grid.length);
+		assertEquals(new RaupState(1, 0, 1, 3, 1).distanceTo(curve), grid[1][1], 1e-9 * grid[1][1]);
+	}
+
+	@Test
+	public void testQuadtree() throws IOException {
+		ReferenceCurve curve = raupCurve(evenTheta(), new RaupState(1, 0, 1, 3.5, 0.7));
+		Landscape landscape = new Landscape(curve);
+		QuadtreeSampler sampler = new QuadtreeSampler(landscape, 1, 10000, 0, 4, 8, true);
+		QuadtreeSampler.Result result = sampler.sample(5000);
+
+		// The budget is kept to (and here used up, as cells that need fewer
+		// new points are still split once the best one can't be), and every
+		// point is right
+		assertEquals(5000, result.w.length);
+		for (int i = 0; i < result.w.length; i += 97) {
+			double expected = new RaupState(1, 0, 1, result.w[i], result.t[i]).distanceTo(curve);
+			assertEquals(expected, result.distance[i], 1e-9 * Math.max(1, expected));
+		}
+
+		// The cells cover the rectangle exactly
+		double area = 0;
+		int deepest = 0;
+		QuadtreeSampler.Cell finest = null;
+		for (QuadtreeSampler.Cell c : result.cells) {
+			area += (c.wMax() - c.wMin()) * (c.tMax() - c.tMin());
+			assertTrue(c.wMin() >= 1 && c.wMax() <= 10000 && c.tMin() >= 0 && c.tMax() <= 4);
+			if (c.depth > deepest) {
+				deepest = c.depth;
+				finest = c;
+			}
+		}
+		assertEquals(9999 * 4, area, 1e-6);
+
+		// The detail goes into the basin around the true minimum, far finer
+		// than an even grid with the same budget could manage
+		assertTrue(deepest >= 8);
+		assertTrue(finest.wMax() < 100);
+		double best = Double.POSITIVE_INFINITY;
+		for (double d : result.distance) {
+			best = Math.min(best, d);
+		}
+		double[][] even = landscape.grid(Landscape.axis(1, 10000, 70), 0, 4, 70);
+		double evenBest = Double.POSITIVE_INFINITY;
+		for (double[] column : even) {
+			for (double d : column) {
+				evenBest = Math.min(evenBest, d);
+			}
+		}
+		assertTrue(best < evenBest / 10);
+
+		// A budget that can't cover the starting grid is an error
+		try {
+			sampler.sample(80);
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+
+		File csv = File.createTempFile("cells", ".csv");
+		try (PrintStream out = new PrintStream(csv)) {
+			QuadtreeSampler.writeCsv(result.cells, out);
+		}
+		List<String> lines = Files.readAllLines(csv.toPath());
+		assertEquals(result.cells.size() + 1, lines.size());
+		assertEquals(9, lines.get(1).split(",").length);
+		csv.delete();
+	}
+
+	@Test
+	public void testTileFile() throws IOException, InterruptedException {
+		ReferenceCurve curve = raupCurve(evenTheta(), new RaupState(1, 0, 1, 3.5, 0.7));
+		Landscape landscape = new Landscape(curve);
+		File file = File.createTempFile("landscape", ".tiles");
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+
+		try (TileFile tiles = new TileFile(file, landscape, 1, 10, 0, 4, 101, 16)) {
+			// 101, 51, 26 then 13 points a side
+			assertEquals(4, tiles.levels());
+			assertEquals(13, tiles.resolution(3));
+			assertEquals(7, tiles.tiles(0));
+			assertEquals(1, tiles.tiles(3));
+
+			// Only the tiles in view are worked out
+			tiles.fill(0, 1, 3, 0, 1, pool);
+			assertEquals(4, tiles.getComputed());
+			assertTrue(tiles.has(0, 0, 0) && tiles.has(0, 1, 1) && !tiles.has(0, 2, 0));
+			double[][] part = tiles.read(0, 1, 10, 0, 4);
+			assertEquals(32 * 32, part[0].length);
+
+			// Every point is the landscape at the same grid point as
+			// Landscape.axis gives
+			tiles.fill(0, pool);
+			assertEquals(49, tiles.getComputed());
+			double[] w = Landscape.axis(1, 10, 101);
+			double[] t = Landscape.axis(0, 4, 101);
+			double[][] all = tiles.read(0, 1, 10, 0, 4);
+			assertEquals(101 * 101, all[0].length);
+			for (int k = 0; k < all[0].length; k += 37) {
+				double expected = landscape.column(all[0][k]).distance(all[1][k]);
+				assertEquals(expected, all[2][k], 1e-6 * expected);
+			}
+			assertEquals(w[100], tiles.w(0, 100), 0);
+			assertEquals(t[37], tiles.t(0, 37), 0);
+
+			// Coarser levels hold every other point of the one below
+			tiles.fill(1, pool);
+			assertEquals(tiles.w(0, 40), tiles.w(1, 20), 0);
+			double[][] coarse = tiles.read(1, tiles.w(1, 20), tiles.w(1, 20), tiles.t(1, 7), tiles.t(1, 7));
+			double[][] fine = tiles.read(0, tiles.w(0, 40), tiles.w(0, 40), tiles.t(0, 14), tiles.t(0, 14));
+			assertEquals(1, coarse[0].length);
+			assertEquals(fine[2][0], coarse[2][0], 0);
+
+			// A view gets the finest level that fits
+			assertEquals(0, tiles.levelFor(1, 10, 0, 4, 101 * 101));
+			assertEquals(1, tiles.levelFor(1, 10, 0, 4, 101 * 101 - 1));
+			assertEquals(0, tiles.levelFor(1, 2, 0, 0.5, 1000));
+			assertEquals(3, tiles.levelFor(1, 10, 0, 4, 10));
+		}
+
+		// Opening the file again finds everything already there
+		try (TileFile tiles = new TileFile(file, landscape, 1, 10, 0, 4, 101, 16)) {
+			assertTrue(tiles.has(0, 6, 6) && tiles.has(1, 3, 3) && !tiles.has(2, 0, 0));
+			tiles.fill(0, pool);
+			assertEquals(0, tiles.getComputed());
+		}
+
+		// But not if it was made for another specimen
+		ReferenceCurve other = raupCurve(evenTheta(), new RaupState(1, 0, 1, 3.4, 0.7));
+		try (TileFile tiles = new TileFile(file, new Landscape(other), 1, 10, 0, 4, 101, 16)) {
+			assertTrue(!tiles.has(0, 0, 0));
+			tiles.fill(3, pool);
+			assertEquals(1, tiles.getComputed());
+		}
+
+		pool.shutdown();
+		file.delete();
+	}
+
+	@Test
+	public void testBatchFitter() throws IOException {
+		File dir = Files.createTempDirectory("snails").toFile();
+		RaupState[] truths = { new RaupState(1.3, 0.4, 1, 3.5, 0.7), new RaupState(2, 0, 1, 1.8, 0.3),
+				new RaupState(1, 0.2, 0.8, 5, 1.2) };
+		// One name that has to be quoted in the results
+		String[] files = { "specimen0.txt", "specimen1 \"wide, flat\".txt", "specimen2.txt" };
+		double[] theta = evenTheta();
+		for (int s = 0; s < truths.length; s++) {
+			ReferenceCurve curve = raupCurve(theta, truths[s]);
+			try (PrintStream out = new PrintStream(new File(dir, files[s]))) {
+				for (int i = 0; i < curve.length; i++) {
+					out.println(curve.theta[i] + " " + curve.r[i] + " " + curve.y[i]);
+				}
+			}
+		}
+		File notes = new File(dir, "notes.md");
+		Files.write(notes.toPath(), Arrays.asList("not a specimen"));
+
+		// A directory gives its specimens in name order
+		List<File> found = BatchFitter.specimens(dir);
+		assertEquals(3, found.size());
+		assertEquals("specimen0.txt", found.get(0).getName());
+
+		// A manifest is relative to itself, and may name files that aren't there
+		File manifest = new File(dir, "manifest");
+		Files.write(manifest.toPath(), Arrays.asList("# specimens", "specimen2.txt", "", "  specimen0.txt ",
+				"missing.txt", new File(dir, files[1]).getAbsolutePath()));
+		List<File> listed = BatchFitter.specimens(manifest);
+		assertEquals(4, listed.size());
+		assertEquals(new File(dir, "specimen2.txt"), listed.get(0));
+
+		ForkJoinPool pool = new ForkJoinPool(2);
+		BatchFitter fitter = new BatchFitter(pool, 3);
+		fitter.setIterationBudget(20000);
+		fitter.setEstimate(true);
+		fitter.setPolish(true);
+		fitter.setSeed(7L);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int failed = fitter.fitAll(listed, new PrintStream(bytes, true));
+		pool.shutdown();
+
+		// The missing specimen fails on its own, and the rest are still fitted
+		assertEquals(1, failed);
+		String[] lines = bytes.toString().trim().split("\n");
+		assertEquals("specimen,w,r0,rc,y0,t,rmse,seconds", lines[0]);
+		assertEquals(4, lines.length);
+		List<String> names = new ArrayList<>();
+		for (int i = 1; i < lines.length; i++) {
+			// The name is everything before the last seven fields
+			String line = lines[i];
+			int split = line.length();
+			for (int j = 0; j < 7; j++) {
+				split = line.lastIndexOf(',', split - 1);
+			}
+			String name = line.substring(0, split);
+			String[] row = line.substring(split + 1).split(",");
+			assertEquals(7, row.length);
+			if (name.startsWith("\"")) {
+				assertTrue(name.endsWith("\""));
+				name = name.substring(1, name.length() - 1).replace("\"\"", "\"");
+			} else {
+				assertTrue(!name.contains(",") && !name.contains("\""));
+			}
+			names.add(new File(name).getName());
+			assertTrue(Double.parseDouble(row[5]) < 1e-3);
+		}
+		Collections.sort(names);
+		assertEquals(Arrays.asList(files), names);
+
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testReferenceLoader() throws IOException {
+		// Every number comes out exactly as Double.parseDouble has it
+		Random random = new Random(25);
+		String[] awkward = { "0", "-0.0", ".5", "3.", "+2", "1e5", "1E-300", "4.9e-324", "1.7976931348623157e308",
+				"0.1", "123456789012345678901234", "9007199254740993", "NaN", "-Infinity", "2.5e-22", "7e22" };
+		StringBuilder text = new StringBuilder();
+		List<String> values = new ArrayList<>(Arrays.asList(awkward));
+		for (int i = 0; i < 3000; i++) {
+			double v = random.nextGaussian() * Math.pow(10, random.nextInt(40) - 20);
+			values.add(i % 3 == 0 ? String.format("%.6f", v) : Double.toString(v));
+		}
+		while (values.size() % 3 != 0) {
+			values.add("1");
+		}
+		for (int i = 0; i < values.size(); i += 3) {
+			text.append(values.get(i)).append(i % 2 == 0 ? " " : "\t").append(values.get(i + 1)).append(",")
+					.append(values.get(i + 2)).append(i % 5 == 0 ? "\r\n" : "\n");
+		}
+		ReferenceCurve parsed = ReferenceLoader.parse(
+				new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.US_ASCII)), "values");
+		assertEquals(values.size() / 3, parsed.length);
+		for (int i = 0; i < parsed.length; i++) {
+			double[] row = { parsed.theta[i], parsed.r[i], parsed.y[i] };
+			for (int j = 0; j < 3; j++) {
+				String value = values.get(3 * i + j);
+				assertTrue(value, Double.doubleToLongBits(Double.parseDouble(value)) == Double
+						.doubleToLongBits(row[j]));
+			}
+		}
+
+		// Headings (as genRaup.R writes them) and blank lines are skipped
+		String table = "\"theta\" \"r\" \"y\"\n\n0 1 1\n\t0.5\t2\t3  \n\n";
+		ReferenceCurve headed = ReferenceLoader.parse(
+				new ByteArrayInputStream(table.getBytes(StandardCharsets.US_ASCII)), "table");
+		assertEquals(2, headed.length);
+		assertEquals(0.5, headed.theta[1], 0);
+		assertEquals(3, headed.y[1], 0);
+
+		// But anything else that isn't three numbers is an error
+		for (String bad : new String[] { "0 1 1\ntheta r y\n", "0 1\n", "0 1 1 1\n", "0 1 NA\n1 2 3\n" }) {
+			try {
+				ReferenceLoader.parse(new ByteArrayInputStream(bad.getBytes(StandardCharsets.US_ASCII)), "bad");
+				assertTrue("Parsed " + bad, false);
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+
+		// Loading writes a sidecar, and the next load gets the same curve from
+		// it
+		ReferenceCurve curve = raupCurve(evenTheta(), new RaupState(1, 0, 1, 3.5, 0.7));
+		File file = File.createTempFile("reference", ".csv");
+		try (PrintStream out = new PrintStream(file)) {
+			out.println("\"theta\" \"r\" \"y\"");
+			for (int i = 0; i < curve.length; i++) {
+				out.println(curve.theta[i] + " " + curve.r[i] + " " + curve.y[i]);
+			}
+		}
+		File bin = ReferenceLoader.sidecar(file);
+		bin.delete();
+		assertEquals(curve, ReferenceCurve.fromFile(file));
+		assertTrue(bin.exists());
+		assertEquals(curve, ReferenceCurve.fromFile(file));
+		assertEquals(curve.contentHash(), ReferenceCurve.fromFile(file).contentHash());
+
+		// A sidecar that can't be read (here, as it is a directory) is
+		// ignored
+		bin.delete();
+		assertTrue(bin.mkdir());
+		assertEquals(curve, ReferenceCurve.fromFile(file));
+		assertTrue(bin.delete());
+
+		// Changing the text makes the sidecar out of date
+		try (PrintStream out = new PrintStream(file)) {
+			out.println("0 1 1");
+			out.println("1 2 2");
+		}
+		assertEquals(2, ReferenceCurve.fromFile(file).length);
+		assertEquals(2, ReferenceCurve.fromFile(file).length);
+
+		file.delete();
+		bin.delete();
+	}
+}